@@ -3,232 +3,5407 @@ import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Random;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.DoubleSupplier;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 public class ChatApp {
 
     public static void main(String[] args) {
         if (args.length == 0 || args[0].equalsIgnoreCase("Server")) {
-            new ChatServer().start();
+            ChatServer.Mode mode = ChatServer.Mode.THREAD;
+            if (args.length > 1) {
+                mode = ChatServer.Mode.fromArgument(args[1]);
+                if (mode == null) {
+                    System.out.println("Invalid server mode. Use 'thread', 'virtual' or 'nio'.");
+                    return;
+                }
+            }
+            new ChatServer(mode).start();
+        } else if (args[0].equalsIgnoreCase("LoadTest")) {
+            ChatServer.Mode mode = args.length > 1 ? ChatServer.Mode.fromArgument(args[1]) : ChatServer.Mode.THREAD;
+            if (mode == null) {
+                System.out.println("Invalid server mode. Use 'thread', 'virtual' or 'nio'.");
+                return;
+            }
+            int connections = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+            int step = args.length > 3 ? Integer.parseInt(args[3]) : Math.max(1, connections / 10);
+            new ConnectionLoadTest(mode, connections, step).run();
+        } else if (args[0].equalsIgnoreCase("LoadGen")) {
+            String target = args.length > 1 ? args[1] : "nio";
+            int users = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+            int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 30;
+            double rate = args.length > 4 ? Double.parseDouble(args[4]) : 200;
+            new LoadGenerator(target, users, seconds, rate).run();
+        } else if (args[0].equalsIgnoreCase("BroadcastBench")) {
+            new BroadcastBenchmark(args.length > 1 ? Integer.parseInt(args[1]) : 10000).run();
+        } else if (args[0].equalsIgnoreCase("TimestampBench")) {
+            new TimestampBenchmark(args.length > 1 ? Integer.parseInt(args[1]) : 1000000).run();
+        } else if (args[0].equalsIgnoreCase("HistoryCheck")) {
+            if (!new HistoryLogCheck().run()) {
+                System.exit(1);
+            }
+        } else if (args[0].equalsIgnoreCase("CompressionBench")) {
+            new CompressionBenchmark(args.length > 1 ? Integer.parseInt(args[1]) : 100000).run();
         } else if (args[0].equalsIgnoreCase("Client")) {
-            SwingUtilities.invokeLater(() -> new ChatClient("localhost").setVisible(true));
+            String host = args.length > 1 ? args[1] : "localhost";
+            int port = args.length > 2 ? Integer.parseInt(args[2]) : 9001;
+            SwingUtilities.invokeLater(() -> new ChatClient(host, port).setVisible(true));
         } else {
             System.out.println("Invalid argument. Use 'Server' or 'Client'.");
         }
     }
 
-    private static class ChatServer {
-        private static final int PORT = 9001;
-        private Set<String> userNames = new HashSet<>();
-        private ConcurrentHashMap<String, PrintWriter> writers = new ConcurrentHashMap<>();
+    // Version 3 of the framed wire format. A framed client opens the connection with PREFACE and reads past the
+    // server's "SUBMITNAME" greeting line; after that every message in both directions is a frame:
+    // [int length][byte type][body], where length counts the type byte and the body. Strings inside bodies are
+    // UTF-8, prefixed with an unsigned short length unless they run to the end of the frame.
+    // Either side sends PING when the other has been quiet for a heartbeat interval and gives up on a connection that
+    // stays silent past the idle timeout; line clients cannot answer, so they are only covered by TCP keepalive.
+    // The framed SUBMITNAME lists what the server supports. A client may answer with COMPRESS before it sends NAME;
+    // once the server has acknowledged it, everything the server sends is one raw deflate stream, sync-flushed
+    // whenever the server pauses writing. Clients that ignore the capabilities never see a difference.
+    private static final class Protocol {
+        static final byte VERSION = 3;
+        static final byte[] PREFACE = {0, 'C', 'H', 'T', VERSION};
+        static final int HEADER_LENGTH = 5;
+        // FILE_CHUNK bodies start with the transfer id, the offset of the bytes in the file and their CRC-32C.
+        static final int FILE_CHUNK_HEADER_LENGTH = HEADER_LENGTH + 4 + 8 + 4;
+        static final int FILE_CHUNK_SIZE = 32 * 1024;
+        static final int HASH_LENGTH = 32;
+        static final int MAX_FRAME_LENGTH = 1 << 20;
+        // Capability and COMPRESS mode bits.
+        static final byte DEFLATE = 1;
+
+        enum FrameType {
+            // server to client: [byte capabilities], empty from servers that have none
+            SUBMITNAME(1),
+            NAME(2),
+            NAMEACCEPTED(3),
+            CHAT(4),
+            // client to server: [recipient][text]; server to client: text
+            PRIVATE(5),
+            SYSTEM(6),
+            // client to server: [int transfer id][long size][file name][upload key]
+            FILE_START(7),
+            // [int transfer id][long offset][int crc32c][bytes]; replies to FILE_PULL carry the request id
+            FILE_CHUNK(8),
+            // [int transfer id], the end of an upload or of the reply to a FILE_PULL
+            FILE_END(9),
+            // server to client, answering FILE_START and FILE_END: [int transfer id][long offset]. The upload continues
+            // from offset; offset == size means it is complete and -1 that the server gave up on it.
+            FILE_RESUME(10),
+            // server to client: [int request id], the requested file is no longer in the store
+            FILE_ABORT(11),
+            // server to client: [sha-256][long size][file name], a stored file anyone may pull
+            FILE_OFFER(12),
+            // client to server: [int request id][sha-256][long offset][int length]
+            FILE_PULL(13),
+            // client to server before NAME: [byte mode] requested; server to client: [byte mode] granted, 0 for none.
+            // Server output after a granted COMPRESS is compressed.
+            COMPRESS(14),
+            // either direction, empty: sent by a side that has not heard from the other for a heartbeat interval
+            PING(15),
+            // answer to PING, empty
+            PONG(16);
+
+            final byte code;
+
+            FrameType(int code) {
+                this.code = (byte) code;
+            }
+
+            static FrameType fromCode(byte code) {
+                for (FrameType type : values()) {
+                    if (type.code == code) {
+                        return type;
+                    }
+                }
+                return null;
+            }
+        }
+
+        static ByteBuffer frame(FrameType type, byte[] body) {
+            ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + body.length);
+            frame.putInt(body.length + 1).put(type.code).put(body).flip();
+            return frame;
+        }
+
+        // Completes a FILE_CHUNK frame whose file bytes are already in place behind FILE_CHUNK_HEADER_LENGTH.
+        static ByteBuffer chunkFrame(ByteBuffer frame, int transferId, long offset) {
+            CRC32C checksum = new CRC32C();
+            checksum.update(frame.array(), frame.arrayOffset() + FILE_CHUNK_HEADER_LENGTH, frame.limit() - FILE_CHUNK_HEADER_LENGTH);
+            frame.putInt(0, frame.limit() - 4).put(4, FrameType.FILE_CHUNK.code).putInt(5, transferId)
+                    .putLong(9, offset).putInt(17, (int) checksum.getValue());
+            frame.position(0);
+            return frame;
+        }
+
+        static String getString(ByteBuffer body) {
+            byte[] bytes = new byte[body.getShort() & 0xFFFF];
+            body.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        static String getText(ByteBuffer body) {
+            String text = new String(body.array(), body.arrayOffset() + body.position(), body.remaining(), StandardCharsets.UTF_8);
+            body.position(body.limit());
+            return text;
+        }
+    }
+
+    private static class ChatServer {
+        private static final int PORT = Integer.getInteger("chat.port", 9001);
+        private static final int BUFFER_SIZE = 8192;
+        private static final int GATHER_LIMIT = 16;
+        // File chunks a transfer keeps queued per recipient before it waits for the recipient to catch up.
+        private static final int PUMP_WINDOW = 64;
+        private static final long PUMP_INTERVAL_MILLIS = 5;
+        // Blocking handlers keep their read buffer for the whole life of an idle connection, so it stays small.
+        private static final int STREAM_BUFFER_SIZE = Integer.getInteger("chat.stream.buffer", 2048);
+        private static final Charset CHARSET = Charset.defaultCharset();
+        // Whether line clients' charset encodes ASCII as itself, so stamped lines can be assembled from parts.
+        private static final boolean ASCII_LINES = CHARSET.equals(StandardCharsets.UTF_8)
+                || CHARSET.equals(StandardCharsets.US_ASCII) || CHARSET.equals(StandardCharsets.ISO_8859_1);
+        private final Mode mode;
+        private final boolean presenceNotices = Boolean.parseBoolean(System.getProperty("chat.presence.notices", "true"));
+        private final boolean echoMessages = Boolean.parseBoolean(System.getProperty("chat.echo", "true"));
+        private final int queueCapacity = Integer.getInteger("chat.queue.capacity", 1024);
+        private final OverflowPolicy overflowPolicy = OverflowPolicy.fromArgument(System.getProperty("chat.queue.overflow", "drop_oldest"));
+        // Write batching. While a connection is busy its writer waits until the oldest queued message is this old, or
+        // until this many bytes are queued, and sends everything with one write. 0 sends whatever is queued at once.
+        private final long batchLatencyNanos = TimeUnit.MICROSECONDS.toNanos(Long.getLong("chat.batch.latency.us", 1000));
+        private final int batchBytes = Integer.getInteger("chat.batch.bytes", 16 * 1024);
+        private final WriteStats writeStats = new WriteStats();
+        // Deflate level for clients that ask for compression, or -1 when the server does not offer it.
+        private final int compressionLevel = Boolean.parseBoolean(System.getProperty("chat.compression", "true"))
+                ? Integer.getInteger("chat.compression.level", Deflater.BEST_SPEED) : -1;
+        private final byte capabilities = compressionLevel >= 0 ? Protocol.DEFLATE : 0;
+        // Queued after the COMPRESS answer; the connection's writer deflates everything behind it.
+        private static final ByteBuffer START_DEFLATE = ByteBuffer.allocate(0);
+        // Per-user rate limits: messages and kilobytes per second, file uploads per minute, each with a burst allowance.
+        // A rate of 0 turns that limit off. A user over a limit is not disconnected; the server stops reading from them.
+        private final double messageRate = Double.parseDouble(System.getProperty("chat.limit.messages", "20"));
+        private final long messageBurst = Long.getLong("chat.limit.messages.burst", 40);
+        private final double kilobyteRate = Double.parseDouble(System.getProperty("chat.limit.kb", "4096"));
+        private final long kilobyteBurst = Long.getLong("chat.limit.kb.burst", 8192);
+        private final double fileRate = Double.parseDouble(System.getProperty("chat.limit.files", "6"));
+        private final long fileBurst = Long.getLong("chat.limit.files.burst", 3);
+        // Limits of users who are online, or who left before their buckets refilled, so reconnecting does not reset them.
+        private final ConcurrentHashMap<String, Limits> userLimits = new ConcurrentHashMap<>();
+        private static final int MAX_RETAINED_LIMITS = 10000;
+        private ExecutorService executor;
+        private final AtomicInteger nextTransferId = new AtomicInteger();
+        private final FileStore fileStore = new FileStore(Paths.get(System.getProperty("chat.store.dir",
+                System.getProperty("java.io.tmpdir") + File.separator + "chatapp-store-" + PORT)), Long.getLong("chat.store.max.mb", 1024) * 1024 * 1024);
+        private final long transferTimeoutMillis = Long.getLong("chat.transfer.timeout", 300) * 1000;
+        // Framed uploads that can still be resumed, by user name and client upload key.
+        private final ConcurrentHashMap<String, Upload> uploads = new ConcurrentHashMap<>();
+        private static final MessageClock CLOCK = new MessageClock();
+        private final Presence presence = new Presence();
+        // Rooms by name. Lookups never lock; joins and leaves only contend with others touching the same room.
+        private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+        // Set when the server runs as one node of a cluster.
+        private Cluster cluster;
+        // Set once start() has opened the log; null when history is switched off or could not be opened.
+        private HistoryLog history;
+        private final int historyOnJoin = Integer.getInteger("chat.history.join", 20);
+        // Set once start() has opened it; null when offline messages are switched off or the store could not be opened.
+        private MailboxStore mailboxes;
+        private final Metrics metrics = new Metrics();
+        // Framed clients are pinged after this long without a word from them and dropped after the idle timeout, as
+        // are connections that never log in. 0 turns heartbeats off.
+        private final long heartbeatNanos = TimeUnit.SECONDS.toNanos(Long.getLong("chat.heartbeat.interval", 30));
+        private final long idleTimeoutNanos = TimeUnit.SECONDS.toNanos(Long.getLong("chat.idle.timeout", 90));
+        private static final long HEARTBEAT_TICK_MILLIS = 100;
+        private HeartbeatWheel heartbeats;
+
+        // THREAD runs one blocking Handler per socket on a platform thread, VIRTUAL runs the same Handler on a
+        // virtual thread, NIO multiplexes all sockets over a few selector loops.
+        enum Mode {
+            THREAD, VIRTUAL, NIO;
+
+            static Mode fromArgument(String argument) {
+                for (Mode mode : values()) {
+                    if (mode.name().equalsIgnoreCase(argument)) {
+                        return mode;
+                    }
+                }
+                return null;
+            }
+        }
+
+        // One deflate stream per compressed connection. The window carries across messages, so the names, prefixes
+        // and words a chat repeats shrink to a few bits. Every batch ends with a sync flush, so the client can inflate
+        // all it has received without waiting for more.
+        private static final class Compressor {
+            private final Deflater deflater;
+            private byte[] output = new byte[BUFFER_SIZE];
+
+            Compressor(int level) {
+                deflater = new Deflater(level, true);
+            }
+
+            // The returned buffer is reused by the next call.
+            ByteBuffer compress(ByteBuffer[] items, int from, int to) {
+                int length = 0;
+                for (int i = from; i < to; i++) {
+                    deflater.setInput(items[i]);
+                    while (!deflater.needsInput()) {
+                        length = deflate(length, Deflater.NO_FLUSH);
+                    }
+                }
+                int before;
+                do {
+                    before = length;
+                    length = deflate(length, Deflater.SYNC_FLUSH);
+                } while (length == output.length && length > before);
+                return ByteBuffer.wrap(output, 0, length);
+            }
+
+            void close() {
+                deflater.end();
+            }
+
+            // private int deflate(int length, int flush)
+            private int deflate(int length, int flush) {
+                if (length == output.length) {
+                    output = Arrays.copyOf(output, output.length * 2);
+                }
+                return length + deflater.deflate(output, length, output.length - length, flush);
+            }
+        }
+
+        // A token bucket kept as the time at which it will be full again (the generic cell rate algorithm), so taking
+        // tokens is one compare-and-set on one AtomicLong: no lock, and no thread refilling buckets.
+        private static final class RateLimit {
+            private final long nanosPerUnit;
+            private final long burstNanos;
+            private final AtomicLong fullAt;
+
+            RateLimit(double perSecond, long burst) {
+                nanosPerUnit = perSecond > 0 ? Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / perSecond)) : 0;
+                burstNanos = nanosPerUnit * Math.max(1, burst);
+                fullAt = new AtomicLong(System.nanoTime());
+            }
+
+            // Takes the units even when the bucket runs dry and returns how long the taker should pause so that it
+            // keeps to the rate; 0 while it is within its burst.
+            long take(long units, long now) {
+                if (nanosPerUnit == 0 || units == 0) {
+                    return 0;
+                }
+                long cost = units * nanosPerUnit;
+                while (true) {
+                    long current = fullAt.get();
+                    long next = (current - now < 0 ? now : current) + cost;
+                    if (fullAt.compareAndSet(current, next)) {
+                        return Math.max(0, next - now - burstNanos);
+                    }
+                }
+            }
+
+            boolean isFull(long now) {
+                return fullAt.get() - now <= 0;
+            }
+        }
+
+        private final class Limits {
+            final RateLimit messages = new RateLimit(messageRate, messageBurst);
+            final RateLimit bytes = new RateLimit(kilobyteRate * 1024, kilobyteBurst * 1024);
+            final RateLimit files = new RateLimit(fileRate / 60, fileBurst);
+
+            boolean isIdle(long now) {
+                return messages.isFull(now) && bytes.isFull(now) && files.isFull(now);
+            }
+        }
+
+        // Messages written against write calls made, and how long messages waited in their queue before being written,
+        // in power-of-two microsecond buckets. Shared by all connections.
+        private static final class WriteStats {
+            private static final int BUCKETS = 40;
+            private final LongAdder messages = new LongAdder();
+            private final LongAdder writes = new LongAdder();
+            private final AtomicLongArray waits = new AtomicLongArray(BUCKETS);
+
+            void written(long[] queuedAt, int count, long now) {
+                messages.add(count);
+                for (int i = 0; i < count; i++) {
+                    long micros = Math.max(0, (now - queuedAt[i]) / 1000);
+                    waits.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+                }
+            }
+
+            void writeCalls(int count) {
+                writes.add(count);
+            }
+
+            // Upper bound of the bucket holding the given fraction of waits, in microseconds.
+            long waitPercentile(double fraction) {
+                long total = 0;
+                for (int i = 0; i < BUCKETS; i++) {
+                    total += waits.get(i);
+                }
+                long rank = (long) Math.ceil(total * fraction);
+                long seen = 0;
+                for (int i = 0; i < BUCKETS; i++) {
+                    seen += waits.get(i);
+                    if (seen >= rank && seen > 0) {
+                        return i == 0 ? 0 : 1L << i;
+                    }
+                }
+                return 0;
+            }
+
+            String summary() {
+                long sent = messages.sum();
+                long calls = writes.sum();
+                return "Wrote " + sent + " messages with " + calls + " writes (" + Math.max(0, sent - calls) + " saved by batching), queue wait p50 <= "
+                        + waitPercentile(0.5) + " us, p99 <= " + waitPercentile(0.99) + " us, p99.9 <= " + waitPercentile(0.999) + " us.";
+            }
+        }
+
+        // Renders the "[yyyy-MM-dd HH:mm:ss] " message prefix once per second instead of once per message. The thread
+        // that first sees a new second formats and publishes its stamp; a thread that loses the race with a newer one
+        // only costs the next caller another format.
+        private static final class MessageClock {
+            private static final String PATTERN = "[yyyy-MM-dd HH:mm:ss]";
+            private static final String SYSTEM_TAG = "[SYSTEM] ";
+            private volatile Stamp current = new Stamp(Long.MIN_VALUE, "");
+
+            // One second's prefix as text and as bytes for both wire formats, with and without the system tag.
+            static final class Stamp {
+                final long second;
+                private final String text;
+                private final String systemText;
+                private final byte[] utf8;
+                private final byte[] systemUtf8;
+                private final byte[] line;
+                private final byte[] systemLine;
+
+                Stamp(long second, String text) {
+                    this.second = second;
+                    this.text = text;
+                    this.systemText = text + SYSTEM_TAG;
+                    this.utf8 = text.getBytes(StandardCharsets.UTF_8);
+                    this.systemUtf8 = systemText.getBytes(StandardCharsets.UTF_8);
+                    this.line = text.getBytes(CHARSET);
+                    this.systemLine = systemText.getBytes(CHARSET);
+                }
+
+                String text(boolean isSystemMessage) {
+                    return isSystemMessage ? systemText : text;
+                }
+
+                byte[] bytes(boolean isSystemMessage, WireFormat format) {
+                    if (format == WireFormat.LINES) {
+                        return isSystemMessage ? systemLine : line;
+                    }
+                    return isSystemMessage ? systemUtf8 : utf8;
+                }
+            }
+
+            Stamp now() {
+                long second = Math.floorDiv(System.currentTimeMillis(), 1000);
+                Stamp stamp = current;
+                if (stamp.second != second) {
+                    stamp = new Stamp(second, new SimpleDateFormat(PATTERN).format(new Date(second * 1000)) + " ");
+                    current = stamp;
+                }
+                return stamp;
+            }
+        }
+
+        // Who is logged in, and the peer each name reaches. Reserving a name and registering its peer is a single
+        // putIfAbsent, so no login ever sees a name that is taken but not yet reachable. Every join and leave also
+        // updates the roster in place (see NameList), inside the map's update of the same name so that the two always
+        // agree, and a roster request returns the text kept there instead of going through every name.
+        private static final class Presence {
+            private final ConcurrentHashMap<String, Peer> peers = new ConcurrentHashMap<>();
+            private final NameList localNames = new NameList();
+            // Users on other cluster nodes, listed after the local ones.
+            private final NameList remoteNames = new NameList();
+            private volatile Roster roster = new Roster("", "", "");
+
+            private static final class Roster {
+                final String local;
+                final String remote;
+                final String text;
+
+                Roster(String local, String remote, String text) {
+                    this.local = local;
+                    this.remote = remote;
+                    this.text = text;
+                }
+            }
+
+            // The greeting is queued before the peer can be seen by anyone broadcasting, so it is always received first.
+            boolean join(String name, Peer peer, OutboundMessage greeting) {
+                boolean[] joined = new boolean[1];
+                peers.computeIfAbsent(name, key -> {
+                    if (greeting != null) {
+                        peer.send(greeting);
+                    }
+                    localNames.add(key);
+                    joined[0] = true;
+                    return peer;
+                });
+                return joined[0];
+            }
+
+            void leave(String name, Peer peer) {
+                peers.computeIfPresent(name, (key, current) -> {
+                    if (current != peer) {
+                        return current;
+                    }
+                    localNames.remove(key);
+                    return null;
+                });
+            }
+
+            Peer get(String name) {
+                return peers.get(name);
+            }
+
+            Collection<Peer> peers() {
+                return peers.values();
+            }
+
+            Set<String> names() {
+                return peers.keySet();
+            }
+
+            int size() {
+                return peers.size();
+            }
+
+            // Called by the cluster while it updates its route to the name, so repeated calls are harmless.
+            void remoteJoined(String name) {
+                remoteNames.add(name);
+            }
+
+            void remoteLeft(String name) {
+                remoteNames.remove(name);
+            }
+
+            // "a, b, c". Only joining the local and the remote text copies anything, and only after one of them changed.
+            String roster() {
+                String local = localNames.text();
+                String remote = remoteNames.text();
+                Roster current = roster;
+                // The same String objects mean neither list changed since the text was joined.
+                if (current.local == local && current.remote == remote) {
+                    return current.text;
+                }
+                String text = local.isEmpty() ? remote : remote.isEmpty() ? local : local + ", " + remote;
+                roster = new Roster(local, remote, text);
+                return text;
+            }
+        }
+
+        // Names in blocks of up to BLOCK_NAMES, each keeping its own ", "-joined text. A join or leave changes one block
+        // and drops only that block's text and the joined one, so a burst of logins each followed by a roster request
+        // joins ready-made block texts instead of going through every name. A new name goes into any block with room,
+        // which keeps the blocks full under churn.
+        private static final class NameList {
+            private static final int BLOCK_NAMES = 64;
+            private final List<Block> blocks = new ArrayList<>();
+            private final ArrayDeque<Block> withRoom = new ArrayDeque<>();
+            private final HashMap<String, Block> blockOf = new HashMap<>();
+            // Null once a block has changed, until the next text().
+            private String text = "";
+
+            private static final class Block {
+                final List<String> names = new ArrayList<>(BLOCK_NAMES);
+                String text;
+            }
+
+            synchronized void add(String name) {
+                if (blockOf.containsKey(name)) {
+                    return;
+                }
+                Block block = withRoom.peekFirst();
+                if (block == null) {
+                    block = new Block();
+                    blocks.add(block);
+                    withRoom.addFirst(block);
+                }
+                block.names.add(name);
+                if (block.names.size() == BLOCK_NAMES) {
+                    withRoom.pollFirst();
+                }
+                block.text = null;
+                blockOf.put(name, block);
+                text = null;
+            }
+
+            synchronized void remove(String name) {
+                Block block = blockOf.remove(name);
+                if (block == null) {
+                    return;
+                }
+                if (block.names.size() == BLOCK_NAMES) {
+                    withRoom.addLast(block);
+                }
+                block.names.remove(name);
+                block.text = null;
+                if (block.names.isEmpty()) {
+                    blocks.remove(block);
+                    withRoom.remove(block);
+                }
+                text = null;
+            }
+
+            synchronized String text() {
+                if (text == null) {
+                    StringBuilder joined = new StringBuilder();
+                    for (Block block : blocks) {
+                        if (block.text == null) {
+                            block.text = String.join(", ", block.names);
+                        }
+                        if (joined.length() > 0) {
+                            joined.append(", ");
+                        }
+                        joined.append(block.text);
+                    }
+                    text = joined.toString();
+                }
+                return text;
+            }
+        }
+
+        // One published value: its name, Prometheus type, help text and how to read it.
+        private static final class Metric {
+            final String name;
+            final String type;
+            final String help;
+            final DoubleSupplier value;
+
+            Metric(String name, String type, String help, DoubleSupplier value) {
+                this.name = name;
+                this.type = type;
+                this.help = help;
+                this.value = value;
+            }
+        }
+
+        // Monitoring counters. Everything recorded on the message path is a LongAdder or a LatencyHistogram, so
+        // recording never contends; only reading sums up the stripes. The same metrics are published as one JMX MBean
+        // and as plain text in the Prometheus format on chat.metrics.port.
+        private final class Metrics implements DynamicMBean {
+            final LongAdder connections = new LongAdder();
+            final LongAdder messagesIn = new LongAdder();
+            final LongAdder fileBytesIn = new LongAdder();
+            final LongAdder fileBytesOut = new LongAdder();
+            final LongAdder errors = new LongAdder();
+            final LongAdder throttled = new LongAdder();
+            final LongAdder evictions = new LongAdder();
+            final LatencyHistogram fanout = new LatencyHistogram();
+            // Rates over the last whole second, updated by the chat-metrics thread.
+            private volatile double messagesInRate;
+            private volatile double messagesOutRate;
+            private final Map<String, Metric> metrics = new LinkedHashMap<>();
+            private MBeanInfo info;
+
+            Metrics() {
+                add("chat_connections", "gauge", "Open client connections.", connections::sum);
+                add("chat_users", "gauge", "Users logged in to this server.", () -> presence.size());
+                add("chat_messages_in_total", "counter", "Messages received from clients.", messagesIn::sum);
+                add("chat_messages_out_total", "counter", "Messages written to clients.", () -> writeStats.messages.sum());
+                add("chat_messages_in_per_second", "gauge", "Messages received during the last second.", () -> messagesInRate);
+                add("chat_messages_out_per_second", "gauge", "Messages written during the last second.", () -> messagesOutRate);
+                add("chat_socket_writes_total", "counter", "Write calls made to client sockets.", () -> writeStats.writes.sum());
+                add("chat_broadcasts_total", "counter", "Messages delivered to every local user.", fanout::count);
+                add("chat_broadcast_fanout_p50_seconds", "gauge", "Median time to queue a broadcast for every user.",
+                        () -> fanout.percentile(50) / 1e9);
+                add("chat_broadcast_fanout_p99_seconds", "gauge", "99th percentile time to queue a broadcast for every user.",
+                        () -> fanout.percentile(99) / 1e9);
+                add("chat_broadcast_fanout_p999_seconds", "gauge", "99.9th percentile time to queue a broadcast for every user.",
+                        () -> fanout.percentile(99.9) / 1e9);
+                add("chat_broadcast_fanout_max_seconds", "gauge", "Longest time taken to queue a broadcast for every user.",
+                        () -> fanout.max() / 1e9);
+                add("chat_outbound_queue_depth_max", "gauge", "Deepest outbound queue of any user.", () -> queueDepth(true));
+                add("chat_outbound_queue_depth_sum", "gauge", "Messages queued for all users together.", () -> queueDepth(false));
+                add("chat_file_bytes_in_total", "counter", "File bytes received from uploaders.", fileBytesIn::sum);
+                add("chat_file_bytes_out_total", "counter", "File bytes queued for downloaders.", fileBytesOut::sum);
+                add("chat_handler_errors_total", "counter", "Read, write and I/O loop errors.", errors::sum);
+                add("chat_throttled_total", "counter", "Times reading from a user was paused by the rate limits.", throttled::sum);
+                add("chat_idle_evictions_total", "counter", "Connections dropped for staying silent past the idle timeout.", evictions::sum);
+            }
+
+            // private void add(String name, String type, String help, DoubleSupplier value)
+            private void add(String name, String type, String help, DoubleSupplier value) {
+                metrics.put(name, new Metric(name, type, help, value));
+            }
+
+            // private long queueDepth(boolean max)
+            private long queueDepth(boolean max) {
+                long result = 0;
+                for (Peer peer : presence.peers()) {
+                    int depth = peer.queueDepth();
+                    result = max ? Math.max(result, depth) : result + depth;
+                }
+                return result;
+            }
+
+            // Samples the per-second rates until the server stops.
+            void sample() {
+                long lastIn = messagesIn.sum();
+                long lastOut = writeStats.messages.sum();
+                long last = System.nanoTime();
+                try {
+                    while (true) {
+                        Thread.sleep(1000);
+                        long in = messagesIn.sum();
+                        long out = writeStats.messages.sum();
+                        long now = System.nanoTime();
+                        double seconds = (now - last) / 1e9;
+                        messagesInRate = (in - lastIn) / seconds;
+                        messagesOutRate = (out - lastOut) / seconds;
+                        lastIn = in;
+                        lastOut = out;
+                        last = now;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            String scrape() {
+                StringBuilder text = new StringBuilder();
+                for (Metric metric : metrics.values()) {
+                    text.append("# HELP ").append(metric.name).append(' ').append(metric.help).append('\n');
+                    text.append("# TYPE ").append(metric.name).append(' ').append(metric.type).append('\n');
+                    double value = metric.value.getAsDouble();
+                    text.append(metric.name).append(' ');
+                    if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+                        text.append((long) value);
+                    } else {
+                        text.append(value);
+                    }
+                    text.append('\n');
+                }
+                return text.toString();
+            }
+
+            // Any HTTP client (or nc) gets the scrape text; the request itself is not looked at beyond its headers.
+            void serve(ServerSocket listener) {
+                while (!listener.isClosed()) {
+                    try (Socket client = listener.accept()) {
+                        client.setSoTimeout(2000);
+                        skipRequest(client.getInputStream());
+                        byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+                        OutputStream out = client.getOutputStream();
+                        out.write(("HTTP/1.0 200 OK\r\nContent-Type: text/plain; version=0.0.4; charset=utf-8\r\nContent-Length: "
+                                + body.length + "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                        out.write(body);
+                        out.flush();
+                    } catch (IOException e) {
+                        if (!listener.isClosed()) {
+                            System.err.println("Metrics request failed: " + e.getMessage());
+                        }
+                    }
+                }
+            }
+
+            // Reads up to the blank line that ends the request headers, or gives up on the timeout.
+            private void skipRequest(InputStream in) throws IOException {
+                int matched = 0;
+                int b;
+                try {
+                    while (matched < 4 && (b = in.read()) != -1) {
+                        matched = b == (matched % 2 == 0 ? '\r' : '\n') ? matched + 1 : b == '\r' ? 1 : 0;
+                    }
+                } catch (SocketTimeoutException e) {
+                    // answer anyway
+                }
+            }
+
+            @Override
+            public Object getAttribute(String attribute) throws AttributeNotFoundException {
+                Metric metric = metrics.get(attribute);
+                if (metric == null) {
+                    throw new AttributeNotFoundException(attribute);
+                }
+                return metric.value.getAsDouble();
+            }
+
+            @Override
+            public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+                throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+            }
+
+            @Override
+            public AttributeList getAttributes(String[] attributes) {
+                AttributeList list = new AttributeList();
+                for (String name : attributes) {
+                    Metric metric = metrics.get(name);
+                    if (metric != null) {
+                        list.add(new Attribute(name, metric.value.getAsDouble()));
+                    }
+                }
+                return list;
+            }
+
+            @Override
+            public AttributeList setAttributes(AttributeList attributes) {
+                return new AttributeList();
+            }
+
+            @Override
+            public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+                throw new ReflectionException(new NoSuchMethodException(actionName));
+            }
+
+            @Override
+            public synchronized MBeanInfo getMBeanInfo() {
+                if (info == null) {
+                    List<MBeanAttributeInfo> attributes = new ArrayList<>();
+                    for (Metric metric : metrics.values()) {
+                        attributes.add(new MBeanAttributeInfo(metric.name, "double", metric.help, true, false, false));
+                    }
+                    info = new MBeanInfo(getClass().getName(), "Chat server metrics",
+                            attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+                }
+                return info;
+            }
+        }
+
+        // A hashed timing wheel of connection checks: one slot per tick, and every session sits in the slot of its next
+        // check, so a tick only visits the sessions due in it. Traffic does not move a session between slots; it just
+        // updates lastReceived, and the check reschedules from there. Slots are intrusive lists through the sessions
+        // and are only touched by the wheel thread; new sessions come in through a queue.
+        private final class HeartbeatWheel implements Runnable {
+            private static final int SLOTS = 512;
+            private final Session[] slots = new Session[SLOTS];
+            private final Queue<Session> added = new ConcurrentLinkedQueue<>();
+            private final long tickNanos = TimeUnit.MILLISECONDS.toNanos(HEARTBEAT_TICK_MILLIS);
+            private final long start = System.nanoTime();
+            private long tick;
+
+            void add(Session session) {
+                added.add(session);
+            }
+
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        long wait = start + (tick + 1) * tickNanos - System.nanoTime();
+                        if (wait > 0) {
+                            TimeUnit.NANOSECONDS.sleep(wait);
+                        }
+                        tick++;
+                        Session session;
+                        while ((session = added.poll()) != null) {
+                            schedule(session, session.lastReceived + heartbeatNanos);
+                        }
+                        int slot = (int) (tick % SLOTS);
+                        Session due = slots[slot];
+                        slots[slot] = null;
+                        while (due != null) {
+                            Session next = due.heartbeatNext;
+                            due.heartbeatNext = null;
+                            if (due.heartbeatTick > tick) {
+                                insert(due, slot);
+                            } else {
+                                check(due);
+                            }
+                            due = next;
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            // private void check(Session session)
+            private void check(Session session) {
+                if (session.closed) {
+                    return;
+                }
+                long now = System.nanoTime();
+                long idle = now - session.lastReceived;
+                boolean framed = session.format == WireFormat.FRAMES;
+                if (!framed && session.userName != null) {
+                    return;
+                }
+                if (idle >= idleTimeoutNanos) {
+                    metrics.evictions.increment();
+                    session.peer.disconnect("nothing received for " + TimeUnit.NANOSECONDS.toSeconds(idle) + " s");
+                } else if (framed && idle >= heartbeatNanos) {
+                    session.peer.send(OutboundMessage.PING);
+                    schedule(session, now + Math.min(heartbeatNanos, idleTimeoutNanos - idle));
+                } else {
+                    schedule(session, session.lastReceived + Math.min(heartbeatNanos, idleTimeoutNanos));
+                }
+            }
+
+            // private void schedule(Session session, long at)
+            private void schedule(Session session, long at) {
+                session.heartbeatTick = Math.max(tick + 1, (at - start + tickNanos - 1) / tickNanos);
+                insert(session, (int) (session.heartbeatTick % SLOTS));
+            }
+
+            // private void insert(Session session, int slot)
+            private void insert(Session session, int slot) {
+                session.heartbeatNext = slots[slot];
+                slots[slot] = session;
+            }
+        }
+
+        // A named room. Only its members receive what is said in it, so a message costs one send per member.
+        private static final class Room {
+            private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_-]{1,32}");
+            private static final int MAX_LISTED = 100;
+            final String name;
+            final Set<Peer> members = ConcurrentHashMap.newKeySet();
+
+            Room(String name) {
+                this.name = name;
+            }
+        }
+
+        public ChatServer(Mode mode) {
+            this.mode = mode;
+        }
+
+        public void start() {
+            System.out.println("The chat server is running on port " + PORT + " (" + mode.name().toLowerCase() + " mode).");
+            fileStore.load();
+            if (Boolean.parseBoolean(System.getProperty("chat.history", "true"))) {
+                openHistory();
+            }
+            if (Boolean.parseBoolean(System.getProperty("chat.mailbox", "true"))) {
+                openMailboxes();
+            }
+            long statsInterval = Long.getLong("chat.stats.interval", 60);
+            if (statsInterval > 0) {
+                Thread reporter = new Thread(() -> reportStats(statsInterval), "chat-stats");
+                reporter.setDaemon(true);
+                reporter.start();
+            }
+            if (Boolean.parseBoolean(System.getProperty("chat.metrics", "true"))) {
+                publishMetrics();
+            }
+            if (heartbeatNanos > 0 && idleTimeoutNanos > 0) {
+                heartbeats = new HeartbeatWheel();
+                Thread wheel = new Thread(heartbeats, "chat-heartbeat");
+                wheel.setDaemon(true);
+                wheel.start();
+            }
+            String clusterPort = System.getProperty("chat.cluster.port");
+            if (clusterPort != null) {
+                cluster = new Cluster(Integer.parseInt(clusterPort), System.getProperty("chat.cluster.peers", ""));
+                cluster.start();
+            }
+            if (mode == Mode.NIO) {
+                new NioServer(Integer.getInteger("chat.nio.loops", Runtime.getRuntime().availableProcessors())).run();
+                return;
+            }
+            executor = mode == Mode.VIRTUAL ? newVirtualThreadExecutor() : null;
+            if (mode == Mode.VIRTUAL && executor == null) {
+                System.err.println("Virtual threads need JDK 21 or newer, falling back to thread mode.");
+            }
+            try (ServerSocket listener = new ServerSocket(PORT)) {
+                while (true) {
+                    Socket socket = listener.accept();
+                    socket.setKeepAlive(true);
+                    spawn(new Handler(socket));
+                }
+            } catch (IOException e) {
+                System.err.println("Server error: " + e.getMessage());
+            } finally {
+                if (executor != null) {
+                    executor.shutdownNow();
+                }
+            }
+        }
+
+        // JMX first; the scrape port is optional and a port already in use does not stop the server.
+        private void publishMetrics() {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName("ChatApp:type=ChatServer,port=" + PORT));
+            } catch (JMException e) {
+                System.err.println("Could not register metrics with JMX: " + e.getMessage());
+            }
+            Thread sampler = new Thread(metrics::sample, "chat-metrics");
+            sampler.setDaemon(true);
+            sampler.start();
+            int port = Integer.getInteger("chat.metrics.port", PORT + 1000);
+            if (port <= 0) {
+                return;
+            }
+            try {
+                ServerSocket listener = new ServerSocket();
+                listener.bind(new InetSocketAddress(System.getProperty("chat.metrics.host", "127.0.0.1"), port));
+                Thread server = new Thread(() -> metrics.serve(listener), "chat-metrics-http");
+                server.setDaemon(true);
+                server.start();
+                System.out.println("Metrics are served on port " + port + ".");
+            } catch (IOException e) {
+                System.err.println("Could not open metrics port " + port + ": " + e.getMessage());
+            }
+        }
+
+        // private void reportStats(long intervalSeconds)
+        private void reportStats(long intervalSeconds) {
+            long reported = 0;
+            try {
+                while (true) {
+                    Thread.sleep(TimeUnit.SECONDS.toMillis(intervalSeconds));
+                    long sent = writeStats.messages.sum();
+                    if (sent != reported) {
+                        reported = sent;
+                        System.out.println(writeStats.summary());
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // private void openHistory()
+        private void openHistory() {
+            Path directory = Paths.get(System.getProperty("chat.history.dir",
+                    System.getProperty("java.io.tmpdir") + File.separator + "chatapp-history-" + PORT));
+            HistoryLog log = new HistoryLog(directory, Integer.getInteger("chat.history.segment.mb", 16) * 1024 * 1024,
+                    Long.getLong("chat.history.max.mb", 256) * 1024 * 1024, Long.getLong("chat.history.flush.ms", 50));
+            try {
+                log.open();
+                history = log;
+            } catch (IOException e) {
+                System.err.println("Could not open history log " + directory + ", history is off: " + e.getMessage());
+            }
+        }
+
+        // private void openMailboxes()
+        private void openMailboxes() {
+            Path directory = Paths.get(System.getProperty("chat.mailbox.dir",
+                    System.getProperty("java.io.tmpdir") + File.separator + "chatapp-mailbox-" + PORT));
+            MailboxStore store = new MailboxStore(directory, Integer.getInteger("chat.mailbox.max", 1000));
+            try {
+                store.open();
+                mailboxes = store;
+            } catch (IOException e) {
+                System.err.println("Could not open mailboxes in " + directory + ", offline messages are off: " + e.getMessage());
+            }
+        }
+
+        // Everything waiting goes out as one buffer and one queue entry, however many messages there are. The messages
+        // leave the mailbox only once that buffer has been written to the socket, so a user who drops before then gets
+        // them again at the next login. again is set on login, to resend what an earlier connection never got.
+        private void deliverMailbox(String name, Peer peer, boolean again) {
+            MailboxStore.Delivery delivery = mailboxes.take(name, again);
+            if (delivery == null) {
+                return;
+            }
+            List<String> messages = delivery.messages;
+            WireFormat format = peer.format();
+            List<ByteBuffer> encoded = new ArrayList<>(messages.size() + 1);
+            encoded.add(OutboundMessage.text(Protocol.FrameType.SYSTEM, formatMessage("You have " + messages.size()
+                    + " private message" + (messages.size() == 1 ? "" : "s") + " from while you were away:", true)).encodedFor(format));
+            int length = encoded.get(0).remaining();
+            for (String message : messages) {
+                ByteBuffer bytes = OutboundMessage.text(Protocol.FrameType.PRIVATE, message).encodedFor(format);
+                encoded.add(bytes);
+                length += bytes.remaining();
+            }
+            ByteBuffer bulk = ByteBuffer.allocate(length);
+            for (ByteBuffer bytes : encoded) {
+                bulk.put(bytes);
+            }
+            peer.sendEncoded(bulk.flip(), Protocol.FrameType.PRIVATE);
+            peer.afterWritten(() -> mailboxes.delivered(name, delivery.last));
+        }
+
+        // A replay never takes more than half a queue, so live messages still fit behind it.
+        private int replayLimit() {
+            return Math.max(1, queueCapacity / 2);
+        }
+
+        // private void spawn(Runnable task)
+        private void spawn(Runnable task) {
+            if (executor != null) {
+                executor.execute(task);
+            } else {
+                new Thread(task).start();
+            }
+        }
+
+        // Outbound queue depth per logged-in user, for spotting slow consumers.
+        Map<String, Integer> queueDepths() {
+            Map<String, Integer> depths = new LinkedHashMap<>();
+            presence.peers.forEach((name, peer) -> depths.put(name, peer.queueDepth()));
+            return depths;
+        }
+
+        // Looked up reflectively so the server still compiles and runs on JDK 17.
+        private static ExecutorService newVirtualThreadExecutor() {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                return null;
+            }
+        }
+
+        // A connected client as seen by the rest of the server, independent of the I/O model serving it.
+        // Sends only enqueue; the bytes are written by the connection's own writer. Buffers are handed over and may be
+        // shared with other peers, so callers pass their own duplicate and never modify the contents afterwards.
+        private abstract static class Peer {
+            private static final int MAX_HELD = 1024;
+            // Line clients receive file bytes in-band, so while a file streams to one everything else is held back.
+            private final ReentrantLock lineLock = new ReentrantLock();
+            private final List<Held> held = new ArrayList<>();
+            private int streamingTransfer;
+            // Actions waiting for their marker to be written, in the order they were added; see afterWritten.
+            private final Queue<WriteMarker> markers = new ConcurrentLinkedQueue<>();
+            // Only touched by the connection's writer.
+            private Compressor compressor;
+
+            // Required data (file bytes and their announcements) is never dropped by the overflow policy.
+            abstract void enqueue(ByteBuffer data, boolean required);
+
+            // Called by the connection's writer on every batch it drains. Whatever follows START_DEFLATE is replaced by
+            // one buffer of deflated bytes, valid until the next call; returns the new length of the batch.
+            int deflateBatch(ByteBuffer[] batch, int count, int level) {
+                int from = 0;
+                if (compressor == null) {
+                    while (from < count && batch[from] != START_DEFLATE) {
+                        from++;
+                    }
+                    if (from == count) {
+                        return count;
+                    }
+                    compressor = new Compressor(level);
+                    System.arraycopy(batch, from + 1, batch, from, count - from - 1);
+                    batch[--count] = null;
+                }
+                if (from == count) {
+                    return count;
+                }
+                ByteBuffer deflated = compressor.compress(batch, from, count);
+                // Markers carry no bytes, so they stay in the batch, behind the deflated buffer that holds what they follow.
+                int kept = from;
+                for (int i = from; i < count; i++) {
+                    ByteBuffer data = batch[i];
+                    batch[i] = null;
+                    if (data.capacity() == 0) {
+                        batch[kept++] = data;
+                    }
+                }
+                System.arraycopy(batch, from, batch, from + 1, kept - from);
+                batch[from] = deflated;
+                return kept + 1;
+            }
+
+            // Runs action on the connection's writer once everything sent before this call has been written to the
+            // socket. If the connection closes first, it never runs.
+            void afterWritten(Runnable action) {
+                ByteBuffer marker = ByteBuffer.allocate(0);
+                markers.add(new WriteMarker(marker, action));
+                sendEncoded(marker, Protocol.FrameType.SYSTEM);
+            }
+
+            // Called by the connection's writer for every empty buffer it has finished writing.
+            void written(ByteBuffer marker) {
+                for (Iterator<WriteMarker> iterator = markers.iterator(); iterator.hasNext(); ) {
+                    WriteMarker waiting = iterator.next();
+                    if (waiting.marker == marker) {
+                        iterator.remove();
+                        waiting.action.run();
+                        return;
+                    }
+                }
+            }
+
+            // Frees the deflater's native memory; called by the writer once it is done.
+            void releaseCompressor() {
+                if (compressor != null) {
+                    compressor.close();
+                    compressor = null;
+                }
+            }
+
+            abstract WireFormat format();
+
+            abstract int queueDepth();
+
+            abstract void disconnect(String reason);
+
+            abstract boolean isOpen();
+
+            // Queued plus held back messages, used to pace file transfers.
+            int backlog() {
+                if (format() == WireFormat.FRAMES) {
+                    return queueDepth();
+                }
+                lineLock.lock();
+                try {
+                    return queueDepth() + held.size();
+                } finally {
+                    lineLock.unlock();
+                }
+            }
+
+            // Framed clients throw the partial file away. A line client in the middle of the file cannot tell where it
+            // would have ended, so it is disconnected.
+            void abortTransfer(int transferId) {
+                if (format() == WireFormat.FRAMES) {
+                    enqueue(OutboundMessage.fileAbort(transferId).encodedFor(WireFormat.FRAMES), true);
+                    return;
+                }
+                lineLock.lock();
+                try {
+                    if (streamingTransfer == transferId) {
+                        disconnect("file transfer aborted half way");
+                    } else {
+                        held.removeIf(message -> message.transferId == transferId);
+                    }
+                } finally {
+                    lineLock.unlock();
+                }
+            }
+
+            // Bytes already encoded for this peer's format, such as several messages joined into one buffer. Never dropped.
+            void sendEncoded(ByteBuffer data, Protocol.FrameType type) {
+                if (format() == WireFormat.FRAMES) {
+                    enqueue(data, true);
+                } else {
+                    sendLine(new Held(data, type, 0, true));
+                }
+            }
+
+            void send(OutboundMessage message) {
+                if (format() == WireFormat.FRAMES) {
+                    enqueue(message.encodedFor(WireFormat.FRAMES), message.required);
+                } else {
+                    sendLine(new Held(message.encodedFor(WireFormat.LINES), message.type, message.transferId, message.required));
+                }
+            }
+
+            // The frame is a complete FILE_CHUNK frame; line clients only get the file bytes behind its header.
+            void sendChunk(ByteBuffer frame, int transferId) {
+                if (format() == WireFormat.FRAMES) {
+                    enqueue(frame.duplicate(), true);
+                } else {
+                    ByteBuffer bytes = frame.duplicate();
+                    bytes.position(Protocol.FILE_CHUNK_HEADER_LENGTH);
+                    sendLine(new Held(bytes, Protocol.FrameType.FILE_CHUNK, transferId, true));
+                }
+            }
+
+            // private void sendLine(Held message)
+            private void sendLine(Held message) {
+                lineLock.lock();
+                try {
+                    boolean streaming = streamingTransfer != 0 && message.transferId == streamingTransfer;
+                    if ((held.isEmpty() || streaming) && admit(message)) {
+                        if (message.type == Protocol.FrameType.FILE_END) {
+                            releaseHeld();
+                        }
+                        return;
+                    }
+                    if (held.size() >= MAX_HELD) {
+                        disconnect("too many messages held back during a file transfer");
+                        return;
+                    }
+                    held.add(message);
+                } finally {
+                    lineLock.unlock();
+                }
+            }
+
+            // Delivers the message if the current file stream allows it.
+            private boolean admit(Held message) {
+                if (streamingTransfer == 0) {
+                    if (message.type == Protocol.FrameType.FILE_START) {
+                        streamingTransfer = message.transferId;
+                    } else if (message.transferId != 0) {
+                        // bytes of a transfer this client never saw announced
+                        return true;
+                    }
+                } else if (message.transferId != streamingTransfer) {
+                    return false;
+                }
+                if (message.type == Protocol.FrameType.FILE_END) {
+                    streamingTransfer = 0;
+                }
+                if (message.data != null) {
+                    enqueue(message.data, message.required);
+                }
+                return true;
+            }
+
+            // Replays held messages in their original order; a finished transfer may let the next one start.
+            private void releaseHeld() {
+                boolean restart = true;
+                while (restart) {
+                    restart = false;
+                    Iterator<Held> iterator = held.iterator();
+                    while (iterator.hasNext()) {
+                        Held message = iterator.next();
+                        if (admit(message)) {
+                            iterator.remove();
+                            if (message.type == Protocol.FrameType.FILE_END) {
+                                restart = true;
+                                break;
+                            }
+                        }
+                    }
+                }
+            }
+
+            private static final class WriteMarker {
+                final ByteBuffer marker;
+                final Runnable action;
+
+                WriteMarker(ByteBuffer marker, Runnable action) {
+                    this.marker = marker;
+                    this.action = action;
+                }
+            }
+
+            private static final class Held {
+                final ByteBuffer data;
+                final Protocol.FrameType type;
+                final int transferId;
+                final boolean required;
+
+                Held(ByteBuffer data, Protocol.FrameType type, int transferId, boolean required) {
+                    this.data = data;
+                    this.type = type;
+                    this.transferId = transferId;
+                    this.required = required;
+                }
+            }
+        }
+
+        enum WireFormat {
+            LINES, FRAMES
+        }
+
+        // One message for one or many peers, encoded at most once per wire format however many peers receive it.
+        // Messages are built and sent from a single thread, so the cached encodings need no locking. PING and PONG are
+        // the exception: every thread shares them, so they are encoded up front into a final field.
+        private static final class OutboundMessage {
+            private final Protocol.FrameType type;
+            // What line clients see; null when they do not see this message at all.
+            private final String line;
+            // Frame body; null means the line itself in UTF-8.
+            private final byte[] body;
+            private final boolean required;
+            private final int transferId;
+            // Set for stamped messages, whose line is then the message without its prefix.
+            private final MessageClock.Stamp stamp;
+            private final boolean systemMessage;
+            // Set only for the shared PING and PONG, which are never sent to line clients.
+            private final ByteBuffer sharedFrame;
+            private String text;
+            private ByteBuffer lineBytes;
+            private ByteBuffer frameBytes;
+
+            private OutboundMessage(Protocol.FrameType type, String line, byte[] body, int transferId) {
+                this.type = type;
+                this.line = line;
+                this.body = body;
+                this.transferId = transferId;
+                this.required = transferId != 0;
+                this.stamp = null;
+                this.systemMessage = false;
+                this.sharedFrame = null;
+            }
+
+            private OutboundMessage(Protocol.FrameType type) {
+                this.type = type;
+                this.line = null;
+                this.body = new byte[0];
+                this.transferId = 0;
+                this.required = false;
+                this.stamp = null;
+                this.systemMessage = false;
+                this.sharedFrame = Protocol.frame(type, body);
+            }
+
+            private OutboundMessage(Protocol.FrameType type, MessageClock.Stamp stamp, boolean systemMessage, String message) {
+                this.type = type;
+                this.line = message;
+                this.body = null;
+                this.transferId = 0;
+                this.required = false;
+                this.stamp = stamp;
+                this.systemMessage = systemMessage;
+                this.sharedFrame = null;
+            }
+
+            static OutboundMessage text(Protocol.FrameType type, String text) {
+                return new OutboundMessage(type, text, null, 0);
+            }
+
+            // Same bytes as text(type, formatMessage(message, isSystemMessage)), but the prefix is copied from the
+            // stamp's cached bytes and the full text is only built if someone asks for it.
+            static OutboundMessage stamped(Protocol.FrameType type, MessageClock.Stamp stamp, boolean isSystemMessage, String message) {
+                return new OutboundMessage(type, stamp, isSystemMessage, message);
+            }
+
+            static OutboundMessage submitName(byte capabilities) {
+                return new OutboundMessage(Protocol.FrameType.SUBMITNAME, "SUBMITNAME", new byte[] {capabilities}, 0);
+            }
+
+            static final OutboundMessage PING = new OutboundMessage(Protocol.FrameType.PING);
+            static final OutboundMessage PONG = new OutboundMessage(Protocol.FrameType.PONG);
+
+            static OutboundMessage compress(byte mode) {
+                return new OutboundMessage(Protocol.FrameType.COMPRESS, null, new byte[] {mode}, 0);
+            }
+
+            static OutboundMessage nameAccepted(String userName) {
+                return new OutboundMessage(Protocol.FrameType.NAMEACCEPTED, "NAMEACCEPTED " + userName,
+                        userName.getBytes(StandardCharsets.UTF_8), 0);
+            }
+
+            static OutboundMessage fileStart(int transferId, String fileName, long fileSize) {
+                byte[] name = fileName.getBytes(StandardCharsets.UTF_8);
+                ByteBuffer body = ByteBuffer.allocate(4 + 8 + 2 + name.length);
+                body.putInt(transferId).putLong(fileSize).putShort((short) name.length).put(name);
+                return new OutboundMessage(Protocol.FrameType.FILE_START, "INCOMINGFILE:" + fileName, body.array(), transferId);
+            }
+
+            static OutboundMessage fileEnd(int transferId) {
+                return new OutboundMessage(Protocol.FrameType.FILE_END, null, ByteBuffer.allocate(4).putInt(transferId).array(), transferId);
+            }
+
+            static OutboundMessage fileResume(int transferId, long offset) {
+                return new OutboundMessage(Protocol.FrameType.FILE_RESUME, null,
+                        ByteBuffer.allocate(12).putInt(transferId).putLong(offset).array(), transferId);
+            }
+
+            static OutboundMessage fileOffer(byte[] hash, long fileSize, String fileName) {
+                byte[] name = fileName.getBytes(StandardCharsets.UTF_8);
+                ByteBuffer body = ByteBuffer.allocate(Protocol.HASH_LENGTH + 8 + 2 + name.length);
+                body.put(hash).putLong(fileSize).putShort((short) name.length).put(name);
+                return new OutboundMessage(Protocol.FrameType.FILE_OFFER, null, body.array(), 0);
+            }
+
+            static OutboundMessage fileAbort(int transferId) {
+                return new OutboundMessage(Protocol.FrameType.FILE_ABORT, null, ByteBuffer.allocate(4).putInt(transferId).array(), transferId);
+            }
+
+            // The text line clients see, without the newline; null for messages they do not see.
+            String text() {
+                if (stamp == null) {
+                    return line;
+                }
+                if (text == null) {
+                    text = stamp.text(systemMessage) + line;
+                }
+                return text;
+            }
+
+            ByteBuffer encodedFor(WireFormat format) {
+                if (format == WireFormat.LINES) {
+                    if (line == null) {
+                        return null;
+                    }
+                    if (lineBytes == null) {
+                        lineBytes = stamp == null ? encodeLine(line)
+                                : ASCII_LINES ? encodeStamped(format) : encodeLine(text());
+                    }
+                    return lineBytes.duplicate();
+                }
+                if (sharedFrame != null) {
+                    return sharedFrame.duplicate();
+                }
+                if (frameBytes == null) {
+                    frameBytes = stamp != null ? encodeStamped(format)
+                            : Protocol.frame(type, body != null ? body : line.getBytes(StandardCharsets.UTF_8));
+                }
+                return frameBytes.duplicate();
+            }
+
+            // Header, stamp and message go into a single buffer. Plain ASCII messages, the usual case, are copied in
+            // char by char rather than encoded into a temporary array first.
+            private ByteBuffer encodeStamped(WireFormat format) {
+                Charset charset = format == WireFormat.LINES ? CHARSET : StandardCharsets.UTF_8;
+                byte[] prefix = stamp.bytes(systemMessage, format);
+                boolean ascii = isAscii(line);
+                byte[] encoded = ascii ? null : line.getBytes(charset);
+                int length = prefix.length + (ascii ? line.length() : encoded.length);
+                ByteBuffer buffer;
+                if (format == WireFormat.LINES) {
+                    buffer = ByteBuffer.allocate(length + 1);
+                } else {
+                    buffer = ByteBuffer.allocate(Protocol.HEADER_LENGTH + length);
+                    buffer.putInt(length + 1).put(type.code);
+                }
+                buffer.put(prefix);
+                if (ascii) {
+                    for (int i = 0; i < line.length(); i++) {
+                        buffer.put((byte) line.charAt(i));
+                    }
+                } else {
+                    buffer.put(encoded);
+                }
+                if (format == WireFormat.LINES) {
+                    buffer.put((byte) '\n');
+                }
+                buffer.flip();
+                return buffer;
+            }
+
+            // private static boolean isAscii(String text)
+            private static boolean isAscii(String text) {
+                for (int i = 0; i < text.length(); i++) {
+                    if (text.charAt(i) >= 0x80) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        }
+
+        // private static ByteBuffer encodeLine(String line)
+        private static ByteBuffer encodeLine(String line) {
+            return ByteBuffer.wrap((line + "\n").getBytes(CHARSET));
+        }
+
+        // What a peer's outbound queue does when a message arrives and it is already full.
+        enum OverflowPolicy {
+            DROP_OLDEST, DISCONNECT, COALESCE;
+
+            static OverflowPolicy fromArgument(String argument) {
+                for (OverflowPolicy policy : values()) {
+                    if (policy.name().equalsIgnoreCase(argument)) {
+                        return policy;
+                    }
+                }
+                throw new IllegalArgumentException("Unknown overflow policy: " + argument);
+            }
+        }
+
+        // Bounded ring of pending writes for one connection. Raw file bytes are marked as must-deliver: dropping them
+        // would corrupt the stream, so a full queue holding them disconnects the consumer under any policy.
+        private static class OutboundQueue {
+            private static final int COALESCE_LIMIT = 64 * 1024;
+            private final ByteBuffer[] items;
+            private final boolean[] mustDeliver;
+            // System.nanoTime() when each item was queued, for write batching and its wait statistics.
+            private final long[] enqueuedAt;
+            private final OverflowPolicy policy;
+            private final ReentrantLock lock = new ReentrantLock();
+            private final Condition notEmpty = lock.newCondition();
+            private int head;
+            private int size;
+            private long bytes;
+            private boolean closed;
+
+            OutboundQueue(int capacity, OverflowPolicy policy) {
+                this.items = new ByteBuffer[Math.max(1, capacity)];
+                this.mustDeliver = new boolean[items.length];
+                this.enqueuedAt = new long[items.length];
+                this.policy = policy;
+            }
+
+            // Returns false when the consumer has fallen too far behind and should be disconnected.
+            boolean offer(ByteBuffer data, boolean required) {
+                lock.lock();
+                try {
+                    if (closed) {
+                        return true;
+                    }
+                    if (size == items.length) {
+                        int last = (head + size - 1) % items.length;
+                        if (policy == OverflowPolicy.COALESCE && !required && !mustDeliver[last]
+                                && items[last].remaining() + data.remaining() <= COALESCE_LIMIT) {
+                            ByteBuffer merged = ByteBuffer.allocate(items[last].remaining() + data.remaining());
+                            merged.put(items[last].duplicate()).put(data.duplicate()).flip();
+                            items[last] = merged;
+                            mustDeliver[last] |= required;
+                            bytes += data.remaining();
+                            notEmpty.signal();
+                            return true;
+                        }
+                        if (policy == OverflowPolicy.DISCONNECT || required || mustDeliver[head]) {
+                            return false;
+                        }
+                        removeHead();
+                    }
+                    int tail = (head + size) % items.length;
+                    items[tail] = data;
+                    mustDeliver[tail] = required;
+                    enqueuedAt[tail] = System.nanoTime();
+                    bytes += data.remaining();
+                    size++;
+                    notEmpty.signal();
+                    return true;
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            // Moves up to target.length queued buffers into target and returns how many were moved.
+            int drainTo(ByteBuffer[] target) {
+                return drainTo(target, null, Long.MAX_VALUE);
+            }
+
+            // Like drainTo(target), but also stops before the buffers moved add up to more than maxBytes (though it
+            // always moves at least one), and reports when each was queued.
+            int drainTo(ByteBuffer[] target, long[] queuedAt, long maxBytes) {
+                lock.lock();
+                try {
+                    int count = 0;
+                    long moved = 0;
+                    while (count < size && count < target.length) {
+                        ByteBuffer next = items[head];
+                        moved += next.remaining();
+                        if (count > 0 && moved > maxBytes) {
+                            break;
+                        }
+                        if (queuedAt != null) {
+                            queuedAt[count] = enqueuedAt[head];
+                        }
+                        target[count++] = removeHead();
+                    }
+                    return count;
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            // Blocks until data is available; returns null once the queue is closed.
+            ByteBuffer take() throws InterruptedException {
+                lock.lock();
+                try {
+                    while (size == 0 && !closed) {
+                        notEmpty.await();
+                    }
+                    return closed ? null : removeHead();
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            // Blocks until data is available; returns false once the queue is closed.
+            boolean awaitData() throws InterruptedException {
+                lock.lock();
+                try {
+                    while (size == 0 && !closed) {
+                        notEmpty.await();
+                    }
+                    return !closed;
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            // Blocks until minBytes are queued, the queue is full or closed, or System.nanoTime() reaches deadline.
+            void awaitBatch(long minBytes, long deadline) throws InterruptedException {
+                lock.lock();
+                try {
+                    long remaining;
+                    while (bytes < minBytes && size < items.length && !closed && (remaining = deadline - System.nanoTime()) > 0) {
+                        notEmpty.awaitNanos(remaining);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            // When the oldest queued item was queued, or Long.MIN_VALUE if there is none.
+            long headEnqueuedAt() {
+                lock.lock();
+                try {
+                    return size > 0 ? enqueuedAt[head] : Long.MIN_VALUE;
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            long queuedBytes() {
+                lock.lock();
+                try {
+                    return bytes;
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            int depth() {
+                lock.lock();
+                try {
+                    return size;
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            boolean isClosed() {
+                lock.lock();
+                try {
+                    return closed;
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            void close() {
+                lock.lock();
+                try {
+                    closed = true;
+                    Arrays.fill(items, null);
+                    size = 0;
+                    bytes = 0;
+                    notEmpty.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            // private ByteBuffer removeHead()
+            private ByteBuffer removeHead() {
+                ByteBuffer data = items[head];
+                items[head] = null;
+                head = (head + 1) % items.length;
+                size--;
+                bytes -= data.remaining();
+                return data;
+            }
+        }
+
+        // Protocol state for one connection. Bytes are pushed in by whichever transport owns the socket,
+        // always from a single thread at a time. The first byte decides the wire format: framed clients open
+        // with Protocol.PREFACE, anything else is a line-based client.
+        private class Session {
+            private final Peer peer;
+            // Read by other threads when they encode messages for this peer.
+            private volatile WireFormat format = WireFormat.LINES;
+            private boolean formatDetected;
+            private String userName;
+            private byte[] lineBuffer = new byte[256];
+            private int lineLength;
+            private Upload lineUpload;
+            private long lineRemaining;
+            private final byte[] header = new byte[Protocol.FILE_CHUNK_HEADER_LENGTH];
+            private int headerLength;
+            private Protocol.FrameType frameType;
+            private int bodyRemaining;
+            private Upload chunkUpload;
+            private long chunkOffset;
+            private int chunkChecksum;
+            // Direct, so verified chunks go from the socket to the spool file without passing through the heap.
+            private ByteBuffer chunkBuffer;
+            private final CRC32C checksum = new CRC32C();
+            // Uploads in progress on this connection, by the client's transfer id.
+            private final Map<Integer, Upload> transfers = new HashMap<>();
+            // Rooms this user has joined.
+            private final Set<String> joinedRooms = new HashSet<>();
+            private boolean compressionRequested;
+            // Replaced by the user's own limits once the name is accepted.
+            private Limits limits = new Limits();
+            // Longest pause owed to the limits by what this call of onBytes has consumed so far.
+            private long throttleNanos;
+            // Read by the heartbeat wheel; heartbeatTick and heartbeatNext belong to it.
+            private volatile long lastReceived = System.nanoTime();
+            private volatile boolean closed;
+            private long heartbeatTick;
+            private Session heartbeatNext;
+
+            Session(Peer peer) {
+                this.peer = peer;
+            }
+
+            void open() {
+                System.out.println("New client connected.");
+                metrics.connections.increment();
+                if (heartbeats != null) {
+                    heartbeats.add(this);
+                }
+                peer.send(OutboundMessage.submitName(capabilities));
+            }
+
+            // Consumes data until it runs out or the sender goes over its limits, and returns how many nanoseconds the
+            // caller should stop reading for, 0 to go on. Unconsumed data is to be handed back in after the pause.
+            long onBytes(ByteBuffer data) throws IOException {
+                int start = data.position();
+                throttleNanos = 0;
+                lastReceived = System.nanoTime();
+                while (data.hasRemaining() && throttleNanos == 0) {
+                    if (!formatDetected) {
+                        detectFormat(data);
+                    } else if (format == WireFormat.FRAMES) {
+                        readFrame(data);
+                    } else if (lineUpload != null) {
+                        spoolLineUpload(data);
+                    } else {
+                        readLine(data);
+                    }
+                }
+                charge(limits.bytes, data.position() - start);
+                if (throttleNanos > 0) {
+                    metrics.throttled.increment();
+                }
+                return throttleNanos;
+            }
+
+            // private void charge(RateLimit limit, long units)
+            private void charge(RateLimit limit, long units) {
+                long pause = limit.take(units, System.nanoTime());
+                if (pause > throttleNanos) {
+                    throttleNanos = pause;
+                }
+            }
+
+            void close() {
+                closed = true;
+                metrics.connections.decrement();
+                // Framed uploads stay resumable until their transfer times out; line uploads cannot be resumed.
+                if (lineUpload != null) {
+                    lineUpload.abort();
+                }
+                if (userName != null) {
+                    System.out.println(userName + " is leaving.");
+                    presence.leave(userName, peer);
+                    long now = System.nanoTime();
+                    userLimits.computeIfPresent(userName, (name, left) -> left.isIdle(now) ? null : left);
+                    if (userLimits.size() > MAX_RETAINED_LIMITS) {
+                        userLimits.entrySet().removeIf(entry -> entry.getValue().isIdle(now) && presence.get(entry.getKey()) == null);
+                    }
+                    if (history != null) {
+                        history.remember(userName);
+                    }
+                    for (String room : joinedRooms) {
+                        removeFromRoom(room);
+                        if (presenceNotices) {
+                            roomMessage(room, Protocol.FrameType.SYSTEM, formatMessage(userName + " has left #" + room + ".", true));
+                        }
+                    }
+                    if (cluster != null) {
+                        cluster.userLeft(userName);
+                    }
+                    if (presenceNotices) {
+                        broadcastMessage(userName + " has left the chat.", true);
+                    }
+                }
+            }
+
+            // private void detectFormat(ByteBuffer data)
+            private void detectFormat(ByteBuffer data) throws ProtocolException {
+                if (headerLength == 0 && data.get(data.position()) != Protocol.PREFACE[0]) {
+                    formatDetected = true;
+                    return;
+                }
+                header[headerLength++] = data.get();
+                if (headerLength < Protocol.PREFACE.length) {
+                    return;
+                }
+                if (!Arrays.equals(header, 0, Protocol.PREFACE.length - 1, Protocol.PREFACE, 0, Protocol.PREFACE.length - 1)) {
+                    throw new ProtocolException("Invalid protocol preface");
+                }
+                if (header[Protocol.PREFACE.length - 1] != Protocol.VERSION) {
+                    throw new ProtocolException("Unsupported protocol version " + header[Protocol.PREFACE.length - 1]);
+                }
+                headerLength = 0;
+                format = WireFormat.FRAMES;
+                formatDetected = true;
+                peer.send(OutboundMessage.submitName(capabilities));
+            }
+
+            // private void readLine(ByteBuffer data)
+            private void readLine(ByteBuffer data) throws IOException {
+                while (data.hasRemaining() && lineUpload == null && throttleNanos == 0) {
+                    byte b = data.get();
+                    if (b == '\n') {
+                        int length = lineLength > 0 && lineBuffer[lineLength - 1] == '\r' ? lineLength - 1 : lineLength;
+                        String line = new String(lineBuffer, 0, length, CHARSET);
+                        lineLength = 0;
+                        onLine(line);
+                    } else {
+                        ensureLineCapacity(lineLength + 1);
+                        lineBuffer[lineLength++] = b;
+                    }
+                }
+            }
+
+            // Frames are decoded in place: the header is collected first, text bodies are gathered into lineBuffer and
+            // file chunk bodies into chunkBuffer.
+            private void readFrame(ByteBuffer data) throws IOException {
+                if (frameType == null) {
+                    header[headerLength++] = data.get();
+                    if (headerLength == Protocol.HEADER_LENGTH) {
+                        int length = readInt(header, 0);
+                        Protocol.FrameType type = Protocol.FrameType.fromCode(header[4]);
+                        if (type == null || length < 1 || length > Protocol.MAX_FRAME_LENGTH) {
+                            throw new ProtocolException("Invalid frame header");
+                        }
+                        bodyRemaining = length - 1;
+                        if (type != Protocol.FrameType.FILE_CHUNK) {
+                            frameType = type;
+                        } else if (bodyRemaining < Protocol.FILE_CHUNK_HEADER_LENGTH - Protocol.HEADER_LENGTH) {
+                            throw new ProtocolException("Invalid file chunk");
+                        }
+                    } else if (headerLength == Protocol.FILE_CHUNK_HEADER_LENGTH) {
+                        // Chunks of an upload that was already finished or abandoned are skipped.
+                        chunkUpload = transfers.get(readInt(header, Protocol.HEADER_LENGTH));
+                        chunkOffset = readLong(header, Protocol.HEADER_LENGTH + 4);
+                        chunkChecksum = readInt(header, Protocol.HEADER_LENGTH + 12);
+                        bodyRemaining -= Protocol.FILE_CHUNK_HEADER_LENGTH - Protocol.HEADER_LENGTH;
+                        if (chunkBuffer == null || chunkBuffer.capacity() < bodyRemaining) {
+                            chunkBuffer = ByteBuffer.allocateDirect(Math.max(bodyRemaining, Protocol.FILE_CHUNK_SIZE));
+                        }
+                        chunkBuffer.clear();
+                        frameType = Protocol.FrameType.FILE_CHUNK;
+                    }
+                    if (frameType != null && bodyRemaining == 0) {
+                        finishFrame();
+                    }
+                    return;
+                }
+
+                int count = Math.min(data.remaining(), bodyRemaining);
+                if (frameType == Protocol.FrameType.FILE_CHUNK) {
+                    int limit = data.limit();
+                    data.limit(data.position() + count);
+                    chunkBuffer.put(data);
+                    data.limit(limit);
+                } else {
+                    ensureLineCapacity(lineLength + count);
+                    data.get(lineBuffer, lineLength, count);
+                    lineLength += count;
+                }
+                bodyRemaining -= count;
+                if (bodyRemaining == 0) {
+                    finishFrame();
+                }
+            }
+
+            // private void finishFrame()
+            private void finishFrame() throws ProtocolException {
+                Protocol.FrameType type = frameType;
+                int length = lineLength;
+                frameType = null;
+                headerLength = 0;
+                lineLength = 0;
+                if (type != Protocol.FrameType.FILE_CHUNK) {
+                    charge(limits.messages, 1);
+                    metrics.messagesIn.increment();
+                    onFrame(type, ByteBuffer.wrap(lineBuffer, 0, length));
+                } else if (chunkUpload != null) {
+                    acceptChunk(chunkUpload);
+                    chunkUpload = null;
+                }
+            }
+
+            // Chunks that fail their checksum or do not continue the file where it stands are dropped; the sender
+            // learns where to pick up again when it sends FILE_END.
+            private void acceptChunk(Upload upload) {
+                chunkBuffer.flip();
+                if (chunkOffset != upload.received() || chunkBuffer.remaining() > upload.size - chunkOffset) {
+                    return;
+                }
+                checksum.reset();
+                checksum.update(chunkBuffer);
+                chunkBuffer.rewind();
+                if ((int) checksum.getValue() == chunkChecksum) {
+                    upload.append(chunkBuffer);
+                }
+            }
+
+            // private void onFrame(Protocol.FrameType type, ByteBuffer body)
+            private void onFrame(Protocol.FrameType type, ByteBuffer body) throws ProtocolException {
+                if (userName == null && type != Protocol.FrameType.NAME && type != Protocol.FrameType.COMPRESS
+                        && type != Protocol.FrameType.PING && type != Protocol.FrameType.PONG) {
+                    throw new ProtocolException(type + " frame before NAME");
+                }
+                try {
+                    switch (type) {
+                        case NAME:
+                            submitName(Protocol.getText(body));
+                            break;
+                        case COMPRESS:
+                            // Only before NAME, while nothing but this thread sends to the peer, so no other message
+                            // can end up between the answer and the start of the compressed stream.
+                            if (userName != null || compressionRequested) {
+                                throw new ProtocolException("Unexpected COMPRESS frame");
+                            }
+                            compressionRequested = true;
+                            if ((body.get() & capabilities & Protocol.DEFLATE) != 0) {
+                                peer.send(OutboundMessage.compress(Protocol.DEFLATE));
+                                peer.enqueue(START_DEFLATE, true);
+                            } else {
+                                peer.send(OutboundMessage.compress((byte) 0));
+                            }
+                            break;
+                        case PING:
+                            peer.send(OutboundMessage.PONG);
+                            break;
+                        case PONG:
+                            break;
+                        case CHAT:
+                            onChat(Protocol.getText(body));
+                            break;
+                        case PRIVATE:
+                            String recipientName = Protocol.getString(body);
+                            handlePrivateMessage(recipientName, Protocol.getText(body));
+                            break;
+                        case FILE_START:
+                            int transferId = body.getInt();
+                            long fileSize = body.getLong();
+                            String fileName = Protocol.getString(body);
+                            String uploadKey = Protocol.getString(body);
+                            if (fileSize < 0) {
+                                throw new ProtocolException("Invalid file size " + fileSize);
+                            }
+                            charge(limits.files, 1);
+                            Upload upload = resumeUpload(fileName, fileSize, uploadKey);
+                            if (upload != null) {
+                                transfers.put(transferId, upload);
+                            }
+                            peer.send(OutboundMessage.fileResume(transferId, upload != null ? upload.received() : -1));
+                            break;
+                        case FILE_END:
+                            finishUpload(body.getInt());
+                            break;
+                        case FILE_PULL:
+                            int requestId = body.getInt();
+                            byte[] hash = new byte[Protocol.HASH_LENGTH];
+                            body.get(hash);
+                            long offset = body.getLong();
+                            int length = body.getInt();
+                            if (offset < 0 || length < 0) {
+                                throw new ProtocolException("Invalid file range");
+                            }
+                            servePull(requestId, hash, offset, length);
+                            break;
+                        default:
+                            throw new ProtocolException("Unexpected " + type + " frame");
+                    }
+                } catch (BufferUnderflowException e) {
+                    throw new ProtocolException("Malformed " + type + " frame");
+                }
+            }
+
+            // private void onLine(String line)
+            private void onLine(String message) throws IOException {
+                charge(limits.messages, 1);
+                metrics.messagesIn.increment();
+                if (userName == null) {
+                    submitName(message);
+                } else if (message.startsWith("FILETRANSFER:")) {
+                    charge(limits.files, 1);
+                    handleFileTransfer(message);
+                } else if (message.startsWith("@")) {
+                    int spaceIndex = message.indexOf(' ');
+                    if (spaceIndex > 0) {
+                        handlePrivateMessage(message.substring(1, spaceIndex), message.substring(spaceIndex + 1));
+                    }
+                } else {
+                    onChat(message);
+                }
+            }
+
+            // Plain text goes to everyone; /join, /leave, /rooms and #room messages are room commands.
+            private void onChat(String message) {
+                String command = message.trim();
+                if (message.startsWith("/join ")) {
+                    joinRoom(message.substring(6).trim());
+                } else if (message.startsWith("/leave ")) {
+                    leaveRoom(message.substring(7).trim());
+                } else if (command.equals("/rooms")) {
+                    listRooms();
+                } else if (command.equals("/history") || command.startsWith("/history ")) {
+                    showHistory(command.substring(8).trim());
+                } else if (message.startsWith("#")) {
+                    int spaceIndex = message.indexOf(' ');
+                    if (spaceIndex > 1) {
+                        sendToRoom(message.substring(1, spaceIndex), message.substring(spaceIndex + 1));
+                    } else {
+                        systemReply("ERROR Use #room message to talk in a room.");
+                    }
+                } else {
+                    broadcastMessage(userName + ": " + message, false);
+                }
+            }
+
+            // Membership changes go through compute on the room's own map entry, so an empty room can be dropped
+            // without racing a join that would otherwise land in the discarded set.
+            private void joinRoom(String room) {
+                if (room.startsWith("#")) {
+                    room = room.substring(1);
+                }
+                if (!Room.NAME.matcher(room).matches()) {
+                    systemReply("ERROR Room names are 1-32 letters, digits, '-' or '_'.");
+                    return;
+                }
+                if (!joinedRooms.add(room)) {
+                    systemReply("You are already in #" + room + ".");
+                    return;
+                }
+                rooms.compute(room, (name, existing) -> {
+                    Room joined = existing != null ? existing : new Room(name);
+                    joined.members.add(peer);
+                    return joined;
+                });
+                roomMessage(room, Protocol.FrameType.SYSTEM, formatMessage(userName + " has joined #" + room + ".", true));
+            }
+
+            // private void leaveRoom(String room)
+            private void leaveRoom(String room) {
+                if (room.startsWith("#")) {
+                    room = room.substring(1);
+                }
+                if (!joinedRooms.remove(room)) {
+                    systemReply("ERROR You are not in #" + room + ".");
+                    return;
+                }
+                removeFromRoom(room);
+                systemReply("You have left #" + room + ".");
+                roomMessage(room, Protocol.FrameType.SYSTEM, formatMessage(userName + " has left #" + room + ".", true));
+            }
+
+            // private void removeFromRoom(String room)
+            private void removeFromRoom(String room) {
+                rooms.computeIfPresent(room, (name, existing) -> {
+                    existing.members.remove(peer);
+                    return existing.members.isEmpty() ? null : existing;
+                });
+            }
+
+            // private void sendToRoom(String room, String message)
+            private void sendToRoom(String room, String message) {
+                if (!joinedRooms.contains(room)) {
+                    systemReply("ERROR You are not in #" + room + ". Use /join " + room + " first.");
+                    return;
+                }
+                roomMessage(room, Protocol.FrameType.CHAT, formatMessage("[#" + room + "] " + userName + ": " + message, false));
+            }
+
+            // Lists the rooms on this server, biggest first.
+            private void listRooms() {
+                List<Room> listed = new ArrayList<>(rooms.values());
+                if (listed.isEmpty()) {
+                    systemReply("There are no rooms. Use /join name to open one.");
+                    return;
+                }
+                listed.sort((a, b) -> Integer.compare(b.members.size(), a.members.size()));
+                StringBuilder roomList = new StringBuilder("Rooms: ");
+                for (int i = 0; i < listed.size() && i < Room.MAX_LISTED; i++) {
+                    roomList.append('#').append(listed.get(i).name).append(" (").append(listed.get(i).members.size()).append("), ");
+                }
+                roomList.setLength(roomList.length() - 2);
+                if (listed.size() > Room.MAX_LISTED) {
+                    roomList.append(" and ").append(listed.size() - Room.MAX_LISTED).append(" more");
+                }
+                systemReply(roomList.toString());
+            }
+
+            // private void showHistory(String arguments)
+            private void showHistory(String arguments) {
+                if (history == null) {
+                    systemReply("ERROR This server does not keep history.");
+                    return;
+                }
+                String[] parts = arguments.split("\\s+");
+                try {
+                    if (parts.length == 2 && parts[0].equals("since")) {
+                        replayHistory(Long.parseLong(parts[1]), true);
+                    } else if (parts.length == 1) {
+                        int count = parts[0].isEmpty() ? historyOnJoin : Integer.parseInt(parts[0]);
+                        replayHistory(history.offsetOfLast(Math.max(0, Math.min(count, replayLimit()))), true);
+                    } else {
+                        systemReply("ERROR Use /history [count] or /history since <offset>.");
+                    }
+                } catch (NumberFormatException e) {
+                    systemReply("ERROR Use /history [count] or /history since <offset>.");
+                }
+            }
+
+            // Replays at most replayLimit() messages and tells the user the offset to continue from.
+            private void replayHistory(long offset, boolean requested) {
+                long next = history.read(offset, replayLimit(), (type, text) -> peer.send(OutboundMessage.text(type, text)));
+                if (next < 0) {
+                    systemReply("ERROR No message starts at offset " + offset + ".");
+                } else if (next < history.end()) {
+                    systemReply("More history from offset " + next + ": /history since " + next);
+                } else if (next > offset || requested) {
+                    systemReply("End of history at offset " + next + ".");
+                }
+            }
+
+            // private void systemReply(String message)
+            private void systemReply(String message) {
+                peer.send(OutboundMessage.text(Protocol.FrameType.SYSTEM, formatMessage(message, true)));
+            }
+
+            // private void submitName(String name)
+            private void submitName(String name) {
+                if (name.trim().isEmpty()) {
+                    peer.send(OutboundMessage.submitName(capabilities));
+                    return;
+                }
+                if (cluster != null && cluster.isRemoteUser(name) || !presence.join(name, peer, OutboundMessage.nameAccepted(name))) {
+                    peer.send(OutboundMessage.submitName(capabilities));
+                    return;
+                }
+                userName = name;
+                limits = userLimits.computeIfAbsent(name, key -> new Limits());
+                if (history != null) {
+                    // A returning user catches up from where their last connection ended.
+                    Long lastSeen = history.takeLastSeen(userName);
+                    if (lastSeen != null) {
+                        replayHistory(lastSeen, false);
+                    } else if (historyOnJoin > 0) {
+                        replayHistory(history.offsetOfLast(Math.min(historyOnJoin, replayLimit())), false);
+                    }
+                }
+                if (mailboxes != null) {
+                    mailboxes.remember(userName);
+                    deliverMailbox(userName, peer, true);
+                }
+                if (cluster != null) {
+                    cluster.userJoined(userName);
+                }
+                if (presenceNotices) {
+                    broadcastMessage(userName + " has joined the chat.", true);
+                    listAllUsers(userName);
+                }
+            }
+
+            // private void handlePrivateMessage(String recipientName, String privateMessage)
+            private void handlePrivateMessage(String recipientName, String privateMessage) {
+                Peer recipient = presence.get(recipientName);
+                String delivered = formatMessage("[Private from " + userName + "]: " + privateMessage, false);
+                if (recipient != null || cluster != null && cluster.sendPrivate(recipientName, delivered)) {
+                    if (recipient != null) {
+                        recipient.send(OutboundMessage.text(Protocol.FrameType.PRIVATE, delivered));
+                    }
+                    peer.send(OutboundMessage.text(Protocol.FrameType.PRIVATE,
+                            formatMessage("[Private to " + recipientName + "]: " + privateMessage, false)));
+                } else if (mailboxes != null && mailboxes.isKnown(recipientName)) {
+                    String echo = formatMessage("[Private to " + recipientName + "]: " + privateMessage, false);
+                    // Answered from the store's flusher once the message is on disk, so an I/O loop never waits for it.
+                    mailboxes.deposit(recipientName, delivered, stored -> {
+                        if (!stored) {
+                            systemReply("ERROR Could not keep your message for " + recipientName + "; their mailbox is full.");
+                            return;
+                        }
+                        peer.send(OutboundMessage.text(Protocol.FrameType.PRIVATE, echo));
+                        systemReply(recipientName + " is offline and will get your message when they log in.");
+                        // They may have logged in, and emptied their mailbox, just before the deposit.
+                        Peer arrived = presence.get(recipientName);
+                        if (arrived != null) {
+                            deliverMailbox(recipientName, arrived, false);
+                        }
+                    });
+                } else {
+                    peer.send(OutboundMessage.text(Protocol.FrameType.SYSTEM,
+                            formatMessage("ERROR The user '" + recipientName + "' is not available or does not exist.", true)));
+                }
+            }
+
+            // private void handleFileTransfer(String message)
+            private void handleFileTransfer(String message) throws IOException {
+                String[] parts = message.split(":");
+                if (parts.length != 3) {
+                    System.err.println("Invalid file transfer protocol message: " + message);
+                    return;
+                }
+
+                long fileSize;
+                try {
+                    fileSize = Long.parseLong(parts[2]);
+                } catch (NumberFormatException e) {
+                    System.err.println("Invalid file size from " + userName + ": " + parts[2]);
+                    return;
+                }
+                if (fileSize < 0) {
+                    System.err.println("Invalid file size from " + userName + ": " + parts[2]);
+                    return;
+                }
+                Upload upload = startUpload(parts[1], fileSize);
+                if (fileSize > 0) {
+                    lineUpload = upload;
+                    lineRemaining = fileSize;
+                } else {
+                    completeUpload(upload);
+                }
+            }
+
+            // private void spoolLineUpload(ByteBuffer data)
+            private void spoolLineUpload(ByteBuffer data) {
+                int count = (int) Math.min(data.remaining(), lineRemaining);
+                int limit = data.limit();
+                data.limit(data.position() + count);
+                lineUpload.append(data);
+                data.limit(limit);
+                lineRemaining -= count;
+                if (lineRemaining == 0) {
+                    Upload upload = lineUpload;
+                    lineUpload = null;
+                    if (!upload.aborted) {
+                        completeUpload(upload);
+                    }
+                }
+            }
+
+            // Uploads are keyed by user and the client's upload key, so a client that reconnects and sends the same
+            // file again continues where the spooled copy ends.
+            private Upload resumeUpload(String fileName, long fileSize, String uploadKey) {
+                expireUploads();
+                String key = userName + "\n" + uploadKey;
+                Upload upload = uploads.get(key);
+                if (upload != null && upload.size == fileSize && !upload.aborted) {
+                    System.out.println("Resuming file from " + userName + ": " + fileName + " at " + upload.received() + " of " + fileSize + " bytes");
+                    return upload;
+                }
+                if (upload != null) {
+                    upload.abort();
+                }
+                try {
+                    upload = startUpload(fileName, fileSize);
+                } catch (IOException e) {
+                    System.err.println("Could not spool file from " + userName + ": " + e.getMessage());
+                    return null;
+                }
+                uploads.put(key, upload);
+                return upload;
+            }
+
+            // private void finishUpload(int transferId)
+            private void finishUpload(int transferId) {
+                Upload upload = transfers.get(transferId);
+                if (upload == null) {
+                    return;
+                }
+                if (upload.received() < upload.size && !upload.aborted) {
+                    peer.send(OutboundMessage.fileResume(transferId, upload.received()));
+                    return;
+                }
+                transfers.remove(transferId);
+                uploads.values().remove(upload);
+                boolean stored = !upload.aborted && completeUpload(upload);
+                peer.send(OutboundMessage.fileResume(transferId, stored ? upload.size : -1));
+            }
+
+            // private Upload startUpload(String fileName, long fileSize)
+            private Upload startUpload(String fileName, long fileSize) throws IOException {
+                System.out.println("Receiving file from " + userName + ": " + fileName + " (" + fileSize + " bytes)");
+
+                Upload upload = new Upload(nextTransferId.incrementAndGet(), fileName, fileSize);
+                broadcastMessage(userName + " is sending file: " + fileName, true);
+                return upload;
+            }
+
+            // Moves the finished upload into the store and offers it to everyone online now: framed clients pull it
+            // themselves, line clients have it pushed to them.
+            private boolean completeUpload(Upload upload) {
+                byte[] hash;
+                try {
+                    hash = fileStore.add(upload);
+                } catch (IOException e) {
+                    System.err.println("Could not store " + upload.fileName + ": " + e.getMessage());
+                    upload.abort();
+                    return false;
+                }
+                broadcastMessage(userName + "'s file transfer completed for " + upload.fileName + ".", true);
+                System.out.println("File transfer completed for " + upload.fileName + " from " + userName);
+
+                OutboundMessage offer = OutboundMessage.fileOffer(hash, upload.size, upload.fileName);
+                List<Peer> lineRecipients = new ArrayList<>();
+                for (Peer recipient : presence.peers()) {
+                    if (recipient.format() == WireFormat.FRAMES) {
+                        recipient.send(offer);
+                    } else {
+                        lineRecipients.add(recipient);
+                    }
+                }
+                if (!lineRecipients.isEmpty()) {
+                    try {
+                        spawn(new LinePush(nextTransferId.incrementAndGet(), upload.fileName, fileStore.open(hash),
+                                lineRecipients.toArray(new Peer[0])));
+                    } catch (IOException e) {
+                        System.err.println("Could not send " + upload.fileName + " to line clients: " + e.getMessage());
+                    }
+                }
+                return true;
+            }
+
+            // Replies are read straight from the store, one chunk frame at a time. A reply is capped so it always fits
+            // the outbound queue; the client asks again from wherever the reply ended.
+            private void servePull(int requestId, byte[] hash, long offset, int length) {
+                try (FileChannel file = fileStore.open(hash)) {
+                    long end = Math.min(file.size(), offset + Math.min(length, pullWindow() * (long) Protocol.FILE_CHUNK_SIZE));
+                    for (long position = offset; position < end; position += Protocol.FILE_CHUNK_SIZE) {
+                        peer.sendChunk(readChunk(file, requestId, position, end), requestId);
+                    }
+                    metrics.fileBytesOut.add(Math.max(0, end - offset));
+                    peer.send(OutboundMessage.fileEnd(requestId));
+                } catch (IOException e) {
+                    peer.send(OutboundMessage.fileAbort(requestId));
+                }
+            }
+
+            // private void ensureLineCapacity(int capacity)
+            private void ensureLineCapacity(int capacity) {
+                if (capacity > lineBuffer.length) {
+                    lineBuffer = Arrays.copyOf(lineBuffer, Math.max(capacity, lineBuffer.length * 2));
+                }
+            }
+        }
+
+        // An upload being spooled to disk. Only the sender's session appends to it, and only verified bytes, so
+        // the spool always holds a valid prefix of the file that a resumed upload can continue from.
+        private class Upload {
+            final int id;
+            final String fileName;
+            final long size;
+            private final Path spoolFile;
+            private final FileChannel spool;
+            private final MessageDigest digest;
+            private volatile long received;
+            private volatile long lastProgress = System.currentTimeMillis();
+            volatile boolean aborted;
+
+            Upload(int id, String fileName, long size) throws IOException {
+                this.id = id;
+                this.fileName = fileName;
+                this.size = size;
+                this.digest = sha256();
+                spoolFile = fileStore.spoolFile(id);
+                spool = FileChannel.open(spoolFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                        StandardOpenOption.WRITE);
+            }
+
+            long received() {
+                return received;
+            }
+
+            // The data is always consumed, even after the upload failed.
+            void append(ByteBuffer data) {
+                if (aborted) {
+                    data.position(data.limit());
+                    return;
+                }
+                try {
+                    digest.update(data.duplicate());
+                    long position = received;
+                    while (data.hasRemaining()) {
+                        position += spool.write(data, position);
+                    }
+                    metrics.fileBytesIn.add(position - received);
+                    received = position;
+                    lastProgress = System.currentTimeMillis();
+                } catch (IOException e) {
+                    System.err.println("Could not spool " + fileName + ": " + e.getMessage());
+                    data.position(data.limit());
+                    abort();
+                }
+            }
+
+            // Closes the spool and returns the SHA-256 of its contents.
+            byte[] seal() throws IOException {
+                spool.close();
+                return digest.digest();
+            }
+
+            void abort() {
+                aborted = true;
+                try {
+                    spool.close();
+                    Files.deleteIfExists(spoolFile);
+                } catch (IOException e) {
+                    System.err.println("Could not remove spooled file " + spoolFile + ": " + e.getMessage());
+                }
+            }
+        }
+
+        // private void expireUploads()
+        private void expireUploads() {
+            long now = System.currentTimeMillis();
+            for (Upload upload : uploads.values()) {
+                if (now - upload.lastProgress > transferTimeoutMillis && uploads.values().remove(upload)) {
+                    System.err.println("Upload of " + upload.fileName + " stalled, giving up.");
+                    upload.abort();
+                }
+            }
+        }
+
+        // Finished uploads, stored under the hex SHA-256 of their contents so the same file is only kept once.
+        // Uploads are spooled to an incoming directory on the same file system and renamed into place when done.
+        // Once the store grows past its limit the least recently offered or pulled files are deleted.
+        private static class FileStore {
+            private final Path directory;
+            private final Path incoming;
+            private final long maxBytes;
+            private final ReentrantLock lock = new ReentrantLock();
+            // Hash to file size, in access order.
+            private final LinkedHashMap<String, Long> files = new LinkedHashMap<>(16, 0.75f, true);
+            private long totalBytes;
+
+            FileStore(Path directory, long maxBytes) {
+                this.directory = directory;
+                this.incoming = directory.resolve("incoming");
+                this.maxBytes = maxBytes;
+            }
+
+            // Picks up the files a previous run left, oldest first, and drops its unfinished uploads.
+            void load() {
+                try {
+                    Files.createDirectories(incoming);
+                    try (DirectoryStream<Path> spooled = Files.newDirectoryStream(incoming)) {
+                        for (Path file : spooled) {
+                            Files.deleteIfExists(file);
+                        }
+                    }
+                    List<Path> stored = new ArrayList<>();
+                    try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory, "[0-9a-f]*")) {
+                        for (Path file : entries) {
+                            if (file.getFileName().toString().length() == Protocol.HASH_LENGTH * 2 && Files.isRegularFile(file)) {
+                                stored.add(file);
+                            }
+                        }
+                    }
+                    stored.sort((a, b) -> a.toFile().lastModified() < b.toFile().lastModified() ? -1 : 1);
+                    lock.lock();
+                    try {
+                        for (Path file : stored) {
+                            long size = Files.size(file);
+                            files.put(file.getFileName().toString(), size);
+                            totalBytes += size;
+                        }
+                        evict(null);
+                    } finally {
+                        lock.unlock();
+                    }
+                } catch (IOException e) {
+                    System.err.println("Could not open file store " + directory + ": " + e.getMessage());
+                }
+            }
+
+            Path spoolFile(int id) {
+                return incoming.resolve("upload-" + id + ".part");
+            }
+
+            byte[] add(Upload upload) throws IOException {
+                byte[] hash = upload.seal();
+                String name = toHex(hash);
+                lock.lock();
+                try {
+                    if (files.get(name) != null) {
+                        Files.deleteIfExists(upload.spoolFile);
+                        return hash;
+                    }
+                    Files.move(upload.spoolFile, directory.resolve(name), StandardCopyOption.REPLACE_EXISTING);
+                    files.put(name, upload.size);
+                    totalBytes += upload.size;
+                    evict(name);
+                    return hash;
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            // Opened channels keep working after their file is evicted.
+            FileChannel open(byte[] hash) throws IOException {
+                String name = toHex(hash);
+                lock.lock();
+                try {
+                    if (files.get(name) == null) {
+                        throw new NoSuchFileException(name);
+                    }
+                    return FileChannel.open(directory.resolve(name), StandardOpenOption.READ);
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            // private void evict(String keep)
+            private void evict(String keep) throws IOException {
+                Iterator<Map.Entry<String, Long>> iterator = files.entrySet().iterator();
+                while (totalBytes > maxBytes && iterator.hasNext()) {
+                    Map.Entry<String, Long> entry = iterator.next();
+                    if (entry.getKey().equals(keep)) {
+                        continue;
+                    }
+                    Files.deleteIfExists(directory.resolve(entry.getKey()));
+                    totalBytes -= entry.getValue();
+                    iterator.remove();
+                }
+            }
+        }
+
+        // Public messages, kept in an append-only log of memory-mapped segment files. Each segment is named after the
+        // offset of its first record, and offsets are byte positions in the whole log, so a client can ask for
+        // everything after an offset it was given earlier. Appends only copy into the mapping; a flusher thread then
+        // forces everything appended since its last pass at once, so a burst of messages shares one fsync. Once there
+        // are more segments than the size limit allows, the oldest ones are deleted.
+        // A record is [int length][int crc32c][byte type][text][int length]. The trailing length lets the log be read
+        // backwards for "the last N messages".
+        private static class HistoryLog {
+            private static final int RECORD_OVERHEAD = 13;
+            private static final int MAX_REMEMBERED = 10000;
+            private static final Pattern SEGMENT_NAME = Pattern.compile("\\d{20}\\.log");
+            private final Path directory;
+            private final int segmentBytes;
+            private final int maxSegments;
+            private final long flushMillis;
+            private final ReentrantLock lock = new ReentrantLock();
+            private final Condition appended = lock.newCondition();
+            private final CRC32C checksum = new CRC32C();
+            // Oldest first. Replaced rather than modified, so readers walk it without the lock.
+            private volatile Segment[] segments = new Segment[0];
+            // Offset just past the last complete record; everything before it can be read.
+            private volatile long end;
+            // Where each user's connection ended, so a reconnect can pick up from there. Insertion order, oldest first.
+            private final LinkedHashMap<String, Long> lastSeen = new LinkedHashMap<>();
+
+            private static final class Segment {
+                final long base;
+                final Path file;
+                final MappedByteBuffer buffer;
+                // Bytes used; only the last segment still grows.
+                volatile int limit;
+
+                Segment(long base, Path file, MappedByteBuffer buffer) {
+                    this.base = base;
+                    this.file = file;
+                    this.buffer = buffer;
+                }
+            }
+
+            HistoryLog(Path directory, int segmentBytes, long maxBytes, long flushMillis) {
+                this.directory = directory;
+                this.segmentBytes = segmentBytes;
+                this.maxSegments = (int) Math.max(2, maxBytes / segmentBytes);
+                this.flushMillis = flushMillis;
+            }
+
+            // Maps the segments a previous run left and finds where the last one ends. A record cut short by a crash
+            // fails its checksum and is wiped, so the next append takes its place. Other files are left alone.
+            void open() throws IOException {
+                Files.createDirectories(directory);
+                List<Path> files = new ArrayList<>();
+                try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory, "*.log")) {
+                    for (Path file : entries) {
+                        if (SEGMENT_NAME.matcher(file.getFileName().toString()).matches()) {
+                            files.add(file);
+                        } else {
+                            System.err.println("Ignoring " + file + ", which is not a history segment.");
+                        }
+                    }
+                }
+                files.sort(null);
+                List<Segment> loaded = new ArrayList<>();
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    loaded.add(map(Long.parseLong(name.substring(0, name.length() - 4)), file));
+                }
+                for (int i = 0; i < loaded.size() - 1; i++) {
+                    loaded.get(i).limit = (int) (loaded.get(i + 1).base - loaded.get(i).base);
+                }
+                if (!loaded.isEmpty()) {
+                    Segment last = loaded.get(loaded.size() - 1);
+                    int position = 0;
+                    int length;
+                    while ((length = validRecord(last, position)) >= 0) {
+                        position += length + RECORD_OVERHEAD;
+                    }
+                    // A segment may end full or with less room than a length left over; then the rest is wiped.
+                    int torn = segmentBytes - position;
+                    if (position + 4 <= segmentBytes) {
+                        torn = Math.min(torn, Math.max(0, last.buffer.getInt(position) + RECORD_OVERHEAD));
+                    }
+                    for (int i = 0; i < torn; i++) {
+                        last.buffer.put(position + i, (byte) 0);
+                    }
+                    last.limit = position;
+                    end = last.base + position;
+                }
+                segments = loaded.toArray(new Segment[0]);
+                Thread flusher = new Thread(this::flushLoop, "history-flush");
+                flusher.setDaemon(true);
+                flusher.start();
+            }
+
+            // Returns the offset of the record, or -1 if it does not fit in a segment.
+            long append(Protocol.FrameType type, String text) {
+                byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+                if (bytes.length + RECORD_OVERHEAD > segmentBytes) {
+                    return -1;
+                }
+                lock.lock();
+                try {
+                    Segment current = segments.length > 0 ? segments[segments.length - 1] : null;
+                    if (current == null || current.limit + bytes.length + RECORD_OVERHEAD > segmentBytes) {
+                        current = roll();
+                    }
+                    int position = current.limit;
+                    checksum.reset();
+                    checksum.update(type.code);
+                    checksum.update(bytes);
+                    current.buffer.putInt(position + 4, (int) checksum.getValue());
+                    current.buffer.put(position + 8, type.code);
+                    current.buffer.put(position + 9, bytes);
+                    current.buffer.putInt(position + 9 + bytes.length, bytes.length);
+                    // The leading length goes in last, so a record is never seen before it is complete.
+                    current.buffer.putInt(position, bytes.length);
+                    current.limit = position + bytes.length + RECORD_OVERHEAD;
+                    end = current.base + current.limit;
+                    appended.signal();
+                    return current.base + position;
+                } catch (IOException e) {
+                    System.err.println("Could not extend history log: " + e.getMessage());
+                    return -1;
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            long end() {
+                return end;
+            }
+
+            // Offset of the count-th record from the end, or of the oldest record if there are fewer.
+            long offsetOfLast(int count) {
+                long position = end;
+                Segment[] snapshot = segments;
+                int index = snapshot.length - 1;
+                for (int found = 0; found < count && index >= 0; ) {
+                    Segment segment = snapshot[index];
+                    int relative = (int) (position - segment.base);
+                    if (relative == 0) {
+                        index--;
+                        continue;
+                    }
+                    position -= segment.buffer.getInt(relative - 4) + RECORD_OVERHEAD;
+                    found++;
+                }
+                return position;
+            }
+
+            // Hands up to max records from offset on to the consumer, oldest first, and returns the offset after the
+            // last one, or -1 if no record starts at offset. Offsets that have been deleted start at the oldest record.
+            long read(long offset, int max, BiConsumer<Protocol.FrameType, String> consumer) {
+                long limit = end;
+                Segment[] snapshot = segments;
+                if (offset > limit || offset < 0) {
+                    return -1;
+                }
+                if (snapshot.length == 0 || offset == limit) {
+                    return offset;
+                }
+                int index = 0;
+                if (offset < snapshot[0].base) {
+                    offset = snapshot[0].base;
+                }
+                while (index < snapshot.length - 1 && snapshot[index + 1].base <= offset) {
+                    index++;
+                }
+                if (validRecord(snapshot[index], (int) (offset - snapshot[index].base)) < 0) {
+                    return -1;
+                }
+                for (int count = 0; count < max && offset < limit; ) {
+                    Segment segment = snapshot[index];
+                    int relative = (int) (offset - segment.base);
+                    if (relative == segment.limit) {
+                        index++;
+                        continue;
+                    }
+                    int length = segment.buffer.getInt(relative);
+                    byte[] text = new byte[length];
+                    segment.buffer.get(relative + 9, text);
+                    consumer.accept(Protocol.FrameType.fromCode(segment.buffer.get(relative + 8)), new String(text, StandardCharsets.UTF_8));
+                    offset += length + RECORD_OVERHEAD;
+                    count++;
+                }
+                return offset;
+            }
+
+            void remember(String user) {
+                lock.lock();
+                try {
+                    lastSeen.remove(user);
+                    lastSeen.put(user, end);
+                    if (lastSeen.size() > MAX_REMEMBERED) {
+                        lastSeen.remove(lastSeen.keySet().iterator().next());
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            // Where the user's last connection ended, or null if it is not known.
+            Long takeLastSeen(String user) {
+                lock.lock();
+                try {
+                    return lastSeen.remove(user);
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            // Length of the text of the record at position, or -1 if there is no intact record there.
+            private int validRecord(Segment segment, int position) {
+                if (position < 0 || position + RECORD_OVERHEAD > segmentBytes) {
+                    return -1;
+                }
+                int length = segment.buffer.getInt(position);
+                if (length <= 0 || length > segmentBytes - position - RECORD_OVERHEAD
+                        || segment.buffer.getInt(position + 9 + length) != length) {
+                    return -1;
+                }
+                byte[] text = new byte[length];
+                segment.buffer.get(position + 9, text);
+                CRC32C crc = new CRC32C();
+                crc.update(segment.buffer.get(position + 8));
+                crc.update(text);
+                return (int) crc.getValue() == segment.buffer.getInt(position + 4) ? length : -1;
+            }
+
+            // Called with the lock held.
+            private Segment roll() throws IOException {
+                long base = end;
+                Segment segment = map(base, directory.resolve(String.format("%020d.log", base)));
+                Segment[] current = segments;
+                int dropped = Math.max(0, current.length + 1 - maxSegments);
+                Segment[] next = Arrays.copyOfRange(current, dropped, current.length + 1);
+                next[next.length - 1] = segment;
+                segments = next;
+                // Readers still holding a dropped segment keep its mapping; the disk space is freed once they let go.
+                for (int i = 0; i < dropped; i++) {
+                    Files.deleteIfExists(current[i].file);
+                }
+                return segment;
+            }
+
+            // private Segment map(long base, Path file)
+            private Segment map(long base, Path file) throws IOException {
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    return new Segment(base, file, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes));
+                }
+            }
+
+            // Group commit: waits for appends, lets more of them gather for flushMillis, then forces every segment
+            // written since the last pass.
+            private void flushLoop() {
+                long flushed = end;
+                try {
+                    while (true) {
+                        lock.lock();
+                        try {
+                            while (end == flushed) {
+                                appended.await();
+                            }
+                        } finally {
+                            lock.unlock();
+                        }
+                        Thread.sleep(flushMillis);
+                        long target = end;
+                        for (Segment segment : segments) {
+                            if (segment.base + segment.limit > flushed) {
+                                segment.buffer.force();
+                            }
+                        }
+                        flushed = target;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        // Private messages for users who are offline, in one append-only file. Records are
+        // [int length][int crc32c][byte kind][u16 name][payload], where length and checksum cover everything after them.
+        // USER records name the users who have logged in before, MESSAGE records hold a formatted message for the named
+        // recipient and DELIVERED records drop that recipient's oldest messages, as many as they count. The index of who has
+        // which messages waiting is kept in memory and rebuilt from the file on start. A flusher thread syncs the file
+        // for all the deposits made since its last pass at once, so no caller waits for the disk. Once delivered
+        // messages make up most of the file, the flusher rewrites it with only the live records.
+        private static class MailboxStore {
+            private static final byte USER = 1;
+            private static final byte MESSAGE = 2;
+            private static final byte DELIVERED = 3;
+            private static final int HEADER = 8;
+            private static final long COMPACT_BYTES = 1024 * 1024;
+            private final Path file;
+            private final int maxPerUser;
+            private final ReentrantLock lock = new ReentrantLock();
+            private final Condition appended = lock.newCondition();
+            private final CRC32C checksum = new CRC32C();
+            private final Set<String> known = new HashSet<>();
+            private final Map<String, Mailbox> mailboxes = new HashMap<>();
+            // Deposits waiting for the flusher, in file order.
+            private final ArrayDeque<Deposit> unsynced = new ArrayDeque<>();
+            private FileChannel channel;
+            private long end;
+            private long synced;
+            private long nextSequence = 1;
+            // Bytes of USER records and of messages still waiting.
+            private long liveBytes;
+
+            // Where one recipient's waiting messages are in the file, oldest first.
+            // Every message also gets a sequence number, unique in the store, that deliveries refer to it by.
+            private static final class Mailbox {
+                long[] offsets = new long[4];
+                int[] lengths = new int[4];
+                long[] sequences = new long[4];
+                int count;
+                // The newest message handed out by take() and not yet confirmed.
+                long handedOut;
+
+                void add(long offset, int length, long sequence) {
+                    if (count == offsets.length) {
+                        offsets = Arrays.copyOf(offsets, count * 2);
+                        lengths = Arrays.copyOf(lengths, count * 2);
+                        sequences = Arrays.copyOf(sequences, count * 2);
+                    }
+                    offsets[count] = offset;
+                    lengths[count] = length;
+                    sequences[count++] = sequence;
+                }
+
+                // Removes the oldest n messages and returns how many bytes they took in the file.
+                long drop(int n) {
+                    long bytes = 0;
+                    for (int i = 0; i < n; i++) {
+                        bytes += lengths[i];
+                    }
+                    count -= n;
+                    System.arraycopy(offsets, n, offsets, 0, count);
+                    System.arraycopy(lengths, n, lengths, 0, count);
+                    System.arraycopy(sequences, n, sequences, 0, count);
+                    return bytes;
+                }
+            }
+
+            // Messages handed out by take(); last is the sequence number to pass to delivered().
+            static final class Delivery {
+                final List<String> messages;
+                final long last;
+
+                Delivery(List<String> messages, long last) {
+                    this.messages = messages;
+                    this.last = last;
+                }
+            }
+
+            private static final class Deposit {
+                final long end;
+                final Consumer<Boolean> done;
+
+                Deposit(long end, Consumer<Boolean> done) {
+                    this.end = end;
+                    this.done = done;
+                }
+            }
+
+            MailboxStore(Path directory, int maxPerUser) {
+                this.file = directory.resolve("mailboxes.log");
+                this.maxPerUser = maxPerUser;
+            }
+
+            // Rebuilds the index. A record cut short by a crash fails its checksum and, as nothing valid can follow
+            // it, is cut off the file. A bad record with valid ones behind it is damage to messages already stored, so
+            // the store refuses to open rather than throw them away.
+            void open() throws IOException {
+                Files.createDirectories(file.getParent());
+                channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                long size = channel.size();
+                long position = 0;
+                ByteBuffer record;
+                while ((record = readRecord(position, size)) != null) {
+                    apply(record, position, HEADER + record.limit());
+                    position += HEADER + record.limit();
+                }
+                if (position < size) {
+                    for (long next = position + 1; next + HEADER <= size; next++) {
+                        if (readRecord(next, size) != null) {
+                            channel.close();
+                            throw new IOException("Damaged record at offset " + position + " of " + file
+                                    + " with stored messages after it");
+                        }
+                    }
+                    System.err.println("Dropping " + (size - position) + " damaged bytes at the end of " + file + ".");
+                    channel.truncate(position);
+                }
+                end = position;
+                compactIfWasteful();
+                synced = end;
+                Thread flusher = new Thread(this::flushLoop, "mailbox-flush");
+                flusher.setDaemon(true);
+                flusher.start();
+            }
+
+            // The record at position, flipped for reading, or null if there is no intact record there.
+            private ByteBuffer readRecord(long position, long size) throws IOException {
+                if (position + HEADER > size) {
+                    return null;
+                }
+                ByteBuffer header = ByteBuffer.allocate(HEADER);
+                readFully(header, position);
+                int length = header.getInt(0);
+                if (length < 3 || length > size - position - HEADER) {
+                    return null;
+                }
+                ByteBuffer record = ByteBuffer.allocate(length);
+                readFully(record, position + HEADER);
+                record.flip();
+                checksum.reset();
+                checksum.update(record.array(), 0, length);
+                return (int) checksum.getValue() == header.getInt(4) ? record : null;
+            }
+
+            // private void apply(ByteBuffer record, long offset, int length)
+            private void apply(ByteBuffer record, long offset, int length) {
+                byte kind = record.get();
+                String name = Protocol.getString(record);
+                if (kind == USER) {
+                    known.add(name);
+                    liveBytes += length;
+                } else if (kind == MESSAGE) {
+                    mailboxes.computeIfAbsent(name, key -> new Mailbox()).add(offset, length, nextSequence++);
+                    liveBytes += length;
+                } else if (kind == DELIVERED) {
+                    Mailbox mailbox = mailboxes.get(name);
+                    if (mailbox != null) {
+                        liveBytes -= mailbox.drop((int) Math.min(record.getLong(), mailbox.count));
+                        if (mailbox.count == 0) {
+                            mailboxes.remove(name);
+                        }
+                    }
+                }
+            }
+
+            boolean isKnown(String name) {
+                lock.lock();
+                try {
+                    return known.contains(name);
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            void remember(String name) {
+                lock.lock();
+                try {
+                    if (known.add(name)) {
+                        liveBytes += append(USER, name, new byte[0]);
+                    }
+                } catch (IOException e) {
+                    known.remove(name);
+                    System.err.println("Could not record user " + name + ": " + e.getMessage());
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            // Calls done with true on the flusher thread once the message is on disk. A full mailbox, or a message
+            // that could not be written, gets false straight away on the caller's thread.
+            void deposit(String recipient, String message, Consumer<Boolean> done) {
+                lock.lock();
+                try {
+                    Mailbox mailbox = mailboxes.get(recipient);
+                    if (mailbox == null || mailbox.count < maxPerUser) {
+                        long offset = end;
+                        int length = append(MESSAGE, recipient, message.getBytes(StandardCharsets.UTF_8));
+                        mailboxes.computeIfAbsent(recipient, key -> new Mailbox()).add(offset, length, nextSequence++);
+                        liveBytes += length;
+                        unsynced.add(new Deposit(end, done));
+                        return;
+                    }
+                } catch (IOException e) {
+                    System.err.println("Could not store a message for " + recipient + ": " + e.getMessage());
+                } finally {
+                    lock.unlock();
+                }
+                done.accept(false);
+            }
+
+            // The recipient's messages not handed out yet, oldest first, or null if there are none. With again, those
+            // handed out before and never confirmed are included too. They all stay stored until delivered() is called.
+            Delivery take(String recipient, boolean again) {
+                lock.lock();
+                try {
+                    Mailbox mailbox = mailboxes.get(recipient);
+                    if (mailbox == null) {
+                        return null;
+                    }
+                    int first = 0;
+                    while (!again && first < mailbox.count && mailbox.sequences[first] <= mailbox.handedOut) {
+                        first++;
+                    }
+                    if (first == mailbox.count) {
+                        return null;
+                    }
+                    List<String> messages = new ArrayList<>(mailbox.count - first);
+                    for (int i = first; i < mailbox.count; i++) {
+                        ByteBuffer record = ByteBuffer.allocate(mailbox.lengths[i] - HEADER);
+                        readFully(record, mailbox.offsets[i] + HEADER);
+                        record.flip().position(1);
+                        Protocol.getString(record);
+                        messages.add(Protocol.getText(record));
+                    }
+                    mailbox.handedOut = mailbox.sequences[mailbox.count - 1];
+                    return new Delivery(messages, mailbox.handedOut);
+                } catch (IOException e) {
+                    System.err.println("Could not read the messages for " + recipient + ": " + e.getMessage());
+                    return null;
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            // Drops the recipient's messages up to the delivery's last one, once they have reached the recipient.
+            void delivered(String recipient, long last) {
+                lock.lock();
+                try {
+                    Mailbox mailbox = mailboxes.get(recipient);
+                    if (mailbox == null) {
+                        return;
+                    }
+                    int delivered = 0;
+                    while (delivered < mailbox.count && mailbox.sequences[delivered] <= last) {
+                        delivered++;
+                    }
+                    if (delivered == 0) {
+                        return;
+                    }
+                    append(DELIVERED, recipient, ByteBuffer.allocate(8).putLong(delivered).array());
+                    liveBytes -= mailbox.drop(delivered);
+                    if (mailbox.count == 0) {
+                        mailboxes.remove(recipient);
+                    }
+                } catch (IOException e) {
+                    System.err.println("Could not mark the messages for " + recipient + " delivered: " + e.getMessage());
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            // Returns the record's length on disk. Called with the lock held; the flusher syncs it later.
+            private int append(byte kind, String name, byte[] payload) throws IOException {
+                byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+                int length = 1 + 2 + nameBytes.length + payload.length;
+                ByteBuffer record = ByteBuffer.allocate(HEADER + length);
+                record.putInt(length).putInt(0).put(kind).putShort((short) nameBytes.length).put(nameBytes).put(payload);
+                checksum.reset();
+                checksum.update(record.array(), HEADER, length);
+                record.putInt(4, (int) checksum.getValue()).flip();
+                long position = end;
+                while (record.hasRemaining()) {
+                    position += channel.write(record, position);
+                }
+                end = position;
+                appended.signal();
+                return HEADER + length;
+            }
+
+            // Group commit: each pass syncs everything appended since the last one, outside the lock, then answers
+            // the deposits it covered. Deposits made during a sync share the next one. Compaction runs here too, only
+            // when nothing is waiting, so the file offsets of waiting deposits never change under them.
+            private void flushLoop() {
+                try {
+                    while (true) {
+                        FileChannel target;
+                        long upTo;
+                        lock.lock();
+                        try {
+                            while (end == synced) {
+                                appended.await();
+                            }
+                            target = channel;
+                            upTo = end;
+                        } finally {
+                            lock.unlock();
+                        }
+                        boolean stored = true;
+                        try {
+                            target.force(false);
+                        } catch (IOException e) {
+                            System.err.println("Could not sync " + file + ": " + e.getMessage());
+                            stored = false;
+                        }
+                        List<Deposit> done = new ArrayList<>();
+                        lock.lock();
+                        try {
+                            synced = upTo;
+                            while (!unsynced.isEmpty() && unsynced.peek().end <= upTo) {
+                                done.add(unsynced.poll());
+                            }
+                            if (unsynced.isEmpty() && end == synced) {
+                                compactIfWasteful();
+                                synced = end;
+                            }
+                        } catch (IOException e) {
+                            System.err.println("Could not compact " + file + ": " + e.getMessage());
+                        } finally {
+                            lock.unlock();
+                        }
+                        for (Deposit deposit : done) {
+                            try {
+                                deposit.done.accept(stored);
+                            } catch (RuntimeException e) {
+                                System.err.println("Mailbox callback failed: " + e);
+                            }
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            // Rewrites the file with only the USER records and the waiting messages, then swaps it in.
+            private void compactIfWasteful() throws IOException {
+                if (end - liveBytes < COMPACT_BYTES || end < 2 * liveBytes) {
+                    return;
+                }
+                Path compacted = file.resolveSibling("mailboxes.log.tmp");
+                FileChannel previous = channel;
+                long previousEnd = end;
+                Map<String, Mailbox> moved = new HashMap<>();
+                channel = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+                end = 0;
+                try {
+                    for (String name : known) {
+                        append(USER, name, new byte[0]);
+                    }
+                    for (Map.Entry<String, Mailbox> entry : mailboxes.entrySet()) {
+                        Mailbox mailbox = entry.getValue();
+                        Mailbox copy = new Mailbox();
+                        copy.handedOut = mailbox.handedOut;
+                        for (int i = 0; i < mailbox.count; i++) {
+                            ByteBuffer record = ByteBuffer.allocate(mailbox.lengths[i]);
+                            while (record.hasRemaining()) {
+                                if (previous.read(record, mailbox.offsets[i] + record.position()) < 0) {
+                                    throw new EOFException("Mailbox file is shorter than its index");
+                                }
+                            }
+                            record.flip();
+                            copy.add(end, record.remaining(), mailbox.sequences[i]);
+                            while (record.hasRemaining()) {
+                                end += channel.write(record, end);
+                            }
+                        }
+                        moved.put(entry.getKey(), copy);
+                    }
+                    channel.force(false);
+                    Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e) {
+                    channel.close();
+                    channel = previous;
+                    end = previousEnd;
+                    throw e;
+                }
+                previous.close();
+                mailboxes.clear();
+                mailboxes.putAll(moved);
+                liveBytes = end;
+            }
+
+            // private void readFully(ByteBuffer buffer, long position)
+            private void readFully(ByteBuffer buffer, long position) throws IOException {
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position()) < 0) {
+                        throw new EOFException("Mailbox file is shorter than its index");
+                    }
+                }
+            }
+        }
+
+        // Pushes a stored file to line clients, which cannot pull. Each recipient gets as much as its queue has room
+        // for, so one slow client does not hold up the others.
+        private class LinePush implements Runnable {
+            private final int id;
+            private final String fileName;
+            private final FileChannel file;
+            private final Peer[] recipients;
+            // Bytes each recipient has been sent, or -1 once it is done with the file.
+            private final long[] delivered;
+            private long lastProgress = System.currentTimeMillis();
+
+            LinePush(int id, String fileName, FileChannel file, Peer[] recipients) {
+                this.id = id;
+                this.fileName = fileName;
+                this.file = file;
+                this.recipients = recipients;
+                this.delivered = new long[recipients.length];
+            }
+
+            @Override
+            public void run() {
+                boolean aborted = false;
+                try {
+                    long size = file.size();
+                    OutboundMessage announcement = OutboundMessage.fileStart(id, fileName, size);
+                    for (Peer recipient : recipients) {
+                        recipient.send(announcement);
+                    }
+                    while (push(size)) {
+                        if (System.currentTimeMillis() - lastProgress > transferTimeoutMillis) {
+                            System.err.println("Sending " + fileName + " to line clients stalled, giving up.");
+                            aborted = true;
+                            break;
+                        }
+                        Thread.sleep(PUMP_INTERVAL_MILLIS);
+                    }
+                } catch (IOException e) {
+                    System.err.println("Could not read stored file " + fileName + ": " + e.getMessage());
+                    aborted = true;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    aborted = true;
+                } finally {
+                    if (aborted) {
+                        for (int i = 0; i < recipients.length; i++) {
+                            if (delivered[i] >= 0) {
+                                recipients[i].abortTransfer(id);
+                            }
+                        }
+                    }
+                    try {
+                        file.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+
+            // Sends every recipient what it has room for; returns false once all of them are done.
+            private boolean push(long size) throws IOException {
+                int window = pullWindow();
+                Map<Long, ByteBuffer> chunks = new HashMap<>();
+                boolean pending = false;
+                for (int i = 0; i < recipients.length; i++) {
+                    Peer recipient = recipients[i];
+                    if (delivered[i] < 0) {
+                        continue;
+                    }
+                    if (!recipient.isOpen()) {
+                        delivered[i] = -1;
+                        continue;
+                    }
+                    while (delivered[i] < size && recipient.backlog() < window) {
+                        ByteBuffer chunk = chunks.get(delivered[i]);
+                        if (chunk == null) {
+                            chunk = readChunk(file, id, delivered[i], size);
+                            chunks.put(delivered[i], chunk);
+                        }
+                        recipient.sendChunk(chunk, id);
+                        delivered[i] += chunk.limit() - Protocol.FILE_CHUNK_HEADER_LENGTH;
+                        metrics.fileBytesOut.add(chunk.limit() - Protocol.FILE_CHUNK_HEADER_LENGTH);
+                        lastProgress = System.currentTimeMillis();
+                    }
+                    if (delivered[i] == size) {
+                        recipient.send(OutboundMessage.fileEnd(id));
+                        delivered[i] = -1;
+                    } else {
+                        pending = true;
+                    }
+                }
+                return pending;
+            }
+        }
+
+        // Chunks one client may have queued for a single pull or push step.
+        private int pullWindow() {
+            return Math.max(1, Math.min(PUMP_WINDOW, queueCapacity / 2));
+        }
+
+        // Reads one chunk straight into a frame that may be shared by every recipient at this offset.
+        private static ByteBuffer readChunk(FileChannel file, int transferId, long offset, long end) throws IOException {
+            int length = (int) Math.min(Protocol.FILE_CHUNK_SIZE, end - offset);
+            ByteBuffer frame = ByteBuffer.allocate(Protocol.FILE_CHUNK_HEADER_LENGTH + length);
+            frame.position(Protocol.FILE_CHUNK_HEADER_LENGTH);
+            while (frame.hasRemaining()) {
+                if (file.read(frame, offset + frame.position() - Protocol.FILE_CHUNK_HEADER_LENGTH) < 0) {
+                    throw new EOFException("Stored file is shorter than expected");
+                }
+            }
+            return Protocol.chunkFrame(frame, transferId, offset);
+        }
+
+        // private static MessageDigest sha256()
+        private static MessageDigest sha256() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 is not available", e);
+            }
+        }
+
+        // private static String toHex(byte[] bytes)
+        private static String toHex(byte[] bytes) {
+            StringBuilder hex = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        }
+
+        // private static int readInt(byte[] bytes, int offset)
+        private static int readInt(byte[] bytes, int offset) {
+            return (bytes[offset] & 0xFF) << 24 | (bytes[offset + 1] & 0xFF) << 16
+                    | (bytes[offset + 2] & 0xFF) << 8 | (bytes[offset + 3] & 0xFF);
+        }
+
+        // private static long readLong(byte[] bytes, int offset)
+        private static long readLong(byte[] bytes, int offset) {
+            return (long) readInt(bytes, offset) << 32 | readInt(bytes, offset + 4) & 0xFFFFFFFFL;
+        }
+
+        // private void broadcastMessage(String message, boolean isSystemMessage)
+        private void broadcastMessage(String message, boolean isSystemMessage) {
+            Protocol.FrameType type = isSystemMessage ? Protocol.FrameType.SYSTEM : Protocol.FrameType.CHAT;
+            OutboundMessage payload = OutboundMessage.stamped(type, CLOCK.now(), isSystemMessage, message);
+            if (echoMessages) {
+                System.out.println("Broadcasting: " + payload.text());
+            }
+            deliverLocally(payload);
+            if (cluster != null) {
+                cluster.relayBroadcast(type, payload.text());
+            }
+        }
+
+        // private void deliverLocally(Protocol.FrameType type, String formattedMessage)
+        private void deliverLocally(Protocol.FrameType type, String formattedMessage) {
+            deliverLocally(OutboundMessage.text(type, formattedMessage));
+        }
+
+        // private void deliverLocally(OutboundMessage payload)
+        private void deliverLocally(OutboundMessage payload) {
+            if (history != null) {
+                history.append(payload.type, payload.text());
+            }
+            // Encoded once per wire format; every recipient queues a view of the same bytes.
+            long start = System.nanoTime();
+            for (Peer writer : presence.peers()) {
+                writer.send(payload);
+            }
+            metrics.fanout.record(System.nanoTime() - start);
+        }
+
+        // private void roomMessage(String room, Protocol.FrameType type, String formattedMessage)
+        private void roomMessage(String room, Protocol.FrameType type, String formattedMessage) {
+            deliverToRoom(room, type, formattedMessage);
+            if (cluster != null) {
+                cluster.relayRoom(room, type, formattedMessage);
+            }
+        }
+
+        // private void deliverToRoom(String room, Protocol.FrameType type, String formattedMessage)
+        private void deliverToRoom(String room, Protocol.FrameType type, String formattedMessage) {
+            Room target = rooms.get(room);
+            if (target == null) {
+                return;
+            }
+            OutboundMessage payload = OutboundMessage.text(type, formattedMessage);
+            for (Peer member : target.members) {
+                member.send(payload);
+            }
+        }
+
+        // private void listAllUsers(String requestingUser)
+        private void listAllUsers(String requestingUser) {
+            Peer requester = presence.get(requestingUser);
+            if (requester != null) {
+                requester.send(OutboundMessage.text(Protocol.FrameType.SYSTEM, formatMessage("Current users: " + presence.roster(), true)));
+            }
+        }
+
+        // private String formatMessage(String message, boolean isSystemMessage)
+        private String formatMessage(String message, boolean isSystemMessage) {
+            return CLOCK.now().text(isSystemMessage) + message;
+        }
+
+        // Joins this server to other ChatServer processes. Every node keeps one TCP link to every other node, relays
+        // its broadcasts over all of them and knows which node each remote user is connected to, so a private message
+        // travels over exactly one link. Links carry frames shaped like client frames: [int length][byte type][body].
+        // Files stay in the store of the node they were uploaded to.
+        private class Cluster {
+            private static final int LINK_QUEUE_CAPACITY = 65536;
+            private static final long REDIAL_MILLIS = 2000;
+            private final String nodeId = ManagementFactory.getRuntimeMXBean().getName();
+            private final int port;
+            private final List<InetSocketAddress> seeds = new ArrayList<>();
+            private final ConcurrentHashMap<String, Link> links = new ConcurrentHashMap<>();
+            // Remote user name to the id of the node it is connected to.
+            private final ConcurrentHashMap<String, String> routes = new ConcurrentHashMap<>();
+
+            enum LinkFrame {
+                // [node id]
+                HELLO(1),
+                // [user name]
+                JOINED(2),
+                // [user name]
+                LEFT(3),
+                // [byte client frame type][formatted text]
+                BROADCAST(4),
+                // [recipient][formatted text]
+                PRIVATE(5),
+                // [room][byte client frame type][formatted text]
+                ROOM(6);
+
+                final byte code;
+
+                LinkFrame(int code) {
+                    this.code = (byte) code;
+                }
+
+                static LinkFrame fromCode(byte code) {
+                    for (LinkFrame type : values()) {
+                        if (type.code == code) {
+                            return type;
+                        }
+                    }
+                    return null;
+                }
+            }
+
+            Cluster(int port, String peers) {
+                this.port = port;
+                for (String peer : peers.split(",")) {
+                    String address = peer.trim();
+                    if (!address.isEmpty()) {
+                        int colon = address.lastIndexOf(':');
+                        seeds.add(new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1))));
+                    }
+                }
+            }
+
+            void start() {
+                System.out.println("Cluster node " + nodeId + " listening for other nodes on port " + port + ".");
+                startThread(this::accept, "cluster-accept");
+                for (InetSocketAddress seed : seeds) {
+                    startThread(() -> dial(seed), "cluster-dial-" + seed.getPort());
+                }
+            }
+
+            boolean isRemoteUser(String name) {
+                return routes.containsKey(name);
+            }
+
+            void userJoined(String name) {
+                sendToAll(frame(LinkFrame.JOINED, name.getBytes(StandardCharsets.UTF_8)));
+            }
+
+            void userLeft(String name) {
+                sendToAll(frame(LinkFrame.LEFT, name.getBytes(StandardCharsets.UTF_8)));
+            }
+
+            void relayBroadcast(Protocol.FrameType type, String formattedMessage) {
+                byte[] text = formattedMessage.getBytes(StandardCharsets.UTF_8);
+                sendToAll(frame(LinkFrame.BROADCAST, ByteBuffer.allocate(1 + text.length).put(type.code).put(text).array()));
+            }
+
+            // Every node gets room messages; each one delivers them to its own members of the room, if it has any.
+            void relayRoom(String room, Protocol.FrameType type, String formattedMessage) {
+                byte[] name = room.getBytes(StandardCharsets.UTF_8);
+                byte[] text = formattedMessage.getBytes(StandardCharsets.UTF_8);
+                sendToAll(frame(LinkFrame.ROOM, ByteBuffer.allocate(3 + name.length + text.length)
+                        .putShort((short) name.length).put(name).put(type.code).put(text).array()));
+            }
+
+            // Returns false when no node has the recipient.
+            boolean sendPrivate(String recipientName, String formattedMessage) {
+                String owner = routes.get(recipientName);
+                Link link = owner == null ? null : links.get(owner);
+                if (link == null) {
+                    return false;
+                }
+                byte[] recipient = recipientName.getBytes(StandardCharsets.UTF_8);
+                byte[] text = formattedMessage.getBytes(StandardCharsets.UTF_8);
+                link.send(frame(LinkFrame.PRIVATE, ByteBuffer.allocate(2 + recipient.length + text.length)
+                        .putShort((short) recipient.length).put(recipient).put(text).array()));
+                return true;
+            }
+
+            // private void sendToAll(ByteBuffer frame)
+            private void sendToAll(ByteBuffer frame) {
+                for (Link link : links.values()) {
+                    link.send(frame.duplicate());
+                }
+            }
+
+            // private void accept()
+            private void accept() {
+                try (ServerSocket listener = new ServerSocket(port)) {
+                    while (true) {
+                        Socket socket = listener.accept();
+                        startThread(() -> new Link(socket, false).run(), "cluster-link");
+                    }
+                } catch (IOException e) {
+                    System.err.println("Cluster listener error: " + e.getMessage());
+                }
+            }
+
+            // Keeps a link to one seed address, redialling whenever it drops. A seed that turns out to be a node we
+            // are already linked to the other way is left alone until that link goes away.
+            private void dial(InetSocketAddress address) {
+                String knownId = null;
+                while (true) {
+                    if (knownId == null || !links.containsKey(knownId)) {
+                        try {
+                            Link link = new Link(new Socket(address.getHostString(), address.getPort()), true);
+                            link.run();
+                            knownId = link.remoteId;
+                        } catch (IOException e) {
+                            // not up yet
+                        }
+                    }
+                    try {
+                        Thread.sleep(REDIAL_MILLIS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+
+            // Two nodes that dial each other end up with two links. Both sides keep the one dialled by the node with
+            // the smaller id, so they agree without talking about it.
+            private boolean register(Link link) {
+                Link existing = links.putIfAbsent(link.remoteId, link);
+                if (existing == null) {
+                    return true;
+                }
+                String dialer = link.outbound ? nodeId : link.remoteId;
+                if (dialer.compareTo(existing.outbound ? nodeId : link.remoteId) < 0 && links.replace(link.remoteId, existing, link)) {
+                    existing.close();
+                    return true;
+                }
+                return false;
+            }
+
+            // private void onLinkDown(Link link)
+            private void onLinkDown(Link link) {
+                if (link.remoteId == null || !links.remove(link.remoteId, link)) {
+                    return;
+                }
+                System.out.println("Lost cluster node " + link.remoteId + ".");
+                for (Map.Entry<String, String> route : routes.entrySet()) {
+                    if (route.getValue().equals(link.remoteId) && dropRoute(route.getKey(), link.remoteId)) {
+                        if (presenceNotices) {
+                            deliverLocally(Protocol.FrameType.SYSTEM, formatMessage(route.getKey() + " has left the chat.", true));
+                        }
+                    }
+                }
+            }
+
+            // The roster is updated inside the route's own update, so it always lists the names that have a route.
+            private void addRoute(String name, String remoteId) {
+                routes.compute(name, (key, current) -> {
+                    presence.remoteJoined(key);
+                    return remoteId;
+                });
+            }
+
+            // Drops the route only if it still leads to that node; returns whether it did.
+            private boolean dropRoute(String name, String remoteId) {
+                boolean[] dropped = new boolean[1];
+                routes.computeIfPresent(name, (key, current) -> {
+                    if (!current.equals(remoteId)) {
+                        return current;
+                    }
+                    presence.remoteLeft(key);
+                    dropped[0] = true;
+                    return null;
+                });
+                return dropped[0];
+            }
+
+            // A name taken on two nodes at once: the node with the smaller id keeps its user, the other one drops its own.
+            private void onJoined(Link link, String name) {
+                Peer local = presence.get(name);
+                if (local == null) {
+                    addRoute(name, link.remoteId);
+                } else if (nodeId.compareTo(link.remoteId) > 0) {
+                    addRoute(name, link.remoteId);
+                    local.send(OutboundMessage.text(Protocol.FrameType.SYSTEM,
+                            formatMessage("ERROR The name '" + name + "' is already in use on another server.", true)));
+                    local.disconnect("name " + name + " taken on node " + link.remoteId);
+                }
+            }
+
+            // private void onFrame(Link link, LinkFrame type, ByteBuffer body)
+            private void onFrame(Link link, LinkFrame type, ByteBuffer body) {
+                switch (type) {
+                    case JOINED:
+                        onJoined(link, Protocol.getText(body));
+                        break;
+                    case LEFT:
+                        dropRoute(Protocol.getText(body), link.remoteId);
+                        break;
+                    case BROADCAST:
+                        Protocol.FrameType messageType = Protocol.FrameType.fromCode(body.get());
+                        deliverLocally(messageType == Protocol.FrameType.SYSTEM ? messageType : Protocol.FrameType.CHAT, Protocol.getText(body));
+                        break;
+                    case PRIVATE:
+                        Peer recipient = presence.get(Protocol.getString(body));
+                        if (recipient != null) {
+                            recipient.send(OutboundMessage.text(Protocol.FrameType.PRIVATE, Protocol.getText(body)));
+                        }
+                        break;
+                    case ROOM:
+                        String room = Protocol.getString(body);
+                        Protocol.FrameType roomType = Protocol.FrameType.fromCode(body.get());
+                        deliverToRoom(room, roomType == Protocol.FrameType.SYSTEM ? roomType : Protocol.FrameType.CHAT, Protocol.getText(body));
+                        break;
+                    default:
+                        break;
+                }
+            }
+
+            // private ByteBuffer frame(LinkFrame type, byte[] body)
+            private ByteBuffer frame(LinkFrame type, byte[] body) {
+                ByteBuffer frame = ByteBuffer.allocate(Protocol.HEADER_LENGTH + body.length);
+                frame.putInt(body.length + 1).put(type.code).put(body).flip();
+                return frame;
+            }
+
+            // private void startThread(Runnable task, String name)
+            private void startThread(Runnable task, String name) {
+                Thread thread = new Thread(task, name);
+                thread.setDaemon(true);
+                thread.start();
+            }
+
+            // One link to another node. run() reads on the calling thread; a writer thread drains the outbound queue.
+            // A link that falls too far behind is dropped and re-established, which also resends presence.
+            private class Link {
+                private final Socket socket;
+                private final boolean outbound;
+                private final OutboundQueue queue = new OutboundQueue(LINK_QUEUE_CAPACITY, OverflowPolicy.DISCONNECT);
+                private volatile String remoteId;
+
+                Link(Socket socket, boolean outbound) {
+                    this.socket = socket;
+                    this.outbound = outbound;
+                }
+
+                void run() {
+                    try {
+                        socket.setTcpNoDelay(true);
+                        OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+                        startThread(() -> drain(out), "cluster-writer");
+                        send(frame(LinkFrame.HELLO, nodeId.getBytes(StandardCharsets.UTF_8)));
+
+                        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                        byte[] body = new byte[256];
+                        while (true) {
+                            int length = in.readInt();
+                            if (length < 1 || length > Protocol.MAX_FRAME_LENGTH) {
+                                throw new ProtocolException("Invalid cluster frame length " + length);
+                            }
+                            LinkFrame type = LinkFrame.fromCode(in.readByte());
+                            if (body.length < length - 1) {
+                                body = new byte[length - 1];
+                            }
+                            in.readFully(body, 0, length - 1);
+                            ByteBuffer frameBody = ByteBuffer.wrap(body, 0, length - 1);
+                            if (remoteId == null) {
+                                if (type != LinkFrame.HELLO || !hello(Protocol.getText(frameBody))) {
+                                    return;
+                                }
+                            } else if (type != null) {
+                                onFrame(this, type, frameBody);
+                            }
+                        }
+                    } catch (IOException e) {
+                        if (remoteId != null && !queue.isClosed()) {
+                            System.err.println("Cluster link to " + remoteId + " failed: " + e.getMessage());
+                        }
+                    } finally {
+                        close();
+                        onLinkDown(this);
+                    }
+                }
+
+                // private boolean hello(String id)
+                private boolean hello(String id) {
+                    if (id.equals(nodeId)) {
+                        return false;
+                    }
+                    remoteId = id;
+                    if (!register(this)) {
+                        return false;
+                    }
+                    System.out.println("Linked to cluster node " + id + ".");
+                    for (String user : presence.names()) {
+                        send(frame(LinkFrame.JOINED, user.getBytes(StandardCharsets.UTF_8)));
+                    }
+                    return true;
+                }
+
+                void send(ByteBuffer frame) {
+                    if (!queue.offer(frame, true)) {
+                        System.err.println("Cluster link to " + remoteId + " is backed up, reconnecting.");
+                        close();
+                    }
+                }
+
+                // private void drain(OutputStream out)
+                private void drain(OutputStream out) {
+                    try {
+                        ByteBuffer data;
+                        while ((data = queue.take()) != null) {
+                            out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+                            if (queue.depth() == 0) {
+                                out.flush();
+                            }
+                        }
+                    } catch (IOException e) {
+                        close();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+
+                void close() {
+                    queue.close();
+                    try {
+                        socket.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+
+        private class Handler implements Runnable {
+            private Socket socket;
+            private OutputStream out;
+            private Session session;
+
+            public Handler(Socket socket) {
+                this.socket = socket;
+            }
+
+            public void run() {
+                StreamPeer peer = null;
+                try {
+                    InputStream in = socket.getInputStream();
+                    out = socket.getOutputStream();
+                    peer = new StreamPeer();
+                    spawn(peer::drain);
+                    session = new Session(peer);
+                    session.open();
+
+                    byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+                    ByteBuffer view = ByteBuffer.wrap(buffer);
+                    int count;
+                    while ((count = in.read(buffer)) != -1) {
+                        view.clear().limit(count);
+                        long pause;
+                        while ((pause = session.onBytes(view)) > 0) {
+                            // Not reading is the backpressure: the socket buffers fill up and the client's writes block.
+                            TimeUnit.NANOSECONDS.sleep(pause);
+                        }
+                    }
+                } catch (IOException e) {
+                    System.err.println("Handler error for " + (session == null ? null : session.userName) + ": " + e.getMessage());
+                    metrics.errors.increment();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    closeSocket();
+                    if (peer != null) {
+                        peer.outbound.close();
+                    }
+                    if (session != null) {
+                        session.close();
+                    }
+                }
+            }
+
+            // private void closeSocket()
+            private void closeSocket() {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    System.err.println("Could not close socket: " + e.getMessage());
+                }
+            }
+
+            // Senders only enqueue; drain() runs on its own (virtual or platform) thread and is the only socket writer.
+            private class StreamPeer extends Peer {
+                private final OutboundQueue outbound = new OutboundQueue(queueCapacity, overflowPolicy);
+                // For copying direct buffers, which have no array to write from.
+                private byte[] scratch;
+
+                @Override
+                WireFormat format() {
+                    return session.format;
+                }
+
+                @Override
+                int queueDepth() {
+                    return outbound.depth();
+                }
+
+                @Override
+                void enqueue(ByteBuffer data, boolean required) {
+                    if (!outbound.offer(data, required)) {
+                        disconnect("slow consumer, queue depth " + outbound.depth());
+                    }
+                }
+
+                @Override
+                void disconnect(String reason) {
+                    System.err.println("Disconnecting " + session.userName + ": " + reason + ".");
+                    outbound.close();
+                    closeSocket();
+                }
+
+                @Override
+                boolean isOpen() {
+                    return !outbound.isClosed();
+                }
+
+                // A message that arrives while the previous write is less than a batch window old means the
+                // connection is busy: the writer then lets the window or byte budget fill and copies everything into
+                // one write. After a quiet spell the first message goes out at once.
+                void drain() {
+                    ByteBuffer[] batch = new ByteBuffer[GATHER_LIMIT];
+                    long[] queuedAt = new long[GATHER_LIMIT];
+                    byte[] combined = null;
+                    long lastWrite = System.nanoTime() - batchLatencyNanos;
+                    try {
+                        while (outbound.awaitData()) {
+                            long oldest = outbound.headEnqueuedAt();
+                            if (batchLatencyNanos > 0 && oldest - lastWrite < batchLatencyNanos) {
+                                outbound.awaitBatch(batchBytes, oldest + batchLatencyNanos);
+                            }
+                            int drained = outbound.drainTo(batch, queuedAt, batchBytes);
+                            int count = deflateBatch(batch, drained, compressionLevel);
+                            int writes = 0;
+                            int filled = 0;
+                            for (int i = 0; i < count; i++) {
+                                ByteBuffer data = batch[i];
+                                if (count > 1 && data.remaining() <= batchBytes - filled) {
+                                    if (combined == null) {
+                                        combined = new byte[batchBytes];
+                                    }
+                                    int length = data.remaining();
+                                    data.get(combined, filled, length);
+                                    filled += length;
+                                    continue;
+                                }
+                                if (filled > 0) {
+                                    out.write(combined, 0, filled);
+                                    writes++;
+                                    filled = 0;
+                                }
+                                writes += write(data);
+                            }
+                            if (filled > 0) {
+                                out.write(combined, 0, filled);
+                                writes++;
+                            }
+                            for (int i = 0; i < count; i++) {
+                                if (batch[i].capacity() == 0) {
+                                    written(batch[i]);
+                                }
+                                batch[i] = null;
+                            }
+                            lastWrite = System.nanoTime();
+                            writeStats.written(queuedAt, drained, lastWrite);
+                            writeStats.writeCalls(writes);
+                        }
+                    } catch (IOException e) {
+                        System.err.println("Write error: " + e.getMessage());
+                        metrics.errors.increment();
+                        outbound.close();
+                        closeSocket();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        releaseCompressor();
+                    }
+                }
+
+                // Returns the number of write calls made.
+                private int write(ByteBuffer data) throws IOException {
+                    if (data.hasArray()) {
+                        out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+                        return 1;
+                    }
+                    if (scratch == null) {
+                        scratch = new byte[STREAM_BUFFER_SIZE];
+                    }
+                    int writes = 0;
+                    while (data.hasRemaining()) {
+                        int count = Math.min(scratch.length, data.remaining());
+                        data.get(scratch, 0, count);
+                        out.write(scratch, 0, count);
+                        writes++;
+                    }
+                    return writes;
+                }
+            }
+        }
+
+        // Accepts on the calling thread and spreads the accepted channels round-robin over a fixed set of selector loops.
+        private class NioServer {
+            private final IoLoop[] loops;
+
+            NioServer(int loopCount) {
+                loops = new IoLoop[Math.max(1, loopCount)];
+            }
+
+            void run() {
+                try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+                    listener.bind(new InetSocketAddress(PORT));
+                    for (int i = 0; i < loops.length; i++) {
+                        loops[i] = new IoLoop();
+                        Thread thread = new Thread(loops[i], "chat-io-" + i);
+                        thread.setDaemon(true);
+                        thread.start();
+                    }
+                    int next = 0;
+                    while (true) {
+                        SocketChannel channel = listener.accept();
+                        loops[next].adopt(channel);
+                        next = (next + 1) % loops.length;
+                    }
+                } catch (IOException e) {
+                    System.err.println("Server error: " + e.getMessage());
+                }
+            }
+        }
+
+        private static final class DeferredTask {
+            final Runnable task;
+            final long at;
+
+            DeferredTask(Runnable task, long at) {
+                this.task = task;
+                this.at = at;
+            }
+        }
+
+        private class IoLoop implements Runnable {
+            private final Selector selector;
+            private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+            // Shared by every channel on this loop: sessions consume the bytes before the next read.
+            private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            // Flushes held back for batching and reads paused by rate limits, soonest first. Only the loop thread touches it.
+            private final PriorityQueue<DeferredTask> deferred = new PriorityQueue<>((a, b) -> Long.compare(a.at - b.at, 0));
+
+            IoLoop() throws IOException {
+                selector = Selector.open();
+            }
+
+            void adopt(SocketChannel channel) {
+                execute(() -> {
+                    try {
+                        channel.configureBlocking(false);
+                        channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+                        ChannelPeer peer = new ChannelPeer(this, channel);
+                        peer.key = channel.register(selector, SelectionKey.OP_READ, peer);
+                        peer.session.open();
+                    } catch (IOException e) {
+                        System.err.println("Could not register client: " + e.getMessage());
+                        try {
+                            channel.close();
+                        } catch (IOException ignored) {
+                        }
+                    }
+                });
+            }
+
+            void execute(Runnable task) {
+                tasks.add(task);
+                selector.wakeup();
+            }
+
+            // Called on the loop thread.
+            void defer(Runnable task, long at) {
+                deferred.add(new DeferredTask(task, at));
+            }
+
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        DeferredTask next = deferred.peek();
+                        if (next == null) {
+                            selector.select();
+                        } else {
+                            long wait = next.at - System.nanoTime();
+                            if (wait > 0) {
+                                // select() only takes milliseconds, so deferred tasks run up to a millisecond late.
+                                selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+                            } else {
+                                selector.selectNow();
+                            }
+                        }
+                        Runnable task;
+                        while ((task = tasks.poll()) != null) {
+                            task.run();
+                        }
+                        long now = System.nanoTime();
+                        while ((next = deferred.peek()) != null && next.at - now <= 0) {
+                            deferred.poll().task.run();
+                        }
+                        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                        while (keys.hasNext()) {
+                            SelectionKey key = keys.next();
+                            keys.remove();
+                            ChannelPeer peer = (ChannelPeer) key.attachment();
+                            if (key.isValid() && key.isReadable()) {
+                                peer.read(readBuffer);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                peer.flush(false);
+                            }
+                        }
+                    } catch (IOException e) {
+                        System.err.println("I/O loop error: " + e.getMessage());
+                        metrics.errors.increment();
+                    }
+                }
+            }
+        }
+
+        // Outbound data is queued from any thread and only ever written to the channel by the owning loop.
+        private class ChannelPeer extends Peer {
+            private final IoLoop loop;
+            private final SocketChannel channel;
+            private final Session session;
+            private final OutboundQueue outbound = new OutboundQueue(queueCapacity, overflowPolicy);
+            private final AtomicBoolean flushScheduled = new AtomicBoolean();
+            // Set while a flush is held back for batching; whoever clears it runs the flush.
+            private final AtomicBoolean flushDeferred = new AtomicBoolean();
+            // Buffers taken off the queue and not yet fully written, flushed with one gathering write.
+            private final ByteBuffer[] batch = new ByteBuffer[GATHER_LIMIT];
+            private final long[] queuedAt = new long[GATHER_LIMIT];
+            private int batchStart;
+            private int batchEnd;
+            private long lastWrite = System.nanoTime() - batchLatencyNanos;
+            private SelectionKey key;
+            private boolean closed;
+            // What the session left unread when its limits paused reading; the loop's read buffer is shared.
+            private ByteBuffer unread;
+
+            ChannelPeer(IoLoop loop, SocketChannel channel) {
+                this.loop = loop;
+                this.channel = channel;
+                this.session = new Session(this);
+            }
+
+            @Override
+            WireFormat format() {
+                return session.format;
+            }
+
+            @Override
+            int queueDepth() {
+                return outbound.depth();
+            }
+
+            @Override
+            void enqueue(ByteBuffer data, boolean required) {
+                if (!outbound.offer(data, required)) {
+                    disconnect("slow consumer, queue depth " + outbound.depth());
+                    return;
+                }
+                if (flushScheduled.compareAndSet(false, true)) {
+                    loop.execute(() -> flush(true));
+                } else if (flushDeferred.get() && outbound.queuedBytes() >= batchBytes && flushDeferred.compareAndSet(true, false)) {
+                    loop.execute(() -> flush(false));
+                }
+            }
+
+            @Override
+            void disconnect(String reason) {
+                System.err.println("Disconnecting " + session.userName + ": " + reason + ".");
+                outbound.close();
+                loop.execute(this::close);
+            }
+
+            @Override
+            boolean isOpen() {
+                return !outbound.isClosed();
+            }
+
+            void read(ByteBuffer buffer) {
+                try {
+                    buffer.clear();
+                    int count = channel.read(buffer);
+                    if (count == -1) {
+                        close();
+                        return;
+                    }
+                    buffer.flip();
+                    consume(buffer);
+                } catch (IOException e) {
+                    System.err.println("Handler error for " + session.userName + ": " + e.getMessage());
+                    metrics.errors.increment();
+                    close();
+                }
+            }
+
+            // Returns true when the session's limits paused reading; the rest of data is kept for resumeReading().
+            private boolean consume(ByteBuffer data) throws IOException {
+                long pause = session.onBytes(data);
+                if (pause == 0) {
+                    return false;
+                }
+                if (data.hasRemaining()) {
+                    unread = ByteBuffer.allocate(data.remaining()).put(data).flip();
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                loop.defer(this::resumeReading, System.nanoTime() + pause);
+                return true;
+            }
+
+            // private void resumeReading()
+            private void resumeReading() {
+                if (closed) {
+                    return;
+                }
+                try {
+                    ByteBuffer data = unread;
+                    unread = null;
+                    if (data == null || !consume(data)) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                    }
+                } catch (IOException e) {
+                    System.err.println("Handler error for " + session.userName + ": " + e.getMessage());
+                    metrics.errors.increment();
+                    close();
+                }
+            }
+
+            void flushDeferred() {
+                if (flushDeferred.compareAndSet(true, false)) {
+                    flush(false);
+                }
+            }
+
+            // Same batching rule as the blocking writer: on a busy connection the first flush after new data is held
+            // back until the oldest message has waited a batch window, unless the byte budget fills first.
+            void flush(boolean mayDefer) {
+                if (closed) {
+                    return;
+                }
+                if (mayDefer && batchLatencyNanos > 0 && batchStart == batchEnd) {
+                    long oldest = outbound.headEnqueuedAt();
+                    if (oldest != Long.MIN_VALUE && oldest - lastWrite < batchLatencyNanos && outbound.queuedBytes() < batchBytes) {
+                        flushDeferred.set(true);
+                        loop.defer(this::flushDeferred, oldest + batchLatencyNanos);
+                        return;
+                    }
+                }
+                try {
+                    while (true) {
+                        if (batchStart == batchEnd) {
+                            batchStart = 0;
+                            batchEnd = outbound.drainTo(batch, queuedAt, Long.MAX_VALUE);
+                            if (batchEnd == 0) {
+                                break;
+                            }
+                            writeStats.written(queuedAt, batchEnd, System.nanoTime());
+                            batchEnd = deflateBatch(batch, batchEnd, compressionLevel);
+                            if (batchEnd == 0) {
+                                continue;
+                            }
+                        }
+                        channel.write(batch, batchStart, batchEnd - batchStart);
+                        writeStats.writeCalls(1);
+                        lastWrite = System.nanoTime();
+                        while (batchStart < batchEnd && !batch[batchStart].hasRemaining()) {
+                            if (batch[batchStart].capacity() == 0) {
+                                written(batch[batchStart]);
+                            }
+                            batch[batchStart++] = null;
+                        }
+                        if (batchStart < batchEnd) {
+                            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                            return;
+                        }
+                    }
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                    flushScheduled.set(false);
+                    if (outbound.depth() > 0 && flushScheduled.compareAndSet(false, true)) {
+                        loop.execute(() -> flush(true));
+                    }
+                } catch (IOException e) {
+                    System.err.println("Write error for " + session.userName + ": " + e.getMessage());
+                    metrics.errors.increment();
+                    close();
+                }
+            }
+
+            // private void close()
+            private void close() {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                key.cancel();
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    System.err.println("Could not close socket: " + e.getMessage());
+                }
+                outbound.close();
+                Arrays.fill(batch, null);
+                batchStart = batchEnd = 0;
+                releaseCompressor();
+                session.close();
+            }
+        }
+    }
+
+    // Opens idle, logged-in connections against an in-process server and reports memory as the count grows.
+    // Presence notices are switched off so the run measures connection cost rather than O(n^2) join broadcasts.
+    private static class ConnectionLoadTest {
+        private final ChatServer.Mode mode;
+        private final int connections;
+        private final int step;
+
+        ConnectionLoadTest(ChatServer.Mode mode, int connections, int step) {
+            this.mode = mode;
+            this.connections = connections;
+            this.step = step;
+        }
+
+        void run() {
+            System.setProperty("chat.presence.notices", "false");
+            ChatServer server = new ChatServer(mode);
+            Thread serverThread = new Thread(server::start, "chat-server");
+            serverThread.setDaemon(true);
+            serverThread.start();
+
+            List<SocketChannel> channels = new ArrayList<>();
+            try (Selector selector = Selector.open()) {
+                Thread drain = new Thread(() -> drain(selector), "load-drain");
+                drain.setDaemon(true);
+                drain.start();
+
+                waitForServer();
+                System.out.println("mode,connections,heap_mb,rss_mb,platform_threads");
+                report(0);
+                for (int i = 1; i <= connections; i++) {
+                    SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", ChatServer.PORT));
+                    channel.write(ByteBuffer.wrap(("load-" + i + "\n").getBytes(ChatServer.CHARSET)));
+                    channel.configureBlocking(false);
+                    channel.register(selector, SelectionKey.OP_READ);
+                    selector.wakeup();
+                    channels.add(channel);
+                    if (i % step == 0 || i == connections) {
+                        if (!awaitLogins(server, i)) {
+                            System.out.println("Server stopped accepting logins at " + server.presence.size() + " connections.");
+                            break;
+                        }
+                        report(i);
+                    }
+                }
+            } catch (IOException | OutOfMemoryError e) {
+                System.out.println("Load test stopped at " + channels.size() + " connections: " + e);
+            } finally {
+                for (SocketChannel channel : channels) {
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+
+        // private void drain(Selector selector)
+        private void drain(Selector selector) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(ChatServer.BUFFER_SIZE);
+            try {
+                while (selector.isOpen()) {
+                    selector.select();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        buffer.clear();
+                        if (key.isValid() && ((SocketChannel) key.channel()).read(buffer) == -1) {
+                            key.cancel();
+                        }
+                    }
+                }
+            } catch (IOException | java.nio.channels.ClosedSelectorException e) {
+                // load test finished
+            }
+        }
+
+        // private static void waitForServer()
+        private static void waitForServer() {
+            for (int attempt = 0; attempt < 50; attempt++) {
+                try {
+                    new Socket("localhost", ChatServer.PORT).close();
+                    return;
+                } catch (IOException e) {
+                    sleep(100);
+                }
+            }
+        }
+
+        // private boolean awaitLogins(ChatServer server, int expected)
+        private boolean awaitLogins(ChatServer server, int expected) {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while (server.presence.size() < expected) {
+                if (System.nanoTime() > deadline) {
+                    return false;
+                }
+                sleep(10);
+            }
+            return true;
+        }
+
+        // private void report(int connected)
+        private void report(int connected) {
+            System.gc();
+            long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+            int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+            System.out.println(mode.name().toLowerCase() + "," + connected + "," + heap / (1024 * 1024) + ","
+                    + residentSetMegabytes() + "," + threads);
+        }
+
+        // Linux only; the resident set includes the native stacks of platform threads, which the heap figure does not.
+        private static String residentSetMegabytes() {
+            try (BufferedReader status = new BufferedReader(new FileReader("/proc/self/status"))) {
+                String line;
+                while ((line = status.readLine()) != null) {
+                    if (line.startsWith("VmRSS:")) {
+                        return String.valueOf(Long.parseLong(line.replaceAll("[^0-9]", "")) / 1024);
+                    }
+                }
+            } catch (IOException | NumberFormatException ignored) {
+            }
+            return "n/a";
+        }
+
+        private static void sleep(long millis) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Latencies in nanoseconds, bucketed the way HdrHistogram does it: exact below 128, above that 64 linear buckets per
+    // power of two, so every recorded value is within 1.6% of its bucket. Recording is one atomic increment and may
+    // happen from any number of threads.
+    private static final class LatencyHistogram {
+        private static final int EXACT = 128;
+        private static final int SUB_BUCKETS = 64;
+        private final AtomicLongArray counts = new AtomicLongArray(EXACT + 57 * SUB_BUCKETS);
+        private final LongAdder total = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long nanos) {
+            long value = Math.max(0, nanos);
+            counts.incrementAndGet(index(value));
+            total.increment();
+            long current;
+            while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+                // retry
+            }
+        }
+
+        long count() {
+            return total.sum();
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        // The highest value that falls into the same bucket as the given percentile.
+        long percentile(double percentile) {
+            long recorded = count();
+            if (recorded == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(recorded * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return Math.min(highestInBucket(i), max());
+                }
+            }
+            return max();
+        }
+
+        // private static int index(long value)
+        private static int index(long value) {
+            if (value < EXACT) {
+                return (int) value;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(value) - 6;
+            return EXACT + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+        }
+
+        // private static long highestInBucket(int index)
+        private static long highestInBucket(int index) {
+            if (index < EXACT) {
+                return index;
+            }
+            int shift = (index - EXACT) / SUB_BUCKETS + 1;
+            long subBucket = (index - EXACT) % SUB_BUCKETS + SUB_BUCKETS;
+            return ((subBucket + 1) << shift) - 1;
+        }
+    }
+
+    // Simulated framed clients driving broadcast, private and file traffic at a fixed total rate, against an
+    // in-process server or one at host:port. Every message carries the time it was due to be sent, so a stalled sender
+    // or server shows up as latency rather than as a quietly lower offered rate. Prints throughput and end-to-end
+    // latency percentiles per traffic type as CSV.
+    private static class LoadGenerator {
+        private static final int BROADCAST = 0;
+        private static final int PRIVATE = 1;
+        private static final int FILE = 2;
+        private static final String[] TRAFFIC = {"broadcast", "private", "file"};
+        private final String target;
+        private final int users;
+        private final int seconds;
+        private final double rate;
+        // Percentages of broadcast, private and file sends.
+        private final int[] mix = parseMix(System.getProperty("chat.loadgen.mix", "90,9,1"));
+        private final int textLength = Integer.getInteger("chat.loadgen.text", 64);
+        private final int fileBytes = Integer.getInteger("chat.loadgen.file.kb", 16) * 1024;
+        private final long warmupNanos = TimeUnit.SECONDS.toNanos(Long.getLong("chat.loadgen.warmup", 5));
+        // Tells this run's messages apart from history replayed from earlier runs.
+        private final String run = Integer.toHexString(new Random().nextInt() & 0x7fffffff);
+        private final String marker = "t" + run + "=";
+        private final LongAdder[] sent = {new LongAdder(), new LongAdder(), new LongAdder()};
+        private final LatencyHistogram[] latencies = {new LatencyHistogram(), new LatencyHistogram(), new LatencyHistogram()};
+        private final AtomicInteger loggedIn = new AtomicInteger();
+        private final AtomicInteger rejected = new AtomicInteger();
+        private final AtomicInteger disconnected = new AtomicInteger();
+        private volatile long recordFrom = Long.MAX_VALUE;
+        private SimulatedUser[] simulated;
+
+        LoadGenerator(String target, int users, int seconds, double rate) {
+            this.target = target;
+            this.users = users;
+            this.seconds = seconds;
+            this.rate = rate;
+        }
+
+        void run() {
+            String host = "localhost";
+            int port = ChatServer.PORT;
+            int colon = target.lastIndexOf(':');
+            if (colon > 0) {
+                host = target.substring(0, colon);
+                port = Integer.parseInt(target.substring(colon + 1));
+            } else {
+                ChatServer.Mode mode = ChatServer.Mode.fromArgument(target);
+                if (mode == null) {
+                    System.out.println("Invalid target. Use 'thread', 'virtual', 'nio' or host:port.");
+                    return;
+                }
+                // Same reasoning as the connection load test; pass -D options to override.
+                System.getProperties().putIfAbsent("chat.presence.notices", "false");
+                System.getProperties().putIfAbsent("chat.echo", "false");
+                ChatServer server = new ChatServer(mode);
+                Thread serverThread = new Thread(server::start, "chat-server");
+                serverThread.setDaemon(true);
+                serverThread.start();
+                ConnectionLoadTest.waitForServer();
+            }
+
+            int loops = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+            Selector[] selectors = new Selector[loops];
+            simulated = new SimulatedUser[users];
+            try {
+                for (int i = 0; i < loops; i++) {
+                    selectors[i] = Selector.open();
+                }
+                for (int i = 0; i < users; i++) {
+                    simulated[i] = new SimulatedUser("lg" + run + "-" + i, new InetSocketAddress(host, port), selectors[i % loops]);
+                }
+                for (int i = 0; i < loops; i++) {
+                    Selector selector = selectors[i];
+                    Thread reader = new Thread(() -> read(selector), "loadgen-read-" + i);
+                    reader.setDaemon(true);
+                    reader.start();
+                }
+                if (!awaitLogins()) {
+                    System.out.println("Only " + loggedIn.get() + " of " + users + " users logged in (" + rejected.get() + " names rejected).");
+                    return;
+                }
+                long started = System.nanoTime();
+                recordFrom = started + warmupNanos;
+                long sentUntil = send(started, started + TimeUnit.SECONDS.toNanos(seconds));
+                awaitQuiet();
+                report(started, sentUntil);
+            } catch (IOException e) {
+                System.out.println("Load generator stopped: " + e);
+            } finally {
+                for (SimulatedUser user : simulated) {
+                    if (user != null) {
+                        user.close();
+                    }
+                }
+                for (Selector selector : selectors) {
+                    try {
+                        if (selector != null) {
+                            selector.close();
+                        }
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+
+        // Paces sends from one thread; returns when the last one went out.
+        private long send(long start, long end) throws IOException {
+            long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+            Random random = new Random();
+            byte[] padding = new byte[textLength];
+            Arrays.fill(padding, (byte) 'x');
+            byte[] file = new byte[fileBytes];
+            random.nextBytes(file);
+            int uploads = 0;
+            for (long due = start; due < end; due += interval) {
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                SimulatedUser from = simulated[random.nextInt(users)];
+                int pick = random.nextInt(100);
+                String stamp = marker + due + " ";
+                if (pick < mix[0]) {
+                    byte[] text = concat(stamp.getBytes(StandardCharsets.UTF_8), padding);
+                    from.write(Protocol.frame(Protocol.FrameType.CHAT, text));
+                    sent[BROADCAST].increment();
+                } else if (pick < mix[0] + mix[1]) {
+                    byte[] recipient = simulated[random.nextInt(users)].name.getBytes(StandardCharsets.UTF_8);
+                    byte[] text = concat(stamp.getBytes(StandardCharsets.UTF_8), padding);
+                    ByteBuffer body = ByteBuffer.allocate(2 + recipient.length + text.length);
+                    body.putShort((short) recipient.length).put(recipient).put(text);
+                    from.write(Protocol.frame(Protocol.FrameType.PRIVATE, body.array()));
+                    sent[PRIVATE].increment();
+                } else {
+                    // Distinct contents, so the server stores every upload rather than deduplicating them.
+                    ByteBuffer.wrap(file).putInt(++uploads);
+                    from.upload(stamp.trim() + ".bin", file);
+                    sent[FILE].increment();
+                }
+            }
+            return System.nanoTime();
+        }
+
+        // private boolean awaitLogins()
+        private boolean awaitLogins() {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+            while (loggedIn.get() < users) {
+                if (System.nanoTime() > deadline || rejected.get() + disconnected.get() > 0) {
+                    return false;
+                }
+                ConnectionLoadTest.sleep(10);
+            }
+            return true;
+        }
+
+        // Waits until nothing more has arrived for a second, or ten seconds at most.
+        private void awaitQuiet() {
+            long last = -1;
+            for (int i = 0; i < 10; i++) {
+                long received = 0;
+                for (LatencyHistogram histogram : latencies) {
+                    received += histogram.count();
+                }
+                if (received == last) {
+                    return;
+                }
+                last = received;
+                ConnectionLoadTest.sleep(1000);
+            }
+        }
+
+        // private void report(long started, long sentUntil)
+        private void report(long started, long sentUntil) {
+            double sendSeconds = (sentUntil - started) / 1e9;
+            double recordedSeconds = Math.max(1e-9, (sentUntil - recordFrom) / 1e9);
+            long total = 0;
+            for (LongAdder count : sent) {
+                total += count.sum();
+            }
+            System.out.println("target,users,seconds,offered_per_sec,sent_per_sec,disconnected");
+            System.out.printf(Locale.ROOT, "%s,%d,%d,%.0f,%.1f,%d%n", target, users, seconds, rate, total / sendSeconds, disconnected.get());
+            System.out.println("type,sent,delivered_after_warmup,delivered_per_sec,p50_us,p99_us,p999_us,max_us");
+            for (int i = 0; i < TRAFFIC.length; i++) {
+                LatencyHistogram histogram = latencies[i];
+                System.out.printf(Locale.ROOT, "%s,%d,%d,%.1f,%d,%d,%d,%d%n", TRAFFIC[i], sent[i].sum(), histogram.count(),
+                        histogram.count() / recordedSeconds, micros(histogram.percentile(50)), micros(histogram.percentile(99)),
+                        micros(histogram.percentile(99.9)), micros(histogram.max()));
+            }
+        }
+
+        // private void read(Selector selector)
+        private void read(Selector selector) {
+            try {
+                while (selector.isOpen()) {
+                    selector.select();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (key.isValid() && key.isReadable()) {
+                            ((SimulatedUser) key.attachment()).onReadable(key);
+                        }
+                    }
+                }
+            } catch (IOException | java.nio.channels.ClosedSelectorException e) {
+                // load generator finished
+            }
+        }
+
+        // private void delivered(int traffic, String text)
+        private void delivered(int traffic, String text) {
+            int at = text.indexOf(marker);
+            if (at < 0) {
+                return;
+            }
+            int from = at + marker.length();
+            int to = from < text.length() && text.charAt(from) == '-' ? from + 1 : from;
+            while (to < text.length() && Character.isDigit(text.charAt(to))) {
+                to++;
+            }
+            long due = Long.parseLong(text, from, to, 10);
+            if (due - recordFrom >= 0) {
+                latencies[traffic].record(System.nanoTime() - due);
+            }
+        }
+
+        private static long micros(long nanos) {
+            return TimeUnit.NANOSECONDS.toMicros(nanos);
+        }
+
+        private static byte[] concat(byte[] first, byte[] second) {
+            byte[] joined = Arrays.copyOf(first, first.length + second.length);
+            System.arraycopy(second, 0, joined, first.length, second.length);
+            return joined;
+        }
+
+        private static int[] parseMix(String mix) {
+            String[] parts = mix.split(",");
+            int[] percentages = new int[3];
+            for (int i = 0; i < Math.min(parts.length, percentages.length); i++) {
+                percentages[i] = Integer.parseInt(parts[i].trim());
+            }
+            return percentages;
+        }
+
+        // One connection speaking the framed protocol, read by one reader thread. The sending thread writes to it, and
+        // the reader only to answer PING.
+        private final class SimulatedUser {
+            final String name;
+            private final SocketChannel channel;
+            private ByteBuffer input = ByteBuffer.allocate(8192);
+            private boolean greeted;
+            private int prompts;
+            private int nextTransferId;
+
+            SimulatedUser(String name, InetSocketAddress address, Selector selector) throws IOException {
+                this.name = name;
+                channel = SocketChannel.open(address);
+                channel.configureBlocking(false);
+                write(ByteBuffer.wrap(Protocol.PREFACE));
+                write(Protocol.frame(Protocol.FrameType.NAME, name.getBytes(StandardCharsets.UTF_8)));
+                channel.register(selector, SelectionKey.OP_READ, this);
+            }
+
+            // A server that has stopped reading from this user (its rate limits) stalls the sender here.
+            synchronized void write(ByteBuffer data) throws IOException {
+                while (data.hasRemaining()) {
+                    if (channel.write(data) == 0) {
+                        LockSupport.parkNanos(50_000);
+                    }
+                }
+            }
+
+            // Pipelined: the server handles FILE_START before the chunks behind it, so there is no need to wait for
+            // its FILE_RESUME answer.
+            void upload(String fileName, byte[] contents) throws IOException {
+                int transferId = ++nextTransferId;
+                byte[] nameBytes = fileName.getBytes(StandardCharsets.UTF_8);
+                ByteBuffer start = ByteBuffer.allocate(4 + 8 + 2 + nameBytes.length + 2 + nameBytes.length);
+                start.putInt(transferId).putLong(contents.length).putShort((short) nameBytes.length).put(nameBytes)
+                        .putShort((short) nameBytes.length).put(nameBytes);
+                write(Protocol.frame(Protocol.FrameType.FILE_START, start.array()));
+                ByteBuffer frame = ByteBuffer.allocate(Protocol.FILE_CHUNK_HEADER_LENGTH + Protocol.FILE_CHUNK_SIZE);
+                for (int offset = 0; offset < contents.length; offset += Protocol.FILE_CHUNK_SIZE) {
+                    int length = Math.min(Protocol.FILE_CHUNK_SIZE, contents.length - offset);
+                    frame.clear().position(Protocol.FILE_CHUNK_HEADER_LENGTH);
+                    frame.put(contents, offset, length).flip();
+                    write(Protocol.chunkFrame(frame, transferId, offset));
+                }
+                write(Protocol.frame(Protocol.FrameType.FILE_END, ByteBuffer.allocate(4).putInt(transferId).array()));
+            }
+
+            // private void onReadable(SelectionKey key)
+            private void onReadable(SelectionKey key) {
+                try {
+                    if (channel.read(input) == -1) {
+                        throw new EOFException("closed by the server");
+                    }
+                    input.flip();
+                    while (!greeted && input.hasRemaining()) {
+                        greeted = input.get() == '\n';
+                    }
+                    while (greeted && input.remaining() >= Protocol.HEADER_LENGTH) {
+                        int length = input.getInt(input.position());
+                        if (length < 1 || length > Protocol.MAX_FRAME_LENGTH) {
+                            throw new IOException("Invalid frame length " + length);
+                        }
+                        if (input.remaining() < 4 + length) {
+                            break;
+                        }
+                        onFrame(input.get(input.position() + 4), input.slice(input.position() + Protocol.HEADER_LENGTH, length - 1));
+                        input.position(input.position() + 4 + length);
+                    }
+                    int needed = input.remaining() >= 4 ? 4 + input.getInt(input.position()) : 0;
+                    input.compact();
+                    if (needed > input.capacity()) {
+                        input = ByteBuffer.allocate(needed).put(input.flip());
+                    }
+                } catch (IOException | RuntimeException e) {
+                    System.out.println(name + " disconnected: " + e.getMessage());
+                    disconnected.incrementAndGet();
+                    key.cancel();
+                    close();
+                }
+            }
+
+            // private void onFrame(byte code, ByteBuffer body)
+            private void onFrame(byte code, ByteBuffer body) {
+                Protocol.FrameType type = Protocol.FrameType.fromCode(code);
+                if (type == null) {
+                    return;
+                }
+                switch (type) {
+                    case SUBMITNAME:
+                        if (++prompts > 1) {
+                            rejected.incrementAndGet();
+                        }
+                        break;
+                    case NAMEACCEPTED:
+                        loggedIn.incrementAndGet();
+                        break;
+                    case PING:
+                        try {
+                            write(Protocol.frame(Protocol.FrameType.PONG, new byte[0]));
+                        } catch (IOException e) {
+                            close();
+                        }
+                        break;
+                    case CHAT:
+                        delivered(BROADCAST, Protocol.getText(body));
+                        break;
+                    case PRIVATE:
+                        String text = Protocol.getText(body);
+                        if (text.contains("[Private from ")) {
+                            delivered(PRIVATE, text);
+                        }
+                        break;
+                    case FILE_OFFER:
+                        body.position(body.position() + Protocol.HASH_LENGTH + 8);
+                        delivered(FILE, Protocol.getString(body));
+                        break;
+                    default:
+                        break;
+                }
+            }
+
+            void close() {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    // Compares the old per-message SimpleDateFormat with ChatServer.MessageClock: time and bytes allocated to format
+    // and encode one message for both wire formats. Checks first that both produce the same bytes.
+    private static class TimestampBenchmark {
+        private static final String[] SAMPLES = {"hello everyone", "gr\u00fc\u00dfe aus K\u00f6ln \u2615", ""};
+        private final int iterations;
 
-        public void start() {
-            System.out.println("The chat server is running on port " + PORT + ".");
-            try (ServerSocket listener = new ServerSocket(PORT)) {
-                while (true) {
-                    new Handler(listener.accept()).start();
+        TimestampBenchmark(int iterations) {
+            this.iterations = iterations;
+        }
+
+        void run() {
+            System.out.println("identical," + identical());
+            System.out.println("variant,ns_per_message,bytes_per_message");
+            for (int round = 0; round < 3; round++) {
+                boolean report = round == 2;
+                measure("simple_date_format", report, i -> {
+                    boolean system = (i & 1) == 0;
+                    ChatServer.OutboundMessage message = ChatServer.OutboundMessage.text(type(system), legacyFormat(SAMPLES[0], system));
+                    return message.encodedFor(ChatServer.WireFormat.LINES).remaining() + message.encodedFor(ChatServer.WireFormat.FRAMES).remaining();
+                });
+                measure("cached_stamp", report, i -> {
+                    boolean system = (i & 1) == 0;
+                    ChatServer.OutboundMessage message = ChatServer.OutboundMessage.stamped(type(system), ChatServer.CLOCK.now(), system, SAMPLES[0]);
+                    return message.encodedFor(ChatServer.WireFormat.LINES).remaining() + message.encodedFor(ChatServer.WireFormat.FRAMES).remaining();
+                });
+            }
+        }
+
+        // Retries when the second changes between the two encodings.
+        private boolean identical() {
+            for (String sample : SAMPLES) {
+                for (boolean system : new boolean[] {false, true}) {
+                    for (ChatServer.WireFormat format : ChatServer.WireFormat.values()) {
+                        ByteBuffer legacy;
+                        ByteBuffer cached;
+                        long second;
+                        do {
+                            second = System.currentTimeMillis() / 1000;
+                            legacy = ChatServer.OutboundMessage.text(type(system), legacyFormat(sample, system)).encodedFor(format);
+                            cached = ChatServer.OutboundMessage.stamped(type(system), ChatServer.CLOCK.now(), system, sample).encodedFor(format);
+                        } while (second != System.currentTimeMillis() / 1000);
+                        if (!legacy.equals(cached)) {
+                            return false;
+                        }
+                    }
                 }
-            } catch (IOException e) {
-                System.err.println("Server error: " + e.getMessage());
             }
+            return true;
         }
 
-        private class Handler extends Thread {
-            private String userName;
-            private Socket socket;
-            private BufferedReader in;
-            private PrintWriter out;
-            private InputStream fileIn;
+        // private void measure(String variant, boolean report, java.util.function.IntUnaryOperator encode)
+        private void measure(String variant, boolean report, java.util.function.IntUnaryOperator encode) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            long threadId = Thread.currentThread().getId();
+            long sink = 0;
+            long bytesBefore = threads.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                sink += encode.applyAsInt(i);
+            }
+            long elapsed = System.nanoTime() - start;
+            long allocated = threads.getThreadAllocatedBytes(threadId) - bytesBefore;
+            if (report && sink > 0) {
+                System.out.println(variant + "," + elapsed / iterations + "," + allocated / iterations);
+            }
+        }
 
-            public Handler(Socket socket) {
-                this.socket = socket;
+        private static Protocol.FrameType type(boolean isSystemMessage) {
+            return isSystemMessage ? Protocol.FrameType.SYSTEM : Protocol.FrameType.CHAT;
+        }
+
+        // What ChatServer.formatMessage did before MessageClock.
+        private static String legacyFormat(String message, boolean isSystemMessage) {
+            String timestamp = new SimpleDateFormat("[yyyy-MM-dd HH:mm:ss]").format(new Date());
+            return timestamp + " " + (isSystemMessage ? "[SYSTEM] " : "") + message;
+        }
+    }
+
+    // Reopens history logs left the way a server can leave them, as a restarted server would, and checks that every
+    // record is still there and that appending goes on after them: a last segment filled exactly, one that ends with
+    // less room than a record length, and a stray file among the segments.
+    private static class HistoryLogCheck {
+        private static final int SEGMENT_BYTES = 4096;
+
+        boolean run() {
+            int[] full = new int[64];
+            Arrays.fill(full, 51);
+            // 63 records of 64 bytes and one of 62 leave 2 bytes, too few for the next record's length.
+            int[] almostFull = new int[64];
+            Arrays.fill(almostFull, 51);
+            almostFull[63] = 49;
+            int[] some = {10, 20, 30};
+            boolean passed = true;
+            passed &= check("exactly_full", full, false);
+            passed &= check("two_bytes_short", almostFull, false);
+            passed &= check("stray_log_file", some, true);
+            return passed;
+        }
+
+        private boolean check(String name, int[] lengths, boolean stray) {
+            Path directory = null;
+            boolean passed;
+            try {
+                directory = Files.createTempDirectory("chatapp-history-check");
+                if (stray) {
+                    Files.write(directory.resolve("server.log"), "not a segment".getBytes(StandardCharsets.UTF_8));
+                }
+                ChatServer.HistoryLog log = open(directory);
+                List<String> written = new ArrayList<>();
+                for (int i = 0; i < lengths.length; i++) {
+                    written.add(text(i, lengths[i]));
+                    log.append(Protocol.FrameType.CHAT, written.get(i));
+                }
+                long end = log.end();
+                log = open(directory);
+                passed = log.end() == end && written.equals(readAll(log));
+                written.add(text(lengths.length, 40));
+                passed &= log.append(Protocol.FrameType.CHAT, written.get(lengths.length)) == end;
+                passed &= written.equals(readAll(open(directory)));
+            } catch (IOException | RuntimeException e) {
+                System.out.println(name + ",failed: " + e);
+                return false;
+            } finally {
+                delete(directory);
             }
+            System.out.println(name + "," + (passed ? "ok" : "failed"));
+            return passed;
+        }
 
-            public void run() {
-                System.out.println("New client connected.");
-                try {
-                    in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                    out = new PrintWriter(socket.getOutputStream(), true);
-                    fileIn = socket.getInputStream();
+        private static ChatServer.HistoryLog open(Path directory) throws IOException {
+            ChatServer.HistoryLog log = new ChatServer.HistoryLog(directory, SEGMENT_BYTES, 16L * SEGMENT_BYTES, 1);
+            log.open();
+            return log;
+        }
 
-                    while (true) {
-                        out.println("SUBMITNAME");
-                        userName = in.readLine();
-                        if (userName == null || userName.trim().isEmpty()) {
-                            continue;
-                        }
-                        synchronized (userNames) {
-                            if (!userNames.contains(userName)) {
-                                userNames.add(userName);
-                                break;
-                            }
-                        }
-                    }
+        private static List<String> readAll(ChatServer.HistoryLog log) {
+            List<String> texts = new ArrayList<>();
+            log.read(0, Integer.MAX_VALUE, (type, text) -> texts.add(text));
+            return texts;
+        }
 
-                    out.println("NAMEACCEPTED " + userName);
-                    writers.put(userName, out);
-                    broadcastMessage(userName + " has joined the chat.", true);
-                    listAllUsers(userName);
+        private static String text(int index, int length) {
+            char[] text = new char[length];
+            Arrays.fill(text, (char) ('a' + index % 26));
+            return new String(text);
+        }
 
-                    String message;
-                    while ((message = in.readLine()) != null) {
-                        if (message.startsWith("FILETRANSFER:")) {
-                            handleFileTransfer(message);
-                        } else if (message.startsWith("@")) {
-                             handlePrivateMessage(message);
-                        } else {
-                            broadcastMessage(userName + ": " + message, false);
-                        }
-                    }
-                } catch (IOException e) {
-                    System.err.println("Handler error for " + userName + ": " + e.getMessage());
-                } finally {
-                    if (userName != null) {
-                        System.out.println(userName + " is leaving.");
-                        userNames.remove(userName);
-                        writers.remove(userName);
-                    }
-                    try {
-                        socket.close();
-                    } catch (IOException e) {
-                        System.err.println("Could not close socket: " + e.getMessage());
-                    }
-                    if (userName != null) {
-                        broadcastMessage(userName + " has left the chat.", true);
+        private static void delete(Path directory) {
+            if (directory == null) {
+                return;
+            }
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                for (Path file : files) {
+                    Files.delete(file);
+                }
+                Files.delete(directory);
+            } catch (IOException e) {
+                System.out.println("Could not delete " + directory + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // What per-connection deflate saves on chat traffic and what it costs: framed, stamped messages of several sizes
+    // go through one ChatServer.Compressor, sync-flushed every batch as the writers do, and are inflated again.
+    private static class CompressionBenchmark {
+        private static final String[] WORDS = {"the", "meeting", "is", "moved", "to", "three", "o'clock", "can",
+                "you", "send", "me", "file", "again", "thanks", "ok", "see", "tomorrow", "build", "passed", "on", "my",
+                "machine", "lunch", "anyone", "\u00fcber", "caf\u00e9", "deploy", "after", "review"};
+        private static final String[] USERS = {"alice", "bob", "carol", "dave"};
+        private static final int[] SIZES = {32, 128, 512, 2048};
+        private static final int[] BATCHES = {1, 16};
+        private final int messages;
+
+        CompressionBenchmark(int messages) {
+            this.messages = messages;
+        }
+
+        void run() {
+            System.out.println("text_chars,messages_per_flush,raw_bytes_per_message,wire_bytes_per_message,saved_percent,"
+                    + "deflate_ns_per_message,inflate_ns_per_message");
+            for (int size : SIZES) {
+                ByteBuffer[] frames = frames(size);
+                for (int batch : BATCHES) {
+                    for (int round = 0; round < 3; round++) {
+                        measure(frames, size, batch, round == 2);
                     }
                 }
             }
+        }
 
-            // private void handlePrivateMessage(String message)
-             private void handlePrivateMessage(String message) {
-                int spaceIndex = message.indexOf(' ');
-                if (spaceIndex > 0) {
-                    String recipientName = message.substring(1, spaceIndex);
-                    String privateMessage = message.substring(spaceIndex + 1);
+        // private ByteBuffer[] frames(int size)
+        private ByteBuffer[] frames(int size) {
+            Random random = new Random(size);
+            ByteBuffer[] frames = new ByteBuffer[messages];
+            for (int i = 0; i < messages; i++) {
+                StringBuilder text = new StringBuilder(USERS[random.nextInt(USERS.length)]).append(": ");
+                while (text.length() < size) {
+                    text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+                }
+                ChatServer.OutboundMessage message = ChatServer.OutboundMessage.stamped(
+                        Protocol.FrameType.CHAT, ChatServer.CLOCK.now(), false, text.substring(0, size));
+                frames[i] = message.encodedFor(ChatServer.WireFormat.FRAMES);
+            }
+            return frames;
+        }
 
-                    PrintWriter recipientWriter = writers.get(recipientName);
-                    if (recipientWriter != null) {
-                        recipientWriter.println(formatMessage("[Private from " + userName + "]: " + privateMessage, false));
-                        out.println(formatMessage("[Private to " + recipientName + "]: " + privateMessage, false));
-                    } else {
-                       out.println(formatMessage("ERROR The user '" + recipientName + "' is not available or does not exist.", true));
+        // private void measure(ByteBuffer[] frames, int size, int batch, boolean report)
+        private void measure(ByteBuffer[] frames, int size, int batch, boolean report) {
+            ChatServer.Compressor compressor = new ChatServer.Compressor(Integer.getInteger("chat.compression.level", Deflater.BEST_SPEED));
+            Inflater inflater = new Inflater(true);
+            ByteBuffer[] items = new ByteBuffer[batch];
+            byte[] inflated = new byte[1 << 16];
+            long raw = 0;
+            long wire = 0;
+            long deflateNanos = 0;
+            long inflateNanos = 0;
+            try {
+                for (int i = 0; i < frames.length; i += batch) {
+                    int count = Math.min(batch, frames.length - i);
+                    for (int j = 0; j < count; j++) {
+                        items[j] = frames[i + j].duplicate();
+                        raw += items[j].remaining();
+                    }
+                    long start = System.nanoTime();
+                    ByteBuffer deflated = compressor.compress(items, 0, count);
+                    long middle = System.nanoTime();
+                    wire += deflated.remaining();
+                    inflater.setInput(deflated);
+                    while (!inflater.needsInput()) {
+                        inflater.inflate(inflated);
                     }
+                    inflateNanos += System.nanoTime() - middle;
+                    deflateNanos += middle - start;
                 }
+            } catch (DataFormatException e) {
+                throw new IllegalStateException("Could not inflate our own output", e);
+            } finally {
+                compressor.close();
+                inflater.end();
             }
+            if (report) {
+                System.out.printf(Locale.ROOT, "%d,%d,%.1f,%.1f,%.1f,%d,%d%n", size, batch, (double) raw / frames.length,
+                        (double) wire / frames.length, 100.0 * (raw - wire) / raw, deflateNanos / frames.length,
+                        inflateNanos / frames.length);
+            }
+        }
+    }
 
-            // private void handleFileTransfer(String message)
-            private void handleFileTransfer(String message) {
-                try {
-                    String[] parts = message.split(":");
-                    if (parts.length != 3) {
-                        System.err.println("Invalid file transfer protocol message: " + message);
-                        return;
+    // Measures bytes allocated on the sending thread per broadcast as the number of recipients grows, comparing the
+    // shared payload with encoding the line again for every recipient.
+    private static class BroadcastBenchmark {
+        private static final int ROUNDS = 2000;
+        private final int maxUsers;
+
+        BroadcastBenchmark(int maxUsers) {
+            this.maxUsers = maxUsers;
+        }
+
+        void run() {
+            System.setProperty("chat.echo", "false");
+            System.out.println("users,shared_bytes_per_broadcast,per_recipient_bytes_per_broadcast");
+            for (int users = 1; users <= maxUsers; users *= 10) {
+                ChatServer server = new ChatServer(ChatServer.Mode.NIO);
+                List<DiscardingPeer> peers = new ArrayList<>();
+                for (int i = 0; i < users; i++) {
+                    DiscardingPeer peer = new DiscardingPeer(server);
+                    peers.add(peer);
+                    server.presence.join("user-" + i, peer, null);
+                }
+                long shared = measure(peers, () -> server.broadcastMessage("benchmark message", false));
+                long perRecipient = measure(peers, () -> {
+                    String formattedMessage = server.formatMessage("benchmark message", false);
+                    for (ChatServer.Peer peer : server.presence.peers()) {
+                        peer.send(ChatServer.OutboundMessage.text(Protocol.FrameType.CHAT, formattedMessage));
                     }
+                });
+                System.out.println(users + "," + shared + "," + perRecipient);
+            }
+        }
+
+        // private long measure(List<DiscardingPeer> peers, Runnable broadcast)
+        private long measure(List<DiscardingPeer> peers, Runnable broadcast) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            long threadId = Thread.currentThread().getId();
+            for (int i = 0; i < ROUNDS; i++) {
+                broadcast.run();
+                peers.forEach(DiscardingPeer::drain);
+            }
+            long before = threads.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < ROUNDS; i++) {
+                broadcast.run();
+                peers.forEach(DiscardingPeer::drain);
+            }
+            return (threads.getThreadAllocatedBytes(threadId) - before) / ROUNDS;
+        }
 
-                    String fileName = parts[1];
-                    long fileSize = Long.parseLong(parts[2]);
-                    
-                    System.out.println("Receiving file from " + userName + ": " + fileName + " (" + fileSize + " bytes)");
+        // Queues like a real connection but throws the bytes away instead of writing them.
+        private static class DiscardingPeer extends ChatServer.Peer {
+            private final ChatServer.OutboundQueue outbound;
+            private final ByteBuffer[] scratch = new ByteBuffer[ChatServer.GATHER_LIMIT];
 
-                    broadcastMessage(userName + " is sending file: " + fileName, true);
+            DiscardingPeer(ChatServer server) {
+                outbound = new ChatServer.OutboundQueue(server.queueCapacity, server.overflowPolicy);
+            }
 
-                    byte[] buffer = new byte[8192];
-                    long bytesRead = 0;
-                    int count;
+            @Override
+            void enqueue(ByteBuffer data, boolean required) {
+                outbound.offer(data, required);
+            }
 
-                    for (PrintWriter writer : writers.values()) {
-                        writer.println("INCOMINGFILE:" + fileName);
-                    }
+            @Override
+            ChatServer.WireFormat format() {
+                return ChatServer.WireFormat.LINES;
+            }
 
-                    try (OutputStream serverOut = new SocketOutputStream(writers.values().toArray(new PrintWriter[0]))) {
-                        while (bytesRead < fileSize && (count = fileIn.read(buffer, 0, (int) Math.min(buffer.length, fileSize - bytesRead))) > 0) {
-                            serverOut.write(buffer, 0, count);
-                            bytesRead += count;
-                        }
-                        serverOut.flush();
-                    }
-                    
-                    broadcastMessage(userName + "'s file transfer completed for " + fileName + ".", true);
-                    System.out.println("File transfer completed for " + fileName + " from " + userName);
+            @Override
+            int queueDepth() {
+                return outbound.depth();
+            }
 
-                } catch (IOException e) {
-                    System.err.println("Error handling file transfer for " + userName + ": " + e.getMessage());
-                }
+            @Override
+            void disconnect(String reason) {
+                outbound.close();
             }
-            
-            // private class SocketOutputStream extends OutputStream
-            private class SocketOutputStream extends OutputStream {
-                private final PrintWriter[] writers;
-                public SocketOutputStream(PrintWriter[] writers) {
-                    this.writers = writers;
-                }
-                
-                @Override
-                public void write(int b) throws IOException {
-                    for (PrintWriter writer : writers) {
-                        writer.write(b);
-                    }
+
+            @Override
+            boolean isOpen() {
+                return !outbound.isClosed();
+            }
+
+            void drain() {
+                while (outbound.drainTo(scratch) > 0) {
+                    Arrays.fill(scratch, null);
                 }
-                
-                @Override
-                public void write(byte[] b, int off, int len) throws IOException {
-                    for (PrintWriter writer : writers) {
-                        writer.write(new String(b, off, len));
+            }
+        }
+    }
+
+    // Passes bytes through until inflate() is called, then inflates everything after that point as one raw deflate
+    // stream. Sits below the client's DataInputStream, so the switch happens exactly at the next frame.
+    private static final class InflatingInputStream extends FilterInputStream {
+        private final byte[] input = new byte[8192];
+        private final byte[] single = new byte[1];
+        private Inflater inflater;
+
+        InflatingInputStream(InputStream in) {
+            super(in);
+        }
+
+        void inflate() {
+            inflater = new Inflater(true);
+        }
+
+        @Override
+        public int read() throws IOException {
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (inflater == null) {
+                return in.read(b, off, len);
+            }
+            if (len == 0) {
+                return 0;
+            }
+            try {
+                int n;
+                while ((n = inflater.inflate(b, off, len)) == 0) {
+                    if (inflater.finished() || inflater.needsDictionary()) {
+                        return -1;
                     }
-                }
-                
-                @Override
-                public void flush() throws IOException {
-                    for (PrintWriter writer : writers) {
-                        writer.flush();
+                    if (inflater.needsInput()) {
+                        int read = in.read(input, 0, input.length);
+                        if (read == -1) {
+                            return -1;
+                        }
+                        inflater.setInput(input, 0, read);
                     }
                 }
+                return n;
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt compressed stream: " + e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public int available() throws IOException {
+            return inflater == null ? in.available() : 0;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (inflater == null) {
+                return in.skip(n);
+            }
+            byte[] discard = new byte[(int) Math.min(n, input.length)];
+            long skipped = 0;
+            int read;
+            while (skipped < n && (read = read(discard, 0, (int) Math.min(n - skipped, discard.length))) != -1) {
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (inflater != null) {
+                inflater.end();
             }
+            in.close();
+        }
+    }
+
+    // The client's message pane. Any thread may add lines; they wait in a queue until the Swing thread applies them
+    // all at once on its next frame, so a busy channel costs one repaint per frame instead of one per message. Only
+    // the newest lines are kept, in a ring, and the list shows them without ever building one big document.
+    private static class MessageListModel extends AbstractListModel<String> {
+        private static final long serialVersionUID = 1L;
+        private final String[] lines;
+        private int head;
+        private int size;
+        private ArrayDeque<String> pending = new ArrayDeque<>();
+        // Swapped with pending on every frame; only touched by the Swing thread.
+        private ArrayDeque<String> applying = new ArrayDeque<>();
+
+        MessageListModel(int capacity) {
+            this.lines = new String[capacity];
+        }
+
+        // Lines that would not survive the next frame anyway are dropped here, so a stalled Swing thread cannot make
+        // the queue grow without bound.
+        synchronized void add(String line) {
+            if (pending.size() == lines.length) {
+                pending.pollFirst();
+            }
+            pending.addLast(line);
+        }
 
-            // private void broadcastMessage(String message, boolean isSystemMessage)
-            private void broadcastMessage(String message, boolean isSystemMessage) {
-                String formattedMessage = formatMessage(message, isSystemMessage);
-                System.out.println("Broadcasting: " + formattedMessage);
-                for (PrintWriter writer : writers.values()) {
-                    writer.println(formattedMessage);
+        // Called on the Swing thread. Returns how many lines were added.
+        int flush() {
+            ArrayDeque<String> batch;
+            synchronized (this) {
+                if (pending.isEmpty()) {
+                    return 0;
                 }
+                batch = pending;
+                pending = applying;
             }
-            
-            // private void listAllUsers(String requestingUser)
-            private void listAllUsers(String requestingUser) {
-                StringBuilder userList = new StringBuilder("Current users: ");
-                for (String user : userNames) {
-                    userList.append(user).append(", ");
+            applying = batch;
+            int evicted = Math.max(0, size + batch.size() - lines.length);
+            if (evicted > 0) {
+                for (int i = 0; i < evicted; i++) {
+                    lines[head] = null;
+                    head = (head + 1) % lines.length;
                 }
-                String finalUserList = userList.substring(0, userList.length() - 2);
-                writers.get(requestingUser).println(formatMessage(finalUserList, true));
+                size -= evicted;
+                fireIntervalRemoved(this, 0, evicted - 1);
             }
-            
-            // private String formatMessage(String message, boolean isSystemMessage)
-            private String formatMessage(String message, boolean isSystemMessage) {
-                String timestamp = new SimpleDateFormat("[yyyy-MM-dd HH:mm:ss]").format(new Date());
-                return timestamp + " " + (isSystemMessage ? "[SYSTEM] " : "") + message;
+            int first = size;
+            for (String line : batch) {
+                lines[(head + size++) % lines.length] = line;
             }
+            batch.clear();
+            fireIntervalAdded(this, first, size - 1);
+            return size - first;
+        }
+
+        @Override
+        public int getSize() {
+            return size;
+        }
+
+        @Override
+        public String getElementAt(int index) {
+            return lines[(head + index) % lines.length];
         }
     }
 
     private static class ChatClient extends JFrame {
-        private BufferedReader in;
-        private PrintWriter out;
+        private DataInputStream in;
+        private InflatingInputStream inflating;
+        private boolean compressionRequested;
+        private volatile long lastReceived = System.nanoTime();
+        private DataOutputStream out;
         private JTextField textField;
-        private JTextArea messageArea;
+        private MessageListModel messages;
+        private JList<String> messageList;
         private Socket socket;
         private String serverAddress;
-        private static final int PORT = 9001;
+        private int serverPort;
+        private static final int PULL_LENGTH = 1 << 20;
+        private final AtomicInteger nextTransferId = new AtomicInteger();
+        // Only touched by the receive thread.
+        private final Map<Integer, IncomingFile> incomingFiles = new HashMap<>();
+        // FILE_RESUME answers for our own uploads, handed from the receive thread to the upload threads.
+        private final Map<Integer, BlockingQueue<Long>> uploadOffsets = new ConcurrentHashMap<>();
 
-        public ChatClient(String serverAddress) {
+        public ChatClient(String serverAddress, int serverPort) {
             this.serverAddress = serverAddress;
+            this.serverPort = serverPort;
             initializeGUI();
             try {
                 connectToServer();
@@ -244,11 +5419,16 @@ public class ChatApp {
             setSize(500, 400);
             setLocationRelativeTo(null);
 
-            messageArea = new JTextArea();
-            messageArea.setEditable(false);
-            messageArea.setFont(new Font("Arial", Font.PLAIN, 14));
-            JScrollPane scrollPane = new JScrollPane(messageArea);
+            messages = new MessageListModel(Integer.getInteger("chat.client.lines", 5000));
+            messageList = new JList<>(messages);
+            messageList.setFont(new Font("Arial", Font.PLAIN, 14));
+            // With fixed cell sizes the list lays out only the rows in view instead of measuring every line.
+            FontMetrics metrics = messageList.getFontMetrics(messageList.getFont());
+            messageList.setFixedCellHeight(metrics.getHeight() + 2);
+            messageList.setFixedCellWidth(1);
+            JScrollPane scrollPane = new JScrollPane(messageList);
             add(scrollPane, BorderLayout.CENTER);
+            new Timer(Integer.getInteger("chat.client.frame.ms", 16), e -> showPending(scrollPane, metrics)).start();
 
             JPanel southPanel = new JPanel(new BorderLayout());
             
@@ -256,7 +5436,7 @@ public class ChatApp {
             textField.addActionListener(new ActionListener() {
                 public void actionPerformed(ActionEvent e) {
                     if (out != null) {
-                        out.println(textField.getText());
+                        sendMessage(textField.getText());
                         textField.setText("");
                     }
                 }
@@ -270,6 +5450,70 @@ public class ChatApp {
             add(southPanel, BorderLayout.SOUTH);
         }
 
+        // Keeps following new lines while the view is at the bottom and stays put once the user has scrolled up.
+        private void showPending(JScrollPane scrollPane, FontMetrics metrics) {
+            JScrollBar bar = scrollPane.getVerticalScrollBar();
+            boolean following = bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - messageList.getFixedCellHeight();
+            int added = messages.flush();
+            if (added == 0) {
+                return;
+            }
+            int width = messageList.getFixedCellWidth();
+            for (int i = messages.getSize() - added; i < messages.getSize(); i++) {
+                width = Math.max(width, metrics.stringWidth(messages.getElementAt(i)) + 8);
+            }
+            if (width != messageList.getFixedCellWidth()) {
+                messageList.setFixedCellWidth(width);
+            }
+            if (following) {
+                messageList.ensureIndexIsVisible(messages.getSize() - 1);
+            }
+        }
+
+        // private void show(String line)
+        private void show(String line) {
+            messages.add(line);
+        }
+
+        // private void sendMessage(String message)
+        private void sendMessage(String message) {
+            try {
+                if (message.startsWith("@")) {
+                    int spaceIndex = message.indexOf(' ');
+                    if (spaceIndex > 1) {
+                        byte[] recipient = message.substring(1, spaceIndex).getBytes(StandardCharsets.UTF_8);
+                        byte[] text = message.substring(spaceIndex + 1).getBytes(StandardCharsets.UTF_8);
+                        ByteBuffer body = ByteBuffer.allocate(2 + recipient.length + text.length);
+                        body.putShort((short) recipient.length).put(recipient).put(text);
+                        sendFrame(Protocol.FrameType.PRIVATE, body.array(), body.array().length);
+                    }
+                } else {
+                    byte[] text = message.getBytes(StandardCharsets.UTF_8);
+                    sendFrame(Protocol.FrameType.CHAT, text, text.length);
+                }
+            } catch (IOException e) {
+                showErrorDialog("Connection Lost", "Disconnected from the server.");
+            }
+        }
+
+        // Frames from the Swing thread and the upload thread share the socket, so every frame is written whole.
+        private void sendFrame(Protocol.FrameType type, byte[] body, int length) throws IOException {
+            synchronized (out) {
+                out.writeInt(length + 1);
+                out.writeByte(type.code);
+                out.write(body, 0, length);
+                out.flush();
+            }
+        }
+
+        // private void sendFrame(ByteBuffer frame)
+        private void sendFrame(ByteBuffer frame) throws IOException {
+            synchronized (out) {
+                out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+                out.flush();
+            }
+        }
+
         // private void sendFile()
         private void sendFile() {
             JFileChooser fileChooser = new JFileChooser();
@@ -279,55 +5523,108 @@ public class ChatApp {
             if (userSelection == JFileChooser.APPROVE_OPTION) {
                 File fileToSend = fileChooser.getSelectedFile();
                 if (fileToSend.exists()) {
-                    try {
-                        out.println("FILETRANSFER:" + fileToSend.getName() + ":" + fileToSend.length());
-                        out.flush();
-                        
-                        try (FileInputStream fis = new FileInputStream(fileToSend)) {
-                            byte[] buffer = new byte[8192];
-                            int count;
-                            while ((count = fis.read(buffer)) > 0) {
-                                socket.getOutputStream().write(buffer, 0, count);
-                                socket.getOutputStream().flush();
+                    // Uploads run off the Swing thread; chat frames keep flowing in between the chunks.
+                    new Thread(() -> uploadFile(fileToSend), "file-upload").start();
+                } else {
+                    JOptionPane.showMessageDialog(this, "File does not exist.", "Error", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        }
+
+        // The server answers FILE_START and every FILE_END with the offset to continue from, so the same loop covers
+        // a fresh upload, one resumed after a reconnect and chunks the server rejected on their checksum.
+        private void uploadFile(File fileToSend) {
+            int transferId = nextTransferId.incrementAndGet();
+            long fileSize = fileToSend.length();
+            byte[] name = fileToSend.getName().getBytes(StandardCharsets.UTF_8);
+            byte[] key = uploadKey(fileToSend).getBytes(StandardCharsets.UTF_8);
+            ByteBuffer start = ByteBuffer.allocate(4 + 8 + 2 + name.length + 2 + key.length);
+            start.putInt(transferId).putLong(fileSize).putShort((short) name.length).put(name).putShort((short) key.length).put(key);
+            BlockingQueue<Long> offsets = new LinkedBlockingQueue<>();
+            uploadOffsets.put(transferId, offsets);
+            try (FileChannel file = FileChannel.open(fileToSend.toPath(), StandardOpenOption.READ)) {
+                sendFrame(Protocol.FrameType.FILE_START, start.array(), start.capacity());
+
+                ByteBuffer frame = ByteBuffer.allocate(Protocol.FILE_CHUNK_HEADER_LENGTH + Protocol.FILE_CHUNK_SIZE);
+                long offset;
+                while ((offset = nextUploadOffset(offsets)) < fileSize) {
+                    if (offset > 0) {
+                        show("[SYSTEM] Continuing '" + fileToSend.getName() + "' from byte " + offset + ".");
+                    }
+                    while (offset < fileSize) {
+                        int length = (int) Math.min(Protocol.FILE_CHUNK_SIZE, fileSize - offset);
+                        frame.clear().position(Protocol.FILE_CHUNK_HEADER_LENGTH).limit(Protocol.FILE_CHUNK_HEADER_LENGTH + length);
+                        while (frame.hasRemaining()) {
+                            if (file.read(frame, offset + frame.position() - Protocol.FILE_CHUNK_HEADER_LENGTH) < 0) {
+                                throw new EOFException("The file changed while it was being sent");
                             }
                         }
-                        messageArea.append("[SYSTEM] File '" + fileToSend.getName() + "' sent successfully.\n");
-                    } catch (IOException ex) {
-                        showErrorDialog("File Send Error", "Could not send the file: " + ex.getMessage());
+                        sendFrame(Protocol.chunkFrame(frame, transferId, offset));
+                        offset += length;
                     }
-                } else {
-                    JOptionPane.showMessageDialog(this, "File does not exist.", "Error", JOptionPane.ERROR_MESSAGE);
+                    sendFrame(Protocol.FrameType.FILE_END, ByteBuffer.allocate(4).putInt(transferId).array(), 4);
                 }
+                show("[SYSTEM] File '" + fileToSend.getName() + "' sent successfully.");
+            } catch (IOException ex) {
+                showErrorDialog("File Send Error", "Could not send the file: " + ex.getMessage());
+            } finally {
+                uploadOffsets.remove(transferId);
             }
         }
+
+        // The same unchanged file gets the same key, which is what lets the server resume it.
+        private static String uploadKey(File file) {
+            String identity = file.getAbsolutePath() + "\n" + file.length() + "\n" + file.lastModified();
+            return UUID.nameUUIDFromBytes(identity.getBytes(StandardCharsets.UTF_8)).toString();
+        }
+
+        // private long nextUploadOffset(BlockingQueue<Long> offsets)
+        private long nextUploadOffset(BlockingQueue<Long> offsets) throws IOException {
+            Long offset;
+            try {
+                offset = offsets.poll(60, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Upload interrupted");
+            }
+            if (offset == null) {
+                throw new IOException("The server did not answer");
+            }
+            if (offset < 0) {
+                throw new IOException("The server could not store the file");
+            }
+            return offset;
+        }
         
         // private void connectToServer()
         private void connectToServer() throws IOException {
-            socket = new Socket(serverAddress, PORT);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
+            socket = new Socket(serverAddress, serverPort);
+            inflating = new InflatingInputStream(new BufferedInputStream(socket.getInputStream()));
+            in = new DataInputStream(inflating);
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.write(Protocol.PREFACE);
+            out.flush();
+            Thread heartbeat = new Thread(this::heartbeat, "chat-heartbeat");
+            heartbeat.setDaemon(true);
+            heartbeat.start();
 
             new Thread(() -> {
                 try {
+                    skipGreeting();
+                    byte[] body = new byte[Protocol.FILE_CHUNK_HEADER_LENGTH + Protocol.FILE_CHUNK_SIZE];
                     while (true) {
-                        String line = in.readLine();
-                        if (line == null) {
-                            continue;
-                        }
-                        
-                        if (line.startsWith("SUBMITNAME")) {
-                            String userName = getUserName();
-                            out.println(userName);
-                        } else if (line.startsWith("NAMEACCEPTED")) {
-                            textField.setEditable(true);
-                            this.setTitle("Chat App - " + line.substring(13));
-                        } else if (line.startsWith("INCOMINGFILE:")) {
-                            String fileName = line.substring(13);
-                            messageArea.append("[SYSTEM] Receiving file: " + fileName + "\n");
-                            receiveFile(fileName);
-                        } else {
-                            messageArea.append(line + "\n");
-                            messageArea.setCaretPosition(messageArea.getDocument().getLength());
+                        int length = in.readInt();
+                        if (length < 1 || length > Protocol.MAX_FRAME_LENGTH) {
+                            throw new IOException("Invalid frame length " + length);
+                        }
+                        Protocol.FrameType type = Protocol.FrameType.fromCode(in.readByte());
+                        if (body.length < length - 1) {
+                            body = new byte[length - 1];
+                        }
+                        in.readFully(body, 0, length - 1);
+                        lastReceived = System.nanoTime();
+                        if (type != null) {
+                            handleFrame(type, ByteBuffer.wrap(body, 0, length - 1));
                         }
                     }
                 } catch (IOException e) {
@@ -342,27 +5639,229 @@ public class ChatApp {
             }).start();
         }
 
-        // private void receiveFile(String fileName)
-        private void receiveFile(String fileName) {
+        // The server pings us when we are quiet; this pings the server when it is, and closes the socket once the server
+        // has been silent past the idle timeout, so a dead connection ends the receive loop instead of hanging it.
+        private void heartbeat() {
+            long interval = TimeUnit.SECONDS.toNanos(Long.getLong("chat.heartbeat.interval", 30));
+            long timeout = TimeUnit.SECONDS.toNanos(Long.getLong("chat.idle.timeout", 90));
+            if (interval <= 0 || timeout <= 0) {
+                return;
+            }
+            long lastPing = System.nanoTime();
             try {
-                String userHome = System.getProperty("user.home");
-                File saveDir = new File(userHome, "Desktop");
-                if (!saveDir.exists()) {
-                    saveDir = new File(userHome);
+                while (!socket.isClosed()) {
+                    Thread.sleep(Math.max(100, TimeUnit.NANOSECONDS.toMillis(interval) / 4));
+                    long now = System.nanoTime();
+                    long idle = now - lastReceived;
+                    if (idle >= timeout) {
+                        socket.close();
+                    } else if (idle >= interval && now - lastPing >= interval) {
+                        lastPing = now;
+                        sendFrame(Protocol.FrameType.PING, new byte[0], 0);
+                    }
+                }
+            } catch (IOException e) {
+                // the receive loop reports the lost connection
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // The server greets every client with a "SUBMITNAME" line before it knows which protocol the client speaks.
+        private void skipGreeting() throws IOException {
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b == -1) {
+                    throw new EOFException();
                 }
-                File fileToSave = new File(saveDir, fileName);
+            }
+        }
 
-                try (FileOutputStream fos = new FileOutputStream(fileToSave)) {
-                    byte[] buffer = new byte[8192];
-                    int count;
-                    while ((count = socket.getInputStream().read(buffer)) > 0) {
-                        fos.write(buffer, 0, count);
-                        if (count < buffer.length) break;
+        // private void handleFrame(Protocol.FrameType type, ByteBuffer body)
+        private void handleFrame(Protocol.FrameType type, ByteBuffer body) throws IOException {
+            switch (type) {
+                case SUBMITNAME:
+                    // Asked for once; the answer arrives before the server's reply to NAME.
+                    if (!compressionRequested && body.hasRemaining() && (body.get() & Protocol.DEFLATE) != 0
+                            && Boolean.parseBoolean(System.getProperty("chat.compression", "true"))) {
+                        compressionRequested = true;
+                        sendFrame(Protocol.FrameType.COMPRESS, new byte[] {Protocol.DEFLATE}, 1);
                     }
-                }
-                messageArea.append("[SYSTEM] File '" + fileName + "' received and saved to your Desktop.\n");
+                    byte[] userName = getUserName().getBytes(StandardCharsets.UTF_8);
+                    sendFrame(Protocol.FrameType.NAME, userName, userName.length);
+                    break;
+                case PING:
+                    sendFrame(Protocol.FrameType.PONG, new byte[0], 0);
+                    break;
+                case COMPRESS:
+                    if (body.get() == Protocol.DEFLATE) {
+                        inflating.inflate();
+                    }
+                    break;
+                case NAMEACCEPTED:
+                    String title = "Chat App - " + Protocol.getText(body);
+                    SwingUtilities.invokeLater(() -> {
+                        textField.setEditable(true);
+                        setTitle(title);
+                    });
+                    break;
+                case CHAT:
+                case PRIVATE:
+                case SYSTEM:
+                    show(Protocol.getText(body));
+                    break;
+                case FILE_OFFER:
+                    byte[] hash = new byte[Protocol.HASH_LENGTH];
+                    body.get(hash);
+                    long fileSize = body.getLong();
+                    String fileName = Protocol.getString(body);
+                    show("[SYSTEM] Receiving file: " + fileName);
+                    receiveFile(hash, fileName, fileSize);
+                    break;
+                case FILE_CHUNK:
+                    IncomingFile file = incomingFiles.get(body.getInt());
+                    if (file != null) {
+                        long offset = body.getLong();
+                        file.write(offset, body.getInt(), body);
+                    }
+                    break;
+                case FILE_END:
+                    int requestId = body.getInt();
+                    IncomingFile pulled = incomingFiles.get(requestId);
+                    if (pulled != null && !pulled.pullNext()) {
+                        incomingFiles.remove(requestId);
+                        pulled.close();
+                    }
+                    break;
+                case FILE_RESUME:
+                    BlockingQueue<Long> offsets = uploadOffsets.get(body.getInt());
+                    if (offsets != null) {
+                        offsets.add(body.getLong());
+                    }
+                    break;
+                case FILE_ABORT:
+                    IncomingFile aborted = incomingFiles.remove(body.getInt());
+                    if (aborted != null) {
+                        aborted.abort();
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        // Offered files are pulled from the server in ranges, one range at a time, at whatever pace this client reads.
+        private void receiveFile(byte[] hash, String fileName, long fileSize) throws IOException {
+            String userHome = System.getProperty("user.home");
+            File saveDir = new File(userHome, "Desktop");
+            if (!saveDir.exists()) {
+                saveDir = new File(userHome);
+            }
+            File fileToSave = new File(saveDir, new File(fileName).getName());
+            int requestId = nextTransferId.incrementAndGet();
+            IncomingFile incoming;
+            try {
+                incoming = new IncomingFile(requestId, hash, fileName, fileToSave, fileSize);
             } catch (IOException e) {
-                messageArea.append("[SYSTEM] Error receiving file: " + e.getMessage() + "\n");
+                show("[SYSTEM] Error receiving file: " + e.getMessage());
+                return;
+            }
+            if (incoming.pullNext()) {
+                incomingFiles.put(requestId, incoming);
+            } else {
+                incoming.close();
+            }
+        }
+
+        // A file being written to disk chunk by chunk as its frames arrive. Every chunk is checked against its
+        // checksum and offset and the whole file against its SHA-256, so a damaged or incomplete file is reported
+        // instead of being saved silently.
+        private class IncomingFile {
+            private final int requestId;
+            private final byte[] hash;
+            private final String fileName;
+            private final File target;
+            private final long size;
+            private final OutputStream out;
+            private final CRC32C checksum = new CRC32C();
+            private final MessageDigest digest;
+            private long written;
+            private boolean failed;
+
+            IncomingFile(int requestId, byte[] hash, String fileName, File target, long size) throws IOException {
+                this.requestId = requestId;
+                this.hash = hash;
+                this.fileName = fileName;
+                this.target = target;
+                this.size = size;
+                try {
+                    this.digest = MessageDigest.getInstance("SHA-256");
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IOException(e);
+                }
+                this.out = new FileOutputStream(target);
+            }
+
+            // Asks for the next range; returns false when there is nothing left to ask for.
+            boolean pullNext() throws IOException {
+                if (failed || written >= size) {
+                    return false;
+                }
+                ByteBuffer request = ByteBuffer.allocate(4 + Protocol.HASH_LENGTH + 8 + 4);
+                request.putInt(requestId).put(hash).putLong(written).putInt(PULL_LENGTH);
+                sendFrame(Protocol.FrameType.FILE_PULL, request.array(), request.capacity());
+                return true;
+            }
+
+            void write(long offset, int expectedChecksum, ByteBuffer chunk) {
+                if (failed) {
+                    return;
+                }
+                checksum.reset();
+                checksum.update(chunk.duplicate());
+                if (offset != written || (int) checksum.getValue() != expectedChecksum) {
+                    fail("corrupted data at byte " + offset);
+                    return;
+                }
+                try {
+                    digest.update(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+                    out.write(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+                    written += chunk.remaining();
+                } catch (IOException e) {
+                    fail(e.getMessage());
+                }
+            }
+
+            void close() {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    fail(e.getMessage());
+                }
+                if (!failed && written != size) {
+                    fail("expected " + size + " bytes, got " + written);
+                }
+                if (!failed && !MessageDigest.isEqual(hash, digest.digest())) {
+                    fail("the file does not match its checksum");
+                }
+                if (!failed) {
+                    show("[SYSTEM] File '" + fileName + "' received and saved to your Desktop.");
+                }
+            }
+
+            void abort() {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+                target.delete();
+                show("[SYSTEM] '" + fileName + "' is no longer available on the server.");
+            }
+
+            // private void fail(String reason)
+            private void fail(String reason) {
+                failed = true;
+                show("[SYSTEM] Error receiving file: " + reason);
             }
         }
         
@@ -1,3 +1,4 @@
+import java.math.RoundingMode;
 import java.util.ArrayList;
 import java.util.List;
 import java.time.LocalDateTime;
@@ -5,52 +6,83 @@ import java.time.LocalDateTime;
 public class BankAccount {
 
     private String accountNumber;
-    private double balance;
-    private double interestRate; 
-    private List<Transaction> transactionHistory;
-    private final double OVERDRAFT_LIMIT = -500.0;
+    // All money is kept in whole cents; see Money.
+    private long balanceCents;
+    private long interestRate;
+    private RoundingMode interestRounding;
+    private TransactionHistory transactionHistory;
+    private final long OVERDRAFT_LIMIT_CENTS = -50_000;
 
     static class Transaction {
         enum Type { DEPOSIT, WITHDRAWAL, INTEREST }
         Type type;
-        double amount;
-        double newBalance;
+        long amountCents;
+        long newBalanceCents;
         LocalDateTime timestamp;
 
-        public Transaction(Type type, double amount, double newBalance) {
+        public Transaction(Type type, long amountCents, long newBalanceCents) {
+            this(type, amountCents, newBalanceCents, LocalDateTime.now());
+        }
+
+        public Transaction(Type type, long amountCents, long newBalanceCents, LocalDateTime timestamp) {
             this.type = type;
-            this.amount = amount;
-            this.newBalance = newBalance;
-            this.timestamp = LocalDateTime.now();
+            this.amountCents = amountCents;
+            this.newBalanceCents = newBalanceCents;
+            this.timestamp = timestamp;
         }
 
         @Override
         public String toString() {
-            return String.format("%s: %.2f (New Balance: %.2f) at %s",
-                    type, amount, newBalance, timestamp);
+            return String.format("%s: %s (New Balance: %s) at %s",
+                    type, Money.format(amountCents), Money.format(newBalanceCents), timestamp);
         }
     }
- 
+
     //constructor
     public BankAccount(String accountNumber, double initialBalance, double interestRate) {
-        if (initialBalance < OVERDRAFT_LIMIT) {
+        this(accountNumber, initialBalance, interestRate, RoundingMode.HALF_EVEN);
+    }
+
+    // interestRounding decides which way interest that falls between two cents goes.
+    public BankAccount(String accountNumber, double initialBalance, double interestRate, RoundingMode interestRounding) {
+        long initialCents = Money.toCents(initialBalance);
+        if (initialCents < OVERDRAFT_LIMIT_CENTS) {
             throw new IllegalArgumentException("Initial balance cannot be below overdraft limit.");
         }
         this.accountNumber = accountNumber;
-        this.balance = initialBalance;
-        this.interestRate = interestRate;
-        this.transactionHistory = new ArrayList<>();
-        if (initialBalance > 0) {
-            transactionHistory.add(new Transaction(Transaction.Type.DEPOSIT, initialBalance, initialBalance));
+        this.balanceCents = initialCents;
+        this.interestRate = Money.toRate(interestRate);
+        this.interestRounding = interestRounding;
+        this.transactionHistory = new TransactionHistory();
+        if (initialCents > 0) {
+            transactionHistory.append(Transaction.Type.DEPOSIT, initialCents, initialCents);
         }
     }
+
+    // Rebuilds an account from its saved state; nothing is checked or recorded.
+    BankAccount(String accountNumber, long balanceCents, long interestRate, RoundingMode interestRounding,
+            TransactionHistory transactionHistory) {
+        this.accountNumber = accountNumber;
+        this.balanceCents = balanceCents;
+        this.interestRate = interestRate;
+        this.interestRounding = interestRounding;
+        this.transactionHistory = transactionHistory;
+    }
+
     //deposit method
     public void deposit(double amount) {
         if (amount <= 0) {
             throw new IllegalArgumentException("Deposit amount must be positive.");
         }
-        balance += amount;
-        transactionHistory.add(new Transaction(Transaction.Type.DEPOSIT, amount, balance));
+        depositCents(Money.toCents(amount));
+    }
+
+    public void depositCents(long amountCents) {
+        if (amountCents <= 0) {
+            throw new IllegalArgumentException("Deposit amount must be at least one cent.");
+        }
+        balanceCents = Math.addExact(balanceCents, amountCents);
+        transactionHistory.append(Transaction.Type.DEPOSIT, amountCents, balanceCents);
     }
 
     //withdraw method
@@ -58,9 +90,16 @@ public class BankAccount {
         if (amount <= 0) {
             throw new IllegalArgumentException("Withdrawal amount must be positive.");
         }
-        if (balance - amount >= OVERDRAFT_LIMIT) {
-            balance -= amount;
-            transactionHistory.add(new Transaction(Transaction.Type.WITHDRAWAL, amount, balance));
+        return withdrawCents(Money.toCents(amount));
+    }
+
+    public boolean withdrawCents(long amountCents) {
+        if (amountCents <= 0) {
+            throw new IllegalArgumentException("Withdrawal amount must be at least one cent.");
+        }
+        if (amountCents <= balanceCents - OVERDRAFT_LIMIT_CENTS) {
+            balanceCents -= amountCents;
+            transactionHistory.append(Transaction.Type.WITHDRAWAL, amountCents, balanceCents);
             return true;
         }
         return false;
@@ -68,22 +107,129 @@ public class BankAccount {
 
     //apply interest method
     public void applyInterest() {
-        if (balance > 0) {
-            double monthlyInterest = balance * (interestRate / 12);
-            balance += monthlyInterest;
-            transactionHistory.add(new Transaction(Transaction.Type.INTEREST, monthlyInterest, balance));
+        if (balanceCents > 0) {
+            long monthlyInterest = Money.interest(balanceCents, interestRate, 12, interestRounding);
+            balanceCents = Math.addExact(balanceCents, monthlyInterest);
+            transactionHistory.append(Transaction.Type.INTEREST, monthlyInterest, balanceCents);
+        }
+    }
+
+    // Applies the items of the batch that are for this account in one pass, in the order they were added, and marks
+    // the rest NO_SUCH_ACCOUNT. An item that fails its checks is marked and skipped instead of throwing, so the rest
+    // of the batch still goes through. All of the batch's transactions get the same time.
+    public void apply(TransactionBatch batch) {
+        long now = TransactionHistory.now();
+        // Room for this account's items only, so a batch mostly for other accounts does not grow the history.
+        int mine = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            if (accountNumber.equals(batch.account(i))) {
+                mine++;
+            }
+        }
+        transactionHistory.reserve(mine);
+        for (int i = 0; i < batch.size(); i++) {
+            if (accountNumber.equals(batch.account(i))) {
+                post(batch, i, now);
+            } else {
+                batch.record(i, TransactionBatch.Status.NO_SUCH_ACCOUNT, 0);
+            }
+        }
+    }
+
+    // Checks and applies one batch item, then records how it went in the batch. Returns whether a transaction was
+    // added to the history; interest on a balance that is not positive is applied but adds nothing.
+    boolean post(TransactionBatch batch, int item, long timestampNanos) {
+        Transaction.Type type = batch.typeOf(item);
+        long amountCents = batch.amount(item);
+        if (type == Transaction.Type.INTEREST) {
+            if (balanceCents <= 0) {
+                batch.record(item, TransactionBatch.Status.APPLIED, balanceCents);
+                return false;
+            }
+        } else if (amountCents <= 0) {
+            batch.record(item, TransactionBatch.Status.INVALID_AMOUNT, balanceCents);
+            return false;
+        } else if (type == Transaction.Type.WITHDRAWAL && amountCents > balanceCents - OVERDRAFT_LIMIT_CENTS) {
+            batch.record(item, TransactionBatch.Status.DECLINED, balanceCents);
+            return false;
+        }
+        long newBalance;
+        try {
+            // Interest on a large enough balance overflows while it is worked out, not only when it is added.
+            if (type == Transaction.Type.INTEREST) {
+                amountCents = Money.interest(balanceCents, interestRate, 12, interestRounding);
+            }
+            newBalance = type == Transaction.Type.WITHDRAWAL ? balanceCents - amountCents
+                    : Math.addExact(balanceCents, amountCents);
+        } catch (ArithmeticException e) {
+            batch.record(item, TransactionBatch.Status.INVALID_AMOUNT, balanceCents);
+            return false;
+        }
+        balanceCents = newBalance;
+        transactionHistory.append(type, amountCents, balanceCents, timestampNanos);
+        batch.record(item, TransactionBatch.Status.APPLIED, balanceCents);
+        return true;
+    }
+
+    // Repeats a transaction read back from a journal. It already passed every check when it was first made.
+    void replay(Transaction.Type type, long amountCents, long timestampNanos) {
+        balanceCents += type == Transaction.Type.WITHDRAWAL ? -amountCents : amountCents;
+        transactionHistory.append(type, amountCents, balanceCents, timestampNanos);
+    }
+
+    // Takes the account back to the balance it had when it held count transactions, dropping the ones made since. Does
+    // nothing if none were made, so taking the same change back twice is harmless.
+    void undo(int count, long balanceCents) {
+        if (transactionHistory.size() > count) {
+            transactionHistory.truncate(count);
+            this.balanceCents = balanceCents;
         }
     }
 
     public double getBalance() {
-        return balance;
+        return Money.toDouble(balanceCents);
+    }
+
+    public long getBalanceCents() {
+        return balanceCents;
     }
 
     public String getAccountNumber() {
         return accountNumber;
     }
 
+    // Builds one object per transaction; statements and other readers of long histories should use history().
     public List<Transaction> getTransactionHistory() {
-        return new ArrayList<>(transactionHistory); 
+        List<Transaction> transactions = new ArrayList<>(transactionHistory.size());
+        TransactionHistory.Cursor cursor = transactionHistory.cursor();
+        while (cursor.next()) {
+            transactions.add(cursor.toTransaction());
+        }
+        return transactions;
+    }
+
+    // Reads the transactions made so far in place, without copying them.
+    public TransactionHistory.Cursor history() {
+        return transactionHistory.cursor();
+    }
+
+    public TransactionHistory.Cursor history(int from, int to) {
+        return transactionHistory.cursor(from, to);
+    }
+
+    public int getTransactionCount() {
+        return transactionHistory.size();
+    }
+
+    long lastTransactionNanos() {
+        return transactionHistory.lastTimestampNanos();
+    }
+
+    long interestRate() {
+        return interestRate;
+    }
+
+    RoundingMode interestRounding() {
+        return interestRounding;
     }
-}
\ No newline at end of file
+}
@@ -4,6 +4,8 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 
+import java.math.RoundingMode;
+
 @DisplayName("Bank Account Unit Tests")
 public class BankAccountTest {
 
@@ -125,4 +127,114 @@ public class BankAccountTest {
         account.applyInterest();
         assertEquals(initialHistorySize + 1, account.getTransactionHistory().size(), "History size should increase by 1 after interest.");
     }
+
+    // --- Fixed-Point Test Cases ---
+    @Test
+    @DisplayName("Repeated small deposits add up exactly.")
+    void testDeposit_ExactCents() {
+        for (int i = 0; i < 10; i++) {
+            account.deposit(0.10);
+        }
+        assertEquals(100_100L, account.getBalanceCents(), "Ten deposits of 0.10 should add exactly one unit.");
+    }
+
+    @Test
+    @DisplayName("Depositing less than one cent should throw an exception.")
+    void testDeposit_BelowOneCent() {
+        assertThrows(IllegalArgumentException.class, () -> account.deposit(0.001), "Sub-cent deposit should fail.");
+    }
+
+    @Test
+    @DisplayName("Interest that falls on half a cent follows the rounding mode.")
+    void testInterest_RoundingModes() {
+        // 6% a year on 3.00 is 1.5 cents a month.
+        BankAccount halfEven = new BankAccount("1", 3.0, 0.06);
+        BankAccount halfUp = new BankAccount("2", 3.0, 0.06, RoundingMode.HALF_UP);
+        BankAccount down = new BankAccount("3", 3.0, 0.06, RoundingMode.DOWN);
+        halfEven.applyInterest();
+        halfUp.applyInterest();
+        down.applyInterest();
+        assertEquals(302L, halfEven.getBalanceCents(), "Half-even should round 1.5 cents to 2.");
+        assertEquals(302L, halfUp.getBalanceCents(), "Half-up should round 1.5 cents to 2.");
+        assertEquals(301L, down.getBalanceCents(), "Down should drop the half cent.");
+
+        // On 1.00 it is half a cent, which half-even rounds to 0 and half-up to 1.
+        BankAccount evenZero = new BankAccount("4", 1.0, 0.06);
+        BankAccount upOne = new BankAccount("5", 1.0, 0.06, RoundingMode.HALF_UP);
+        evenZero.applyInterest();
+        upOne.applyInterest();
+        assertEquals(100L, evenZero.getBalanceCents(), "Half-even should round half a cent to 0.");
+        assertEquals(101L, upOne.getBalanceCents(), "Half-up should round half a cent to 1.");
+    }
+
+    @Test
+    @DisplayName("Rounded division handles negative amounts and every rounding mode.")
+    void testMoney_Divide() {
+        assertEquals(-2L, Money.divide(-15, 10, RoundingMode.HALF_EVEN), "-1.5 rounds half-even to -2.");
+        assertEquals(-1L, Money.divide(-15, 10, RoundingMode.HALF_DOWN), "-1.5 rounds half-down to -1.");
+        assertEquals(-1L, Money.divide(-15, 10, RoundingMode.CEILING), "-1.5 rounds up to -1.");
+        assertEquals(-2L, Money.divide(-15, 10, RoundingMode.FLOOR), "-1.5 rounds down to -2.");
+        assertEquals(2L, Money.divide(11, 10, RoundingMode.UP), "1.1 rounds away from zero to 2.");
+        assertThrows(ArithmeticException.class, () -> Money.divide(11, 10, RoundingMode.UNNECESSARY), "Inexact division should fail.");
+        assertEquals("-0.05", Money.format(-5), "Formatting should keep the sign of small amounts.");
+    }
+
+    @Test
+    @DisplayName("Transactions record exact cents.")
+    void testTransactionHistory_ExactCents() {
+        account.withdraw(0.07);
+        BankAccount.Transaction last = account.getTransactionHistory().get(account.getTransactionHistory().size() - 1);
+        assertEquals(7L, last.amountCents, "Withdrawal should record 7 cents.");
+        assertEquals(99_993L, last.newBalanceCents, "New balance should be 999.93.");
+    }
+
+    // --- History Cursor Test Cases ---
+    @Test
+    @DisplayName("Cursor reads every transaction in order.")
+    void testHistory_CursorInOrder() {
+        account.deposit(5.0);
+        account.withdraw(2.5);
+        account.applyInterest();
+        TransactionHistory.Cursor cursor = account.history();
+        assertTrue(cursor.next(), "Opening deposit should be first.");
+        assertEquals(BankAccount.Transaction.Type.DEPOSIT, cursor.type(), "First entry should be a deposit.");
+        assertEquals(100_000L, cursor.newBalanceCents(), "Opening balance should be 1000.00.");
+        assertTrue(cursor.next(), "Deposit should be second.");
+        assertEquals(500L, cursor.amountCents(), "Deposit should be 5.00.");
+        assertTrue(cursor.next(), "Withdrawal should be third.");
+        assertEquals(BankAccount.Transaction.Type.WITHDRAWAL, cursor.type(), "Third entry should be a withdrawal.");
+        assertEquals(100_250L, cursor.newBalanceCents(), "Balance should be 1002.50.");
+        assertTrue(cursor.next(), "Interest should be fourth.");
+        assertEquals(BankAccount.Transaction.Type.INTEREST, cursor.type(), "Fourth entry should be interest.");
+        assertEquals(account.getBalanceCents(), cursor.newBalanceCents(), "Last entry should end at the balance.");
+        assertFalse(cursor.next(), "There should be no fifth entry.");
+    }
+
+    @Test
+    @DisplayName("Cursor keeps reading its own entries while more are added.")
+    void testHistory_CursorSnapshot() {
+        TransactionHistory.Cursor cursor = account.history();
+        for (int i = 0; i < 1000; i++) {
+            account.deposit(1.0);
+        }
+        assertTrue(cursor.next(), "Opening deposit should still be there.");
+        assertEquals(100_000L, cursor.amountCents(), "Opening deposit should be unchanged.");
+        assertFalse(cursor.next(), "Entries added later should not be seen.");
+        assertEquals(1001, account.getTransactionCount(), "History should hold every deposit.");
+    }
+
+    @Test
+    @DisplayName("Range cursor reads only the requested entries.")
+    void testHistory_Range() {
+        for (int i = 1; i <= 10; i++) {
+            account.deposit(i);
+        }
+        TransactionHistory.Cursor cursor = account.history(3, 5);
+        assertTrue(cursor.next(), "Range should have a first entry.");
+        assertEquals(300L, cursor.amountCents(), "Entry 3 should be the 3.00 deposit.");
+        assertTrue(cursor.next(), "Range should have a second entry.");
+        assertEquals(400L, cursor.amountCents(), "Entry 4 should be the 4.00 deposit.");
+        assertFalse(cursor.next(), "Range should end before entry 5.");
+        assertThrows(IndexOutOfBoundsException.class, () -> account.history(5, 12), "Range past the end should fail.");
+    }
 }
@@ -0,0 +1,491 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.RoundingMode;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Keeps many bank accounts that any number of threads may use at once. Every account is guarded by one of a fixed
+// set of locks picked by its account number, so threads working on different accounts rarely wait for each other,
+// and no thread ever waits on a lock shared by the whole ledger.
+//
+// A ledger made with open() is also kept on disk by a LedgerJournal and comes back as it was after a restart. Each
+// change is journaled under the same lock that made it, so the journal has every account's changes in order, and the
+// caller then waits for the disk outside the lock. A change the journal can no longer take, because it has failed or
+// been closed, is turned down before it is made. With SYNC durability one whose record did not reach the disk is taken
+// back before the caller hears of the failure, so the accounts never keep a change that recovery would not bring back.
+public class Ledger implements Closeable {
+
+    public static final long DEFAULT_SNAPSHOT_BYTES = 64L * 1024 * 1024;
+    // More locks than this barely lowers contention, and snapshot() nests one call per lock to hold them all.
+    private static final int MAX_STRIPES = 1024;
+
+    private final Map<String, BankAccount> accounts = new ConcurrentHashMap<>();
+    private final Object[] stripes;
+    private final Object snapshotLock = new Object();
+    private final AtomicBoolean snapshotting = new AtomicBoolean();
+    private LedgerJournal journal;
+
+    public Ledger() {
+        this(Runtime.getRuntime().availableProcessors() * 16);
+    }
+
+    public Ledger(int stripeCount) {
+        if (stripeCount < 1) {
+            throw new IllegalArgumentException("A ledger needs at least one lock.");
+        }
+        // A power of two, so picking a stripe is a mask instead of a division.
+        int wanted = Math.min(stripeCount, MAX_STRIPES);
+        int size = Integer.highestOneBit(wanted);
+        if (size < wanted) {
+            size <<= 1;
+        }
+        stripes = new Object[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new Object();
+        }
+    }
+
+    public static Ledger open(Path directory) throws IOException {
+        return open(directory, LedgerJournal.Durability.SYNC, DEFAULT_SNAPSHOT_BYTES);
+    }
+
+    // Recovers the ledger kept in the directory, or starts an empty one there. A snapshot is taken in the background
+    // whenever the journal has grown by snapshotBytes since the last one, which bounds how much recovery replays.
+    public static Ledger open(Path directory, LedgerJournal.Durability durability, long snapshotBytes)
+            throws IOException {
+        Ledger ledger = new Ledger();
+        ledger.journal = LedgerJournal.open(directory, durability, snapshotBytes, ledger.new Recovery());
+        return ledger;
+    }
+
+    public void openAccount(String accountNumber, double initialBalance, double interestRate) {
+        openAccount(accountNumber, initialBalance, interestRate, RoundingMode.HALF_EVEN);
+    }
+
+    public void openAccount(String accountNumber, double initialBalance, double interestRate,
+            RoundingMode interestRounding) {
+        BankAccount account = new BankAccount(accountNumber, initialBalance, interestRate, interestRounding);
+        Change change = new Change(0);
+        synchronized (lockFor(accountNumber)) {
+            checkJournal();
+            if (accounts.putIfAbsent(accountNumber, account) != null) {
+                throw new IllegalArgumentException("Account " + accountNumber + " already exists.");
+            }
+            change.logOpen(account);
+        }
+        committed(change);
+    }
+
+    public void deposit(String accountNumber, double amount) {
+        BankAccount account = account(accountNumber);
+        Change change = new Change(1);
+        synchronized (lockFor(accountNumber)) {
+            change.before(account);
+            account.deposit(amount);
+            change.logApplied(account, BankAccount.Transaction.Type.DEPOSIT);
+        }
+        committed(change);
+    }
+
+    public boolean withdraw(String accountNumber, double amount) {
+        BankAccount account = account(accountNumber);
+        boolean withdrawn;
+        Change change = new Change(1);
+        synchronized (lockFor(accountNumber)) {
+            change.before(account);
+            withdrawn = account.withdraw(amount);
+            change.logApplied(account, BankAccount.Transaction.Type.WITHDRAWAL);
+        }
+        committed(change);
+        return withdrawn;
+    }
+
+    public void applyInterest(String accountNumber) {
+        BankAccount account = account(accountNumber);
+        Change change = new Change(1);
+        synchronized (lockFor(accountNumber)) {
+            change.before(account);
+            account.applyInterest();
+            change.logApplied(account, BankAccount.Transaction.Type.INTEREST);
+        }
+        committed(change);
+    }
+
+    // Each account is updated under its own lock, so this is not one atomic step across the whole ledger. If one
+    // account fails, the ones already updated are still waited for, and taken back if the journal lost them.
+    public void applyInterestToAll() {
+        Change change = new Change(accounts.size());
+        try {
+            for (Map.Entry<String, BankAccount> entry : accounts.entrySet()) {
+                BankAccount account = entry.getValue();
+                synchronized (lockFor(entry.getKey())) {
+                    change.before(account);
+                    account.applyInterest();
+                    change.logApplied(account, BankAccount.Transaction.Type.INTEREST);
+                }
+            }
+        } finally {
+            committed(change);
+        }
+    }
+
+    // Moves the money only if the source account stays within its overdraft limit; either both accounts change or
+    // neither does. Both locks are always taken lowest stripe first, so two transfers in opposite directions between
+    // the same accounts cannot each hold the lock the other one is waiting for.
+    public boolean transfer(String fromAccountNumber, String toAccountNumber, double amount) {
+        if (fromAccountNumber.equals(toAccountNumber)) {
+            throw new IllegalArgumentException("Cannot transfer to the same account.");
+        }
+        long amountCents = Money.toCents(amount);
+        if (amountCents <= 0) {
+            throw new IllegalArgumentException("Transfer amount must be at least one cent.");
+        }
+        BankAccount from = account(fromAccountNumber);
+        BankAccount to = account(toAccountNumber);
+        int fromStripe = stripe(fromAccountNumber);
+        int toStripe = stripe(toAccountNumber);
+        Object first = stripes[Math.min(fromStripe, toStripe)];
+        Object second = stripes[Math.max(fromStripe, toStripe)];
+        Change change = new Change(2);
+        synchronized (first) {
+            synchronized (second) {
+                // Checked before anything changes, so a deposit that cannot fit leaves both accounts as they were.
+                if (to.getBalanceCents() > Long.MAX_VALUE - amountCents) {
+                    throw new ArithmeticException("Transfer would overflow the balance of " + toAccountNumber + ".");
+                }
+                change.before(from);
+                change.before(to);
+                if (!from.withdrawCents(amountCents)) {
+                    return false;
+                }
+                to.depositCents(amountCents);
+                change.logTransfer(from, to, amountCents);
+            }
+        }
+        committed(change);
+        return true;
+    }
+
+    // Applies a batch for any number of accounts and marks each item with how it went; see TransactionBatch. The items
+    // are sorted by lock first, so each lock is taken once for all of its items, and a ledger kept on disk journals the
+    // whole batch before waiting for the disk once. Every account sees its items in the order they were added, but as
+    // with applyInterestToAll the batch is not one atomic step across the whole ledger.
+    public void apply(TransactionBatch batch) {
+        int size = batch.size();
+        BankAccount[] targets = new BankAccount[size];
+        int[] stripeOf = new int[size];
+        int[] starts = new int[stripes.length + 1];
+        for (int i = 0; i < size; i++) {
+            String accountNumber = batch.account(i);
+            targets[i] = accounts.get(accountNumber);
+            if (targets[i] == null) {
+                batch.record(i, TransactionBatch.Status.NO_SUCH_ACCOUNT, 0);
+            } else {
+                stripeOf[i] = stripe(accountNumber);
+                starts[stripeOf[i] + 1]++;
+            }
+        }
+        // A counting sort, which keeps the items of each stripe in their original order.
+        for (int s = 0; s < stripes.length; s++) {
+            starts[s + 1] += starts[s];
+        }
+        int[] order = new int[starts[stripes.length]];
+        int[] next = Arrays.copyOf(starts, stripes.length);
+        for (int i = 0; i < size; i++) {
+            if (targets[i] != null) {
+                order[next[stripeOf[i]]++] = i;
+            }
+        }
+
+        long now = TransactionHistory.now();
+        Change change = new Change(order.length);
+        try {
+            for (int s = 0; s < stripes.length; s++) {
+                if (starts[s] == starts[s + 1]) {
+                    continue;
+                }
+                synchronized (stripes[s]) {
+                    for (int k = starts[s]; k < starts[s + 1]; k++) {
+                        int item = order[k];
+                        BankAccount account = targets[item];
+                        change.before(account);
+                        account.post(batch, item, now);
+                        change.logApplied(account, batch.typeOf(item));
+                    }
+                }
+            }
+        } finally {
+            committed(change);
+        }
+    }
+
+    public double getBalance(String accountNumber) {
+        BankAccount account = account(accountNumber);
+        synchronized (lockFor(accountNumber)) {
+            return account.getBalance();
+        }
+    }
+
+    public long getBalanceCents(String accountNumber) {
+        BankAccount account = account(accountNumber);
+        synchronized (lockFor(accountNumber)) {
+            return account.getBalanceCents();
+        }
+    }
+
+    public List<BankAccount.Transaction> getTransactionHistory(String accountNumber) {
+        BankAccount account = account(accountNumber);
+        synchronized (lockFor(accountNumber)) {
+            return account.getTransactionHistory();
+        }
+    }
+
+    // The cursor is taken under the account's lock and afterwards reads only entries that are never changed again, so
+    // it can be read without the lock while the account keeps changing.
+    public TransactionHistory.Cursor history(String accountNumber) {
+        BankAccount account = account(accountNumber);
+        synchronized (lockFor(accountNumber)) {
+            return account.history();
+        }
+    }
+
+    public int size() {
+        return accounts.size();
+    }
+
+    // Writes every account to a new snapshot and drops the journals it replaces. Changes stop only while the journal
+    // moves to a new file and the balances are copied; the histories are written out after the locks are released.
+    public void snapshot() throws IOException {
+        if (journal == null) {
+            throw new IllegalStateException("This ledger is not kept on disk.");
+        }
+        synchronized (snapshotLock) {
+            List<LedgerJournal.Image> images = new ArrayList<>(accounts.size());
+            long generation = captureAll(0, images);
+            journal.writeSnapshot(generation, images);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (journal != null) {
+            synchronized (snapshotLock) {
+                journal.close();
+            }
+        }
+    }
+
+    // Takes every stripe lock in order, the same order transfers use, then rotates the journal with nothing moving.
+    private long captureAll(int stripe, List<LedgerJournal.Image> images) throws IOException {
+        if (stripe == stripes.length) {
+            for (BankAccount account : accounts.values()) {
+                images.add(new LedgerJournal.Image(account));
+            }
+            return journal.rotate();
+        }
+        synchronized (stripes[stripe]) {
+            return captureAll(stripe + 1, images);
+        }
+    }
+
+    // Turns a change down before it is made if the journal could not take its record. Called with the lock held.
+    private void checkJournal() {
+        if (journal != null) {
+            journal.checkWritable();
+        }
+    }
+
+    // Waits for the disk outside the account locks, taking the change back if its records did not get there, then
+    // starts a snapshot if the journal has grown enough.
+    private void committed(Change change) {
+        if (change.position == 0) {
+            return;
+        }
+        try {
+            journal.awaitDurable(change.position);
+        } catch (UncheckedIOException e) {
+            change.takeBack();
+            throw e;
+        }
+        if (journal.wantsSnapshot() && snapshotting.compareAndSet(false, true)) {
+            Thread snapshotter = new Thread(() -> {
+                try {
+                    synchronized (snapshotLock) {
+                        // close() may have got there first.
+                        if (journal.wantsSnapshot()) {
+                            snapshot();
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("Could not write a ledger snapshot: " + e.getMessage());
+                } finally {
+                    snapshotting.set(false);
+                }
+            }, "ledger-snapshot");
+            snapshotter.setDaemon(true);
+            snapshotter.start();
+        }
+    }
+
+    private BankAccount account(String accountNumber) {
+        BankAccount account = accounts.get(accountNumber);
+        if (account == null) {
+            throw new IllegalArgumentException("No account " + accountNumber + ".");
+        }
+        return account;
+    }
+
+    private Object lockFor(String accountNumber) {
+        return stripes[stripe(accountNumber)];
+    }
+
+    private int stripe(String accountNumber) {
+        int h = accountNumber.hashCode();
+        return (h ^ (h >>> 16)) & (stripes.length - 1);
+    }
+
+    // What one operation did to the accounts of a ledger kept on disk: how each account was before it was changed, and
+    // where in the journal the last record for it ends. Nothing is kept for a ledger kept only in memory.
+    private final class Change {
+
+        private final int capacity;
+        private BankAccount opened;
+        private BankAccount[] changed;
+        private long[] balances;
+        private int[] counts;
+        private int size;
+        private long position;
+
+        Change(int capacity) {
+            this.capacity = capacity;
+        }
+
+        // Called with the account's lock held, just before the account is changed.
+        void before(BankAccount account) {
+            if (journal == null) {
+                return;
+            }
+            journal.checkWritable();
+            if (changed == null) {
+                changed = new BankAccount[Math.max(capacity, 2)];
+                balances = new long[changed.length];
+                counts = new int[changed.length];
+            } else if (size == changed.length) {
+                changed = Arrays.copyOf(changed, size * 2);
+                balances = Arrays.copyOf(balances, size * 2);
+                counts = Arrays.copyOf(counts, size * 2);
+            }
+            changed[size] = account;
+            balances[size] = account.getBalanceCents();
+            counts[size] = account.getTransactionCount();
+            size++;
+        }
+
+        // Journals the change made to the account since before(), if it made one, or takes it back on the spot if the
+        // journal cannot take the record. Called with the account's lock still held.
+        void logApplied(BankAccount account, BankAccount.Transaction.Type type) {
+            if (journal == null) {
+                return;
+            }
+            size--;
+            if (account.getTransactionCount() == counts[size]) {
+                return;
+            }
+            try {
+                position = Math.max(position, journal.logApplied(account.getAccountNumber(), type,
+                        Math.abs(account.getBalanceCents() - balances[size]), account.lastTransactionNanos()));
+            } catch (RuntimeException e) {
+                account.undo(counts[size], balances[size]);
+                throw e;
+            }
+            size++;
+        }
+
+        // The same for a transfer, whose accounts were passed to before() in this order. Both locks are still held.
+        void logTransfer(BankAccount from, BankAccount to, long amountCents) {
+            if (journal == null) {
+                return;
+            }
+            try {
+                position = journal.logTransfer(from.getAccountNumber(), to.getAccountNumber(), amountCents,
+                        from.lastTransactionNanos(), to.lastTransactionNanos());
+            } catch (RuntimeException e) {
+                size -= 2;
+                from.undo(counts[size], balances[size]);
+                to.undo(counts[size + 1], balances[size + 1]);
+                throw e;
+            }
+        }
+
+        // The same for a new account, which is dropped again if the journal cannot take it.
+        void logOpen(BankAccount account) {
+            if (journal == null) {
+                return;
+            }
+            long openedNanos = account.getTransactionCount() > 0 ? account.lastTransactionNanos() : 0;
+            try {
+                position = journal.logOpen(account.getAccountNumber(), account.getBalanceCents(),
+                        account.interestRate(), account.interestRounding(), openedNanos);
+            } catch (RuntimeException e) {
+                accounts.remove(account.getAccountNumber(), account);
+                throw e;
+            }
+            opened = account;
+        }
+
+        // Puts every account back the way it was before this operation, taking one lock at a time with none held. The
+        // journal has failed, so nothing else can change the accounts now; an operation whose record was lost along
+        // with this one's takes its own change back, and the two end in the same state whichever goes first.
+        void takeBack() {
+            for (int i = size - 1; i >= 0; i--) {
+                synchronized (lockFor(changed[i].getAccountNumber())) {
+                    changed[i].undo(counts[i], balances[i]);
+                }
+            }
+            if (opened != null) {
+                synchronized (lockFor(opened.getAccountNumber())) {
+                    accounts.remove(opened.getAccountNumber(), opened);
+                }
+            }
+        }
+    }
+
+    // Rebuilds the accounts from what LedgerJournal reads back. Runs before the ledger is handed to anyone.
+    private class Recovery implements LedgerJournal.Listener {
+
+        @Override
+        public void restored(BankAccount account) {
+            accounts.put(account.getAccountNumber(), account);
+        }
+
+        @Override
+        public void opened(String accountNumber, long initialCents, long interestRate, RoundingMode interestRounding,
+                long timestampNanos) {
+            BankAccount account = new BankAccount(accountNumber, initialCents > 0 ? 0 : initialCents, interestRate,
+                    interestRounding, new TransactionHistory());
+            if (initialCents > 0) {
+                account.replay(BankAccount.Transaction.Type.DEPOSIT, initialCents, timestampNanos);
+            }
+            accounts.put(accountNumber, account);
+        }
+
+        @Override
+        public void applied(String accountNumber, BankAccount.Transaction.Type type, long amountCents,
+                long timestampNanos) {
+            account(accountNumber).replay(type, amountCents, timestampNanos);
+        }
+
+        @Override
+        public void transferred(String fromAccountNumber, String toAccountNumber, long amountCents,
+                long withdrawnNanos, long depositedNanos) {
+            account(fromAccountNumber).replay(BankAccount.Transaction.Type.WITHDRAWAL, amountCents, withdrawnNanos);
+            account(toAccountNumber).replay(BankAccount.Transaction.Type.DEPOSIT, amountCents, depositedNanos);
+        }
+    }
+}
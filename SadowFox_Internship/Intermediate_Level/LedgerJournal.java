@@ -0,0 +1,641 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+// Keeps a Ledger on disk. Every change is appended to a journal as one record,
+// [int length][int crc32c][byte kind][payload], where length and checksum cover everything after them. Changes
+// from all threads are collected in memory and written by one thread, which makes everything written so far durable
+// with a single fsync, so threads that wait for their change to reach the disk share the cost of waiting.
+//
+// The journal is split into generations, journal-N.log. A snapshot, ledger.snapshot, holds every account with its
+// full history as of the end of one generation, so recovery loads the snapshot and replays only the generations
+// after it. Recovery reads the journals through memory maps. A record cut short by a crash fails its checksum and
+// is cut off the end of the newest journal. Damage with intact records after it is not something a crash leaves, so
+// recovery refuses to go on rather than drop changes that were already durable.
+public class LedgerJournal implements Closeable {
+
+    public enum Durability {
+        // A change is on disk before the call that made it returns.
+        SYNC,
+        // Changes reach the disk within ten milliseconds; a crash can lose the last few.
+        ASYNC
+    }
+
+    // What recovery finds, in the order it was written.
+    interface Listener {
+        void restored(BankAccount account);
+
+        void opened(String accountNumber, long initialCents, long interestRate, RoundingMode interestRounding,
+                long timestampNanos);
+
+        void applied(String accountNumber, BankAccount.Transaction.Type type, long amountCents, long timestampNanos);
+
+        void transferred(String fromAccountNumber, String toAccountNumber, long amountCents, long withdrawnNanos,
+                long depositedNanos);
+    }
+
+    // One account as it was when a snapshot was started. The cursor keeps reading the history as it was then.
+    static final class Image {
+        final String accountNumber;
+        final long balanceCents;
+        final long interestRate;
+        final RoundingMode interestRounding;
+        final TransactionHistory.Cursor history;
+        final int transactionCount;
+
+        Image(BankAccount account) {
+            this.accountNumber = account.getAccountNumber();
+            this.balanceCents = account.getBalanceCents();
+            this.interestRate = account.interestRate();
+            this.interestRounding = account.interestRounding();
+            this.history = account.history();
+            this.transactionCount = account.getTransactionCount();
+        }
+    }
+
+    private static final byte OPEN = 1;
+    private static final byte DEPOSIT = 2;
+    private static final byte WITHDRAWAL = 3;
+    private static final byte INTEREST = 4;
+    private static final byte TRANSFER = 5;
+    private static final int HEADER = 8;
+    private static final int MAX_RECORD = 1 + 4 * (2 + 65535) + 40;
+    private static final int SNAPSHOT_MAGIC = 0x4C444752;
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final long MAP_WINDOW = 1L << 30;
+    private static final long FLUSH_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final RoundingMode[] ROUNDING = RoundingMode.values();
+
+    private final Path directory;
+    private final Durability durability;
+    private final long snapshotBytes;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition pending = lock.newCondition();
+    private final Condition flushed = lock.newCondition();
+    private final CRC32C checksum = new CRC32C();
+    private final Thread flusher;
+    // Records not yet handed to the flusher. The flusher swaps it with writing and writes that.
+    private ByteBuffer active = ByteBuffer.allocate(64 * 1024);
+    private ByteBuffer writing = ByteBuffer.allocate(64 * 1024);
+    private FileChannel channel;
+    private long generation;
+    // Positions count every byte ever appended, across generations.
+    private long appended;
+    private long durable;
+    private long sinceSnapshot;
+    private IOException failure;
+    private boolean closed;
+
+    private LedgerJournal(Path directory, Durability durability, long snapshotBytes, long generation, long replayed)
+            throws IOException {
+        this.directory = directory;
+        this.durability = durability;
+        this.snapshotBytes = snapshotBytes;
+        this.generation = generation;
+        this.sinceSnapshot = replayed;
+        this.channel = openJournal(generation);
+        this.flusher = new Thread(this::flushLoop, "ledger-journal");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    // Replays everything in the directory into the listener, then starts a new generation for what follows.
+    static LedgerJournal open(Path directory, Durability durability, long snapshotBytes, Listener listener)
+            throws IOException {
+        Files.createDirectories(directory);
+        Files.deleteIfExists(directory.resolve("ledger.snapshot.tmp"));
+        long snapshotGeneration = 0;
+        Path snapshot = directory.resolve("ledger.snapshot");
+        if (Files.exists(snapshot)) {
+            snapshotGeneration = readSnapshot(snapshot, listener);
+        }
+        List<Long> generations = journalGenerations(directory);
+        long last = snapshotGeneration;
+        long replayed = 0;
+        for (int i = 0; i < generations.size(); i++) {
+            long journal = generations.get(i);
+            if (journal <= snapshotGeneration) {
+                // Left over from a crash between writing a snapshot and deleting the journals it covers.
+                Files.deleteIfExists(journalPath(directory, journal));
+            } else {
+                replayed += replay(journalPath(directory, journal), i == generations.size() - 1, listener);
+            }
+            last = Math.max(last, journal);
+        }
+        return new LedgerJournal(directory, durability, snapshotBytes, last + 1, replayed);
+    }
+
+    long logOpen(String accountNumber, long initialCents, long interestRate, RoundingMode interestRounding,
+            long timestampNanos) {
+        byte[] name = accountNumber.getBytes(StandardCharsets.UTF_8);
+        lock.lock();
+        try {
+            int start = begin(1 + 2 + name.length + 8 + 8 + 1 + 8);
+            active.put(OPEN).putShort((short) name.length).put(name).putLong(initialCents).putLong(interestRate)
+                    .put((byte) interestRounding.ordinal()).putLong(timestampNanos);
+            return end(start);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long logApplied(String accountNumber, BankAccount.Transaction.Type type, long amountCents, long timestampNanos) {
+        byte[] name = accountNumber.getBytes(StandardCharsets.UTF_8);
+        byte kind = type == BankAccount.Transaction.Type.DEPOSIT ? DEPOSIT
+                : type == BankAccount.Transaction.Type.WITHDRAWAL ? WITHDRAWAL : INTEREST;
+        lock.lock();
+        try {
+            int start = begin(1 + 2 + name.length + 8 + 8);
+            active.put(kind).putShort((short) name.length).put(name).putLong(amountCents).putLong(timestampNanos);
+            return end(start);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long logTransfer(String fromAccountNumber, String toAccountNumber, long amountCents, long withdrawnNanos,
+            long depositedNanos) {
+        byte[] from = fromAccountNumber.getBytes(StandardCharsets.UTF_8);
+        byte[] to = toAccountNumber.getBytes(StandardCharsets.UTF_8);
+        lock.lock();
+        try {
+            int start = begin(1 + 2 + from.length + 2 + to.length + 8 + 8 + 8);
+            active.put(TRANSFER).putShort((short) from.length).put(from).putShort((short) to.length).put(to)
+                    .putLong(amountCents).putLong(withdrawnNanos).putLong(depositedNanos);
+            return end(start);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Throws what the next log call would, so that a change can be turned down before it is made.
+    void checkWritable() {
+        lock.lock();
+        try {
+            checkWritableLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Waits until the record ending at position is on disk, unless the journal was opened with ASYNC.
+    void awaitDurable(long position) {
+        if (durability == Durability.SYNC) {
+            waitFor(position);
+        }
+    }
+
+    boolean wantsSnapshot() {
+        lock.lock();
+        try {
+            return sinceSnapshot >= snapshotBytes && failure == null && !closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Starts a new generation and returns the one just finished. The caller must hold every account lock, so that
+    // nothing is appended in between and its images match the end of the finished generation exactly.
+    long rotate() throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("The ledger journal is closed.");
+            }
+            waitFor(appended);
+            FileChannel finished = channel;
+            channel = openJournal(generation + 1);
+            finished.close();
+            sinceSnapshot = 0;
+            return generation++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Writes the images to a temporary file, swaps it in once it is on disk and then deletes the journals it covers.
+    // A crash at any point leaves either the old snapshot and journals or the new ones, both complete.
+    void writeSnapshot(long coveredGeneration, List<Image> images) throws IOException {
+        Path temporary = directory.resolve("ledger.snapshot.tmp");
+        CRC32C snapshotChecksum = new CRC32C();
+        try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            TransactionHistory.ByteBufferSink sink = buffer -> {
+                int start = buffer.position();
+                snapshotChecksum.update(buffer);
+                buffer.position(start);
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+            };
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+            buffer.putInt(SNAPSHOT_MAGIC).putInt(SNAPSHOT_VERSION).putLong(coveredGeneration).putInt(images.size());
+            for (Image image : images) {
+                byte[] name = image.accountNumber.getBytes(StandardCharsets.UTF_8);
+                if (buffer.remaining() < 2 + name.length + 8 + 8 + 1 + 4) {
+                    TransactionHistory.drain(buffer, sink);
+                }
+                buffer.putShort((short) name.length).put(name).putLong(image.balanceCents).putLong(image.interestRate)
+                        .put((byte) image.interestRounding.ordinal()).putInt(image.transactionCount);
+                TransactionHistory.writeColumns(image.history, buffer, sink);
+            }
+            TransactionHistory.drain(buffer, sink);
+            buffer.putInt((int) snapshotChecksum.getValue()).flip();
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            out.force(true);
+        }
+        Files.move(temporary, directory.resolve("ledger.snapshot"), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory();
+        for (long journal : journalGenerations(directory)) {
+            if (journal <= coveredGeneration) {
+                Files.deleteIfExists(journalPath(directory, journal));
+            }
+        }
+    }
+
+    // Writes out whatever is still waiting and stops the flusher.
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            pending.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    // Reserves room for a record and writes its header; the checksum is filled in by end(). Called with the lock held.
+    private int begin(int length) {
+        checkWritableLocked();
+        if (active.remaining() < HEADER + length) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(active.capacity() * 2, active.position() + HEADER + length));
+            active.flip();
+            larger.put(active);
+            active = larger;
+        }
+        int start = active.position();
+        active.putInt(length).putInt(0);
+        return start;
+    }
+
+    private void checkWritableLocked() {
+        if (failure != null) {
+            throw new UncheckedIOException("The ledger journal can no longer be written", failure);
+        }
+        if (closed) {
+            throw new IllegalStateException("The ledger journal is closed.");
+        }
+    }
+
+    private long end(int start) {
+        checksum.reset();
+        checksum.update(active.array(), start + HEADER, active.position() - start - HEADER);
+        active.putInt(start + 4, (int) checksum.getValue());
+        long length = active.position() - start;
+        appended += length;
+        sinceSnapshot += length;
+        pending.signal();
+        return appended;
+    }
+
+    private void waitFor(long position) {
+        lock.lock();
+        try {
+            while (durable < position && failure == null) {
+                flushed.awaitUninterruptibly();
+            }
+            if (durable < position) {
+                throw new UncheckedIOException("The ledger journal could not be written", failure);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Group commit: everything appended while the previous batch was being written goes out in the next one.
+    private void flushLoop() {
+        while (true) {
+            ByteBuffer batch;
+            FileChannel target;
+            long end;
+            lock.lock();
+            try {
+                while (active.position() == 0 && !closed) {
+                    pending.awaitUninterruptibly();
+                }
+                if (active.position() == 0) {
+                    return;
+                }
+                if (durability == Durability.ASYNC) {
+                    long wait = FLUSH_INTERVAL_NANOS;
+                    while (wait > 0 && !closed) {
+                        try {
+                            wait = pending.awaitNanos(wait);
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+                    }
+                }
+                batch = active;
+                active = writing;
+                writing = batch;
+                end = appended;
+                target = channel;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                batch.flip();
+                while (batch.hasRemaining()) {
+                    target.write(batch);
+                }
+                target.force(false);
+                batch.clear();
+            } catch (IOException e) {
+                lock.lock();
+                try {
+                    failure = e;
+                    flushed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                return;
+            }
+            lock.lock();
+            try {
+                durable = end;
+                flushed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private FileChannel openJournal(long journal) throws IOException {
+        FileChannel opened = FileChannel.open(journalPath(directory, journal), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE);
+        syncDirectory();
+        return opened;
+    }
+
+    // Makes a new or renamed file in the directory survive a crash. Not every platform can open a directory.
+    private void syncDirectory() {
+        try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException e) {
+            // nothing more can be done where directories cannot be synced
+        }
+    }
+
+    // Returns the number of bytes replayed. Damage running to the end of the newest journal is a record torn by a
+    // crash and is cut off. Anything else is an error: in an older journal later ones would be replayed on top of
+    // missing changes, and anywhere else it would throw away the intact records behind it.
+    private static long replay(Path file, boolean newest, Listener listener) throws IOException {
+        long valid = 0;
+        boolean damaged = false;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            CRC32C recordChecksum = new CRC32C();
+            byte[] name = new byte[65535];
+            while (valid < size && !damaged) {
+                long window = Math.min(MAP_WINDOW, size - valid);
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, valid, window);
+                int limit = map.limit();
+                int position = 0;
+                boolean cutShort = false;
+                while (position < limit) {
+                    if (limit - position < HEADER) {
+                        cutShort = true;
+                        break;
+                    }
+                    int length = map.getInt(position);
+                    if (length < 1 || length > MAX_RECORD) {
+                        damaged = true;
+                        break;
+                    }
+                    if (limit - position - HEADER < length) {
+                        cutShort = true;
+                        break;
+                    }
+                    map.limit(position + HEADER + length).position(position + HEADER);
+                    recordChecksum.reset();
+                    recordChecksum.update(map);
+                    map.limit(limit);
+                    if ((int) recordChecksum.getValue() != map.getInt(position + 4)) {
+                        damaged = true;
+                        break;
+                    }
+                    map.position(position + HEADER);
+                    apply(map, name, listener);
+                    position += HEADER + length;
+                }
+                valid += position;
+                // A record running past a window is read again from the next one; past the end of the file it was
+                // being written when the process stopped.
+                if (cutShort && valid + (limit - position) == size) {
+                    damaged = true;
+                }
+            }
+            if (damaged) {
+                if (!newest || intactRecordAfter(channel, valid, size)) {
+                    throw new IOException("Journal " + file + " is damaged at byte " + valid + ".");
+                }
+                channel.truncate(valid);
+                channel.force(true);
+            }
+        }
+        return valid;
+    }
+
+    // Whether an intact record starts anywhere after the damaged one at from. Windows overlap by the largest record,
+    // so every record that fits in the file is checked whole in one of them.
+    private static boolean intactRecordAfter(FileChannel channel, long from, long size) throws IOException {
+        CRC32C recordChecksum = new CRC32C();
+        long base = from + 1;
+        while (base + HEADER <= size) {
+            long window = Math.min(MAP_WINDOW, size - base);
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, base, window);
+            int limit = map.limit();
+            boolean last = base + window == size;
+            int candidates = last ? limit - HEADER + 1 : limit - HEADER - MAX_RECORD;
+            for (int position = 0; position < candidates; position++) {
+                int length = map.getInt(position);
+                if (length < 1 || length > MAX_RECORD || length > limit - position - HEADER) {
+                    continue;
+                }
+                map.limit(position + HEADER + length).position(position + HEADER);
+                recordChecksum.reset();
+                recordChecksum.update(map);
+                map.limit(limit);
+                if ((int) recordChecksum.getValue() == map.getInt(position + 4)) {
+                    return true;
+                }
+            }
+            if (last) {
+                break;
+            }
+            base += candidates;
+        }
+        return false;
+    }
+
+    private static void apply(ByteBuffer record, byte[] name, Listener listener) {
+        byte kind = record.get();
+        String accountNumber = readName(record, name);
+        switch (kind) {
+            case OPEN:
+                listener.opened(accountNumber, record.getLong(), record.getLong(), ROUNDING[record.get()], record.getLong());
+                break;
+            case DEPOSIT:
+                listener.applied(accountNumber, BankAccount.Transaction.Type.DEPOSIT, record.getLong(), record.getLong());
+                break;
+            case WITHDRAWAL:
+                listener.applied(accountNumber, BankAccount.Transaction.Type.WITHDRAWAL, record.getLong(), record.getLong());
+                break;
+            case INTEREST:
+                listener.applied(accountNumber, BankAccount.Transaction.Type.INTEREST, record.getLong(), record.getLong());
+                break;
+            case TRANSFER:
+                String toAccountNumber = readName(record, name);
+                listener.transferred(accountNumber, toAccountNumber, record.getLong(), record.getLong(), record.getLong());
+                break;
+            default:
+                throw new IllegalStateException("Unknown journal record " + kind + ".");
+        }
+    }
+
+    private static String readName(ByteBuffer record, byte[] scratch) {
+        int length = record.getShort() & 0xFFFF;
+        record.get(scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    // Returns the generation the snapshot covers. The whole file is checked against its checksum as it is read.
+    private static long readSnapshot(Path file, Listener listener) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < 24) {
+                throw new IOException("Snapshot " + file + " is too short.");
+            }
+            CRC32C snapshotChecksum = new CRC32C();
+            ReadableByteChannel checked = new ReadableByteChannel() {
+                private long left = size - 4;
+
+                @Override
+                public int read(ByteBuffer destination) throws IOException {
+                    if (left == 0) {
+                        return -1;
+                    }
+                    int limit = destination.limit();
+                    int start = destination.position();
+                    destination.limit(start + (int) Math.min(destination.remaining(), left));
+                    int read = channel.read(destination);
+                    destination.limit(limit);
+                    if (read > 0) {
+                        left -= read;
+                        ByteBuffer bytes = destination.duplicate();
+                        bytes.position(start).limit(start + read);
+                        snapshotChecksum.update(bytes);
+                    }
+                    return read;
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return channel.isOpen();
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+            buffer.flip();
+            TransactionHistory.fill(buffer, checked, 20);
+            if (buffer.getInt() != SNAPSHOT_MAGIC || buffer.getInt() != SNAPSHOT_VERSION) {
+                throw new IOException(file + " is not a ledger snapshot.");
+            }
+            long coveredGeneration = buffer.getLong();
+            int accounts = buffer.getInt();
+            byte[] name = new byte[65535];
+            List<BankAccount> restored = new ArrayList<>(accounts);
+            for (int i = 0; i < accounts; i++) {
+                TransactionHistory.fill(buffer, checked, 2);
+                int length = buffer.getShort() & 0xFFFF;
+                TransactionHistory.fill(buffer, checked, length + 8 + 8 + 1 + 4);
+                buffer.get(name, 0, length);
+                String accountNumber = new String(name, 0, length, StandardCharsets.UTF_8);
+                long balanceCents = buffer.getLong();
+                long interestRate = buffer.getLong();
+                RoundingMode interestRounding = ROUNDING[buffer.get()];
+                int count = buffer.getInt();
+                TransactionHistory history = TransactionHistory.readColumns(count, buffer, checked);
+                restored.add(new BankAccount(accountNumber, balanceCents, interestRate, interestRounding, history));
+            }
+            ByteBuffer stored = ByteBuffer.allocate(4);
+            channel.read(stored, size - 4);
+            if (buffer.hasRemaining() || stored.getInt(0) != (int) snapshotChecksum.getValue()) {
+                throw new IOException("Snapshot " + file + " is damaged.");
+            }
+            // Nothing is handed over until the whole snapshot has checked out.
+            for (BankAccount account : restored) {
+                listener.restored(account);
+            }
+            return coveredGeneration;
+        }
+    }
+
+    private static List<Long> journalGenerations(Path directory) throws IOException {
+        List<Long> generations = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "journal-*.log")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    generations.add(Long.parseLong(name.substring("journal-".length(), name.length() - ".log".length())));
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+
+    private static Path journalPath(Path directory, long journal) {
+        return directory.resolve("journal-" + journal + ".log");
+    }
+}
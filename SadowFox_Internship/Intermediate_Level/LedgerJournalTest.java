@@ -0,0 +1,358 @@
+// File: LedgerJournalTest.java
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+@DisplayName("Ledger Journal Unit Tests")
+public class LedgerJournalTest {
+
+    private static final String[] ACCOUNTS = {"A", "B", "C"};
+
+    @TempDir
+    Path temporary;
+
+    private Path directory;
+
+    @BeforeEach
+    void setUp() {
+        directory = temporary.resolve("ledger");
+    }
+
+    // --- Recovery Test Cases ---
+    @Test
+    @DisplayName("A reopened ledger has the same balances and histories.")
+    void testRecovery_AfterClose() throws IOException {
+        Ledger ledger = Ledger.open(directory);
+        runOperations(ledger, 200, new Random(1));
+        ledger.close();
+        Ledger recovered = Ledger.open(directory);
+        assertSameLedger(ledger, recovered);
+        recovered.close();
+    }
+
+    @Test
+    @DisplayName("Recovery combines the snapshot with the journal written after it.")
+    void testRecovery_SnapshotAndJournal() throws IOException {
+        Ledger ledger = Ledger.open(directory);
+        Random random = new Random(2);
+        runOperations(ledger, 300, random);
+        ledger.snapshot();
+        assertEquals(1, journals().size(), "Only the journal after the snapshot should be left.");
+        runMoreOperations(ledger, 300, random);
+        ledger.close();
+        Ledger recovered = Ledger.open(directory);
+        assertSameLedger(ledger, recovered);
+        recovered.close();
+    }
+
+    @Test
+    @DisplayName("Snapshots are taken on their own once the journal grows.")
+    void testRecovery_AutomaticSnapshot() throws Exception {
+        Ledger ledger = Ledger.open(directory, LedgerJournal.Durability.ASYNC, 4096);
+        runOperations(ledger, 2000, new Random(3));
+        ledger.close();
+        assertTrue(Files.exists(directory.resolve("ledger.snapshot")), "A snapshot should have been written.");
+        Ledger recovered = Ledger.open(directory);
+        assertSameLedger(ledger, recovered);
+        recovered.close();
+    }
+
+    // --- Crash Injection Test Cases ---
+    @Test
+    @DisplayName("Every change a SYNC ledger returned from survives a crash.")
+    void testCrash_WithoutClose() throws IOException {
+        Ledger ledger = Ledger.open(directory);
+        runOperations(ledger, 200, new Random(4));
+        // Copying the files while the ledger is still open is what a sudden power loss would leave behind.
+        Path crashed = copyOf(directory);
+        Ledger recovered = Ledger.open(crashed);
+        assertSameLedger(ledger, recovered);
+        recovered.close();
+        ledger.close();
+    }
+
+    @Test
+    @DisplayName("A journal cut off anywhere recovers exactly the records before the cut.")
+    void testCrash_TornJournal() throws IOException {
+        Ledger ledger = Ledger.open(directory);
+        runOperations(ledger, 60, new Random(5));
+        ledger.close();
+        Path journal = journals().get(0);
+        List<Long> boundaries = recordBoundaries(journal);
+        long size = Files.size(journal);
+        for (long cut = 0; cut < size; cut += 7) {
+            Path crashed = copyOf(directory);
+            try (FileChannel channel = FileChannel.open(crashed.resolve(journal.getFileName()), StandardOpenOption.WRITE)) {
+                channel.truncate(cut);
+            }
+            int complete = 0;
+            while (complete + 1 < boundaries.size() && boundaries.get(complete + 1) <= cut) {
+                complete++;
+            }
+            Ledger expected = new Ledger();
+            runOperations(expected, complete, new Random(5));
+            Ledger recovered = Ledger.open(crashed);
+            assertSameBalances(expected, recovered);
+            // The torn record is gone, so the ledger keeps working and recovers again.
+            if (recovered.size() > 0) {
+                recovered.deposit("A", 1.0);
+                expected.deposit("A", 1.0);
+            }
+            recovered.close();
+            Ledger reopened = Ledger.open(crashed);
+            assertSameBalances(expected, reopened);
+            reopened.close();
+        }
+    }
+
+    @Test
+    @DisplayName("A damaged record with intact records after it stops recovery instead of dropping them.")
+    void testCrash_CorruptRecord() throws IOException {
+        Ledger ledger = Ledger.open(directory);
+        runOperations(ledger, 40, new Random(6));
+        ledger.close();
+        Path journal = journals().get(0);
+        List<Long> boundaries = recordBoundaries(journal);
+        long size = Files.size(journal);
+        // Flip a byte inside the 31st record.
+        try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long position = boundaries.get(30) + 10;
+            ByteBuffer one = ByteBuffer.allocate(1);
+            channel.read(one, position);
+            one.put(0, (byte) (one.get(0) ^ 0x40)).rewind();
+            channel.write(one, position);
+        }
+        assertThrows(IOException.class, () -> Ledger.open(directory), "Recovery should refuse a damaged journal.");
+        assertEquals(size, Files.size(journal), "The records after the damage should be kept.");
+    }
+
+    @Test
+    @DisplayName("A damaged length with intact records after it stops recovery as well.")
+    void testCrash_CorruptLength() throws IOException {
+        Ledger ledger = Ledger.open(directory);
+        runOperations(ledger, 40, new Random(6));
+        ledger.close();
+        Path journal = journals().get(0);
+        List<Long> boundaries = recordBoundaries(journal);
+        try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(4).putInt(0, -1), boundaries.get(20));
+        }
+        assertThrows(IOException.class, () -> Ledger.open(directory), "Recovery should refuse a damaged journal.");
+    }
+
+    @Test
+    @DisplayName("A crash while writing a snapshot leaves the previous state intact.")
+    void testCrash_DuringSnapshot() throws IOException {
+        Ledger ledger = Ledger.open(directory);
+        runOperations(ledger, 100, new Random(7));
+        ledger.close();
+        Files.write(directory.resolve("ledger.snapshot.tmp"), new byte[] {1, 2, 3});
+        Ledger recovered = Ledger.open(directory);
+        assertSameLedger(ledger, recovered);
+        recovered.close();
+        assertFalse(Files.exists(directory.resolve("ledger.snapshot.tmp")), "The unfinished snapshot should be removed.");
+    }
+
+    @Test
+    @DisplayName("A crash after a snapshot but before its journals are deleted does not replay them twice.")
+    void testCrash_AfterSnapshotBeforeCleanup() throws IOException {
+        Ledger ledger = Ledger.open(directory);
+        runOperations(ledger, 100, new Random(8));
+        Path covered = journals().get(0);
+        byte[] coveredBytes = Files.readAllBytes(covered);
+        ledger.snapshot();
+        ledger.close();
+        Files.write(covered, coveredBytes);
+        Ledger recovered = Ledger.open(directory);
+        assertSameLedger(ledger, recovered);
+        recovered.close();
+    }
+
+    // --- Journal Failure Test Cases ---
+    @Test
+    @DisplayName("A change whose record does not reach the disk is taken back, and later ones are turned down.")
+    void testFailure_ChangeTakenBack() throws IOException {
+        Set<Thread> others = journalThreads();
+        Ledger ledger = Ledger.open(directory);
+        runOperations(ledger, 50, new Random(7));
+        long[] balances = balancesOf(ledger);
+        failJournal(others);
+        assertThrows(UncheckedIOException.class, () -> ledger.deposit("A", 10.0), "The deposit should fail with the journal.");
+        assertArrayEquals(balances, balancesOf(ledger), "The failed deposit should be taken back.");
+        assertThrows(UncheckedIOException.class, () -> ledger.transfer("A", "B", 10.0), "Transfers should be turned down.");
+        assertThrows(UncheckedIOException.class, () -> ledger.openAccount("D", 10.0, 0.05), "New accounts should be turned down.");
+        assertArrayEquals(balances, balancesOf(ledger), "Nothing should have changed.");
+        assertEquals(ACCOUNTS.length, ledger.size(), "The new account should not be there.");
+        assertThrows(IOException.class, ledger::close, "Closing should report the failure.");
+        Ledger recovered = Ledger.open(directory);
+        assertSameLedger(ledger, recovered);
+        recovered.close();
+    }
+
+    @Test
+    @DisplayName("A batch whose records do not reach the disk is taken back in every account.")
+    void testFailure_BatchTakenBack() throws IOException {
+        Set<Thread> others = journalThreads();
+        Ledger ledger = Ledger.open(directory);
+        runOperations(ledger, 50, new Random(8));
+        long[] balances = balancesOf(ledger);
+        TransactionBatch batch = new TransactionBatch();
+        for (int i = 0; i < 300; i++) {
+            String account = ACCOUNTS[i % ACCOUNTS.length];
+            batch.deposit(account, 1.0).withdraw(account, 0.5).applyInterest(account);
+        }
+        failJournal(others);
+        assertThrows(UncheckedIOException.class, () -> ledger.apply(batch), "The batch should fail with the journal.");
+        assertArrayEquals(balances, balancesOf(ledger), "Every account should be taken back.");
+        assertThrows(IOException.class, ledger::close, "Closing should report the failure.");
+        Ledger recovered = Ledger.open(directory);
+        assertSameLedger(ledger, recovered);
+        recovered.close();
+    }
+
+    // Opens the three accounts, then makes count changes in all, counting the opens. Every call here writes exactly
+    // one journal record, so the same seed and count always give the state after that many records.
+    private static void runOperations(Ledger ledger, int count, Random random) {
+        for (int i = 0; i < Math.min(count, ACCOUNTS.length); i++) {
+            ledger.openAccount(ACCOUNTS[i], 1000.0, 0.05);
+        }
+        runMoreOperations(ledger, count - ACCOUNTS.length, random);
+    }
+
+    private static void runMoreOperations(Ledger ledger, int count, Random random) {
+        for (int i = 0; i < count; i++) {
+            String account = ACCOUNTS[random.nextInt(ACCOUNTS.length)];
+            double amount = (1 + random.nextInt(5000)) / 100.0;
+            switch (random.nextInt(4)) {
+                case 0:
+                    ledger.deposit(account, amount);
+                    break;
+                case 1:
+                    // Small enough to always succeed, so it always writes a record.
+                    ledger.withdraw(account, 0.01);
+                    break;
+                case 2:
+                    ledger.applyInterest(account);
+                    break;
+                default:
+                    String other = ACCOUNTS[(random.nextInt(ACCOUNTS.length - 1) + 1 + indexOf(account)) % ACCOUNTS.length];
+                    ledger.transfer(account, other, 0.01);
+                    break;
+            }
+        }
+    }
+
+    private static int indexOf(String account) {
+        for (int i = 0; i < ACCOUNTS.length; i++) {
+            if (ACCOUNTS[i].equals(account)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void assertSameBalances(Ledger expected, Ledger actual) {
+        assertEquals(expected.size(), actual.size(), "Both ledgers should have the same accounts.");
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.getBalanceCents(ACCOUNTS[i]), actual.getBalanceCents(ACCOUNTS[i]),
+                    "Balance of " + ACCOUNTS[i] + " should match.");
+            assertEquals(expected.getTransactionHistory(ACCOUNTS[i]).size(), actual.getTransactionHistory(ACCOUNTS[i]).size(),
+                    "History of " + ACCOUNTS[i] + " should have the same length.");
+        }
+    }
+
+    private static void assertSameLedger(Ledger expected, Ledger actual) {
+        assertSameBalances(expected, actual);
+        for (int i = 0; i < expected.size(); i++) {
+            TransactionHistory.Cursor want = expected.history(ACCOUNTS[i]);
+            TransactionHistory.Cursor got = actual.history(ACCOUNTS[i]);
+            while (want.next()) {
+                assertTrue(got.next(), "Recovered history should not be shorter.");
+                assertEquals(want.type(), got.type(), "Transaction types should match.");
+                assertEquals(want.amountCents(), got.amountCents(), "Transaction amounts should match.");
+                assertEquals(want.newBalanceCents(), got.newBalanceCents(), "Balances after each transaction should match.");
+                assertEquals(want.timestampNanos(), got.timestampNanos(), "Transaction times should match.");
+            }
+            assertFalse(got.next(), "Recovered history should not be longer.");
+        }
+    }
+
+    private static long[] balancesOf(Ledger ledger) {
+        long[] balances = new long[ACCOUNTS.length * 2];
+        for (int i = 0; i < ACCOUNTS.length; i++) {
+            balances[2 * i] = ledger.getBalanceCents(ACCOUNTS[i]);
+            balances[2 * i + 1] = ledger.getTransactionHistory(ACCOUNTS[i]).size();
+        }
+        return balances;
+    }
+
+    private static Set<Thread> journalThreads() {
+        Set<Thread> threads = new HashSet<>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("ledger-journal")) {
+                threads.add(thread);
+            }
+        }
+        return threads;
+    }
+
+    // Interrupts the flusher of the journal opened since others were listed. Its next write then closes the file and
+    // fails, as a broken disk would.
+    private static void failJournal(Set<Thread> others) {
+        for (Thread thread : journalThreads()) {
+            if (!others.contains(thread)) {
+                thread.interrupt();
+            }
+        }
+    }
+
+    // Where each record starts, plus the end of the file.
+    private static List<Long> recordBoundaries(Path journal) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(journal));
+        List<Long> boundaries = new ArrayList<>();
+        while (bytes.remaining() >= 8) {
+            boundaries.add((long) bytes.position());
+            bytes.position(bytes.position() + 8 + bytes.getInt(bytes.position()));
+        }
+        boundaries.add((long) bytes.position());
+        return boundaries;
+    }
+
+    private List<Path> journals() throws IOException {
+        List<Path> journals = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "journal-*.log")) {
+            for (Path file : files) {
+                journals.add(file);
+            }
+        }
+        Collections.sort(journals);
+        return journals;
+    }
+
+    private Path copyOf(Path source) throws IOException {
+        Path copy = Files.createTempDirectory(temporary, "crashed");
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(source)) {
+            for (Path file : files) {
+                Files.copy(file, copy.resolve(file.getFileName()));
+            }
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,69 @@
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+
+// Measures how long a ledger takes to come back after a restart: once by replaying every record in the journal, and
+// once from a snapshot of the same state. The history alone takes about 25 bytes per transaction in memory, so give
+// large runs a bigger heap.
+//
+//     java -Xmx4g LedgerRecoveryBenchmark [transactions=10000000] [accounts=1000]
+public class LedgerRecoveryBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int transactions = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        int accounts = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        Path directory = Files.createTempDirectory("ledger-benchmark");
+        try {
+            // ASYNC and no automatic snapshot, so everything stays in the journal until the snapshot below.
+            Ledger ledger = Ledger.open(directory, LedgerJournal.Durability.ASYNC, Long.MAX_VALUE);
+            for (int i = 0; i < accounts; i++) {
+                ledger.openAccount("ACC" + i, 1000.0, 0.05);
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < transactions; i++) {
+                String account = "ACC" + (i % accounts);
+                if ((i & 1) == 0) {
+                    ledger.deposit(account, 12.34);
+                } else {
+                    ledger.withdraw(account, 5.67);
+                }
+            }
+            report("write", transactions, start, directory);
+            ledger.close();
+            ledger = null;
+
+            start = System.nanoTime();
+            Ledger recovered = Ledger.open(directory, LedgerJournal.Durability.ASYNC, Long.MAX_VALUE);
+            report("journal recovery", transactions, start, directory);
+            recovered.snapshot();
+            recovered.close();
+            recovered = null;
+
+            start = System.nanoTime();
+            recovered = Ledger.open(directory, LedgerJournal.Durability.ASYNC, Long.MAX_VALUE);
+            report("snapshot recovery", transactions, start, directory);
+            recovered.close();
+        } finally {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                for (Path file : files) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(directory);
+        }
+    }
+
+    private static void report(String what, int transactions, long start, Path directory) throws IOException {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long bytes = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                bytes += Files.size(file);
+            }
+        }
+        System.out.printf(Locale.ROOT, "%-18s %,12d transactions in %6.2f s (%,.0f/sec), %,d MB on disk%n",
+                what, transactions, seconds, transactions / seconds, bytes >> 20);
+    }
+}
@@ -0,0 +1,168 @@
+// File: LedgerTest.java
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+@DisplayName("Ledger Unit Tests")
+public class LedgerTest {
+
+    private static final int ACCOUNTS = 64;
+    private static final int THREADS = 8;
+    private static final int OPERATIONS_PER_THREAD = 100_000;
+
+    private Ledger ledger;
+
+    @BeforeEach
+    void setUp() {
+        ledger = new Ledger();
+        ledger.openAccount("A", 1000.0, 0.05);
+        ledger.openAccount("B", 100.0, 0.05);
+    }
+
+    // --- Single Account Test Cases ---
+    @Test
+    @DisplayName("Deposits and withdrawals go through to the account.")
+    void testDepositAndWithdraw() {
+        ledger.deposit("A", 500.0);
+        assertTrue(ledger.withdraw("A", 200.0), "Withdrawal should succeed.");
+        assertEquals(1300.0, ledger.getBalance("A"), "Balance should be 1300.");
+        assertEquals(3, ledger.getTransactionHistory("A").size(), "History should hold the opening deposit and two operations.");
+    }
+
+    @Test
+    @DisplayName("Opening an account twice should throw an exception.")
+    void testOpenAccount_Duplicate() {
+        assertThrows(IllegalArgumentException.class, () -> ledger.openAccount("A", 0.0, 0.01), "Duplicate account should fail.");
+    }
+
+    @Test
+    @DisplayName("Using an unknown account should throw an exception.")
+    void testUnknownAccount() {
+        assertThrows(IllegalArgumentException.class, () -> ledger.deposit("C", 10.0), "Unknown account should fail.");
+    }
+
+    // --- Transfer Test Cases ---
+    @Test
+    @DisplayName("Transfer moves money between accounts.")
+    void testTransfer_Valid() {
+        assertTrue(ledger.transfer("A", "B", 300.0), "Transfer should succeed.");
+        assertEquals(700.0, ledger.getBalance("A"), "Source should be debited.");
+        assertEquals(400.0, ledger.getBalance("B"), "Target should be credited.");
+    }
+
+    @Test
+    @DisplayName("Transfer beyond the overdraft limit changes neither account.")
+    void testTransfer_ExceedsOverdraftLimit() {
+        assertFalse(ledger.transfer("B", "A", 601.0), "Transfer should fail past the overdraft limit.");
+        assertEquals(100.0, ledger.getBalance("B"), "Source should be unchanged.");
+        assertEquals(1000.0, ledger.getBalance("A"), "Target should be unchanged.");
+    }
+
+    @Test
+    @DisplayName("Transfer to the same account or of a non-positive amount should throw an exception.")
+    void testTransfer_Invalid() {
+        assertThrows(IllegalArgumentException.class, () -> ledger.transfer("A", "A", 10.0), "Self transfer should fail.");
+        assertThrows(IllegalArgumentException.class, () -> ledger.transfer("A", "B", 0.0), "Zero transfer should fail.");
+    }
+
+    @Test
+    @DisplayName("Transfer that would overflow the target changes neither account.")
+    void testTransfer_TargetOverflow() {
+        ledger.openAccount("C", 92_233_720_368_547_000.0, 0.05);
+        long before = ledger.getBalanceCents("C");
+        assertThrows(ArithmeticException.class, () -> ledger.transfer("A", "C", 1000.0), "Overflowing transfer should fail.");
+        assertEquals(1000.0, ledger.getBalance("A"), "Source should be unchanged.");
+        assertEquals(before, ledger.getBalanceCents("C"), "Target should be unchanged.");
+        assertEquals(1, ledger.getTransactionHistory("A").size(), "Source history should hold only the opening deposit.");
+    }
+
+    // --- Concurrency Test Cases ---
+    @Test
+    @DisplayName("Concurrent operations lose no updates and never pass the overdraft limit.")
+    void testConcurrentOperations() throws Exception {
+        Ledger shared = new Ledger();
+        for (int i = 0; i < ACCOUNTS; i++) {
+            shared.openAccount("ACC" + i, 100.0, 0.0);
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        List<Future<Double>> results = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            results.add(pool.submit(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                double netDeposited = 0;
+                for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+                    String account = "ACC" + random.nextInt(ACCOUNTS);
+                    // Whole amounts keep every sum exact in a double, so the totals can be compared exactly.
+                    double amount = 1 + random.nextInt(100);
+                    int operation = random.nextInt(4);
+                    if (operation == 0) {
+                        shared.deposit(account, amount);
+                        netDeposited += amount;
+                    } else if (operation == 1) {
+                        if (shared.withdraw(account, amount)) {
+                            netDeposited -= amount;
+                        }
+                    } else {
+                        String other = "ACC" + random.nextInt(ACCOUNTS);
+                        if (!other.equals(account)) {
+                            shared.transfer(account, other, amount);
+                        }
+                    }
+                }
+                return netDeposited;
+            }));
+        }
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(2, TimeUnit.MINUTES), "Operations should finish; a deadlock would hang them.");
+
+        long expectedTotal = ACCOUNTS * 100_00L;
+        for (Future<Double> result : results) {
+            expectedTotal += Money.toCents(result.get());
+        }
+        long total = 0;
+        for (int i = 0; i < ACCOUNTS; i++) {
+            String account = "ACC" + i;
+            long balance = shared.getBalanceCents(account);
+            total += balance;
+            assertTrue(balance >= -500_00L, "Balance should never pass the overdraft limit.");
+            // Replaying the history must end at the balance, or an update was lost between them.
+            long replayed = 0;
+            TransactionHistory.Cursor transaction = shared.history(account);
+            while (transaction.next()) {
+                replayed += transaction.type() == BankAccount.Transaction.Type.WITHDRAWAL ? -transaction.amountCents() : transaction.amountCents();
+                assertEquals(replayed, transaction.newBalanceCents(), "Each transaction should start from the previous balance.");
+                assertTrue(transaction.newBalanceCents() >= -500_00L, "No transaction should pass the overdraft limit.");
+            }
+            assertEquals(balance, replayed, "History should add up to the balance.");
+        }
+        assertEquals(expectedTotal, total, "Money should only enter or leave through deposits and withdrawals.");
+    }
+
+    @Test
+    @DisplayName("Opposite transfers between the same accounts do not deadlock.")
+    void testOppositeTransfers_NoDeadlock() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        pool.submit(() -> {
+            for (int i = 0; i < 200_000; i++) {
+                ledger.transfer("A", "B", 1.0);
+            }
+        });
+        pool.submit(() -> {
+            for (int i = 0; i < 200_000; i++) {
+                ledger.transfer("B", "A", 1.0);
+            }
+        });
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(1, TimeUnit.MINUTES), "Transfers should finish without deadlocking.");
+        assertEquals(1100.0, ledger.getBalance("A") + ledger.getBalance("B"), "Transfers should conserve money.");
+    }
+}
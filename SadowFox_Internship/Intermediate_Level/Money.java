@@ -0,0 +1,86 @@
+import java.math.RoundingMode;
+
+// Amounts of money as a whole number of cents in a long. Adding and comparing cents is exact, so balances never
+// pick up the rounding error that doubles do; the only rounding left is where a result falls between two cents,
+// and there the caller picks how to round. Nothing here allocates.
+public final class Money {
+
+    public static final long CENTS_PER_UNIT = 100;
+    // Interest rates are kept in millionths, so 0.05 (5%) is 50_000.
+    public static final long RATE_SCALE = 1_000_000;
+
+    private Money() {
+    }
+
+    // Amounts given as doubles are rounded to the nearest cent once, on the way in.
+    public static long toCents(double amount) {
+        if (Double.isNaN(amount) || Math.abs(amount) >= Long.MAX_VALUE / CENTS_PER_UNIT) {
+            throw new IllegalArgumentException("Amount " + amount + " is out of range.");
+        }
+        return Math.round(amount * CENTS_PER_UNIT);
+    }
+
+    public static double toDouble(long cents) {
+        return (double) cents / CENTS_PER_UNIT;
+    }
+
+    public static long toRate(double rate) {
+        if (Double.isNaN(rate) || Math.abs(rate) >= Long.MAX_VALUE / RATE_SCALE) {
+            throw new IllegalArgumentException("Interest rate " + rate + " is out of range.");
+        }
+        return Math.round(rate * RATE_SCALE);
+    }
+
+    // amount * rate / periods, rounded once at the end. Throws ArithmeticException instead of overflowing.
+    public static long interest(long cents, long rate, int periods, RoundingMode rounding) {
+        return divide(Math.multiplyExact(cents, rate), RATE_SCALE * periods, rounding);
+    }
+
+    // dividend / divisor rounded as RoundingMode describes, for a positive divisor.
+    public static long divide(long dividend, long divisor, RoundingMode rounding) {
+        if (divisor <= 0) {
+            throw new IllegalArgumentException("Divisor must be positive.");
+        }
+        long quotient = dividend / divisor;
+        long remainder = dividend % divisor;
+        if (remainder == 0) {
+            return quotient;
+        }
+        // Integer division rounds toward zero; the exact quotient lies one step further in this direction.
+        long away = dividend < 0 ? -1 : 1;
+        boolean roundAway;
+        switch (rounding) {
+            case UP:
+                roundAway = true;
+                break;
+            case DOWN:
+                roundAway = false;
+                break;
+            case CEILING:
+                roundAway = away > 0;
+                break;
+            case FLOOR:
+                roundAway = away < 0;
+                break;
+            case UNNECESSARY:
+                throw new ArithmeticException(dividend + " / " + divisor + " is not a whole number of cents.");
+            default:
+                // Compares the remainder with the rest of the divisor instead of doubling it, which could overflow.
+                int half = Long.compare(Math.abs(remainder), divisor - Math.abs(remainder));
+                if (rounding == RoundingMode.HALF_UP) {
+                    roundAway = half >= 0;
+                } else if (rounding == RoundingMode.HALF_DOWN) {
+                    roundAway = half > 0;
+                } else {
+                    roundAway = half > 0 || half == 0 && (quotient & 1) != 0;
+                }
+        }
+        return roundAway ? quotient + away : quotient;
+    }
+
+    public static String format(long cents) {
+        long units = Math.abs(cents / CENTS_PER_UNIT);
+        long rest = Math.abs(cents % CENTS_PER_UNIT);
+        return (cents < 0 ? "-" : "") + units + (rest < 10 ? ".0" : ".") + rest;
+    }
+}
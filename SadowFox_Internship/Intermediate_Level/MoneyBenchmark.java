@@ -0,0 +1,107 @@
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Locale;
+
+// Compares the cost of the balance arithmetic in BankAccount done three ways: doubles, as it used to be; whole cents
+// in a long, as it is now; and BigDecimal. Each run makes the same deposits, withdrawals and monthly interest.
+//
+//     java MoneyBenchmark [operations=10000000] [trials=5]
+public class MoneyBenchmark {
+
+    private static final double RATE = 0.05;
+    private static final int INTEREST_EVERY = 1024;
+
+    public static void main(String[] args) {
+        int operations = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        int trials = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        // Amounts from 0.01 to 99.99, the same for every variant.
+        long[] cents = new long[4096];
+        double[] doubles = new double[cents.length];
+        BigDecimal[] decimals = new BigDecimal[cents.length];
+        for (int i = 0; i < cents.length; i++) {
+            cents[i] = 1 + (i * 7919L) % 9999;
+            doubles[i] = cents[i] / 100.0;
+            decimals[i] = BigDecimal.valueOf(cents[i], 2);
+        }
+
+        // The first trials let the JIT compile all three loops before anything is timed.
+        for (int i = 0; i < 3; i++) {
+            runDouble(doubles, operations / 10);
+            runCents(cents, operations / 10);
+            runBigDecimal(decimals, operations / 10);
+        }
+        double bestDouble = 0;
+        double bestCents = 0;
+        double bestDecimal = 0;
+        double doubleResult = 0;
+        long centsResult = 0;
+        BigDecimal decimalResult = null;
+        for (int trial = 0; trial < trials; trial++) {
+            long start = System.nanoTime();
+            doubleResult = runDouble(doubles, operations);
+            bestDouble = Math.max(bestDouble, operations / ((System.nanoTime() - start) / 1e9));
+            start = System.nanoTime();
+            centsResult = runCents(cents, operations);
+            bestCents = Math.max(bestCents, operations / ((System.nanoTime() - start) / 1e9));
+            start = System.nanoTime();
+            decimalResult = runBigDecimal(decimals, operations);
+            bestDecimal = Math.max(bestDecimal, operations / ((System.nanoTime() - start) / 1e9));
+        }
+        System.out.printf(Locale.ROOT, "double      %,15.0f ops/sec   balance %.6f%n", bestDouble, doubleResult);
+        System.out.printf(Locale.ROOT, "long cents  %,15.0f ops/sec   balance %s%n", bestCents, Money.format(centsResult));
+        System.out.printf(Locale.ROOT, "BigDecimal  %,15.0f ops/sec   balance %s%n", bestDecimal, decimalResult.toPlainString());
+    }
+
+    // Interest is not rounded to cents here, which is how the double version drifted away from real money.
+    private static double runDouble(double[] amounts, int operations) {
+        double balance = 1000;
+        for (int i = 0; i < operations; i++) {
+            double amount = amounts[i & (amounts.length - 1)];
+            if ((i & 1) == 0) {
+                balance += amount;
+            } else if (balance - amount >= -500) {
+                balance -= amount;
+            }
+            if (i % INTEREST_EVERY == 0 && balance > 0) {
+                balance += balance * (RATE / 12);
+            }
+        }
+        return balance;
+    }
+
+    private static long runCents(long[] amounts, int operations) {
+        long balance = 1000_00;
+        long rate = Money.toRate(RATE);
+        for (int i = 0; i < operations; i++) {
+            long amount = amounts[i & (amounts.length - 1)];
+            if ((i & 1) == 0) {
+                balance = Math.addExact(balance, amount);
+            } else if (amount <= balance + 500_00) {
+                balance -= amount;
+            }
+            if (i % INTEREST_EVERY == 0 && balance > 0) {
+                balance += Money.interest(balance, rate, 12, RoundingMode.HALF_EVEN);
+            }
+        }
+        return balance;
+    }
+
+    private static BigDecimal runBigDecimal(BigDecimal[] amounts, int operations) {
+        BigDecimal balance = BigDecimal.valueOf(1000_00, 2);
+        BigDecimal limit = BigDecimal.valueOf(-500_00, 2);
+        BigDecimal rate = BigDecimal.valueOf(RATE);
+        BigDecimal months = BigDecimal.valueOf(12);
+        for (int i = 0; i < operations; i++) {
+            BigDecimal amount = amounts[i & (amounts.length - 1)];
+            if ((i & 1) == 0) {
+                balance = balance.add(amount);
+            } else if (balance.subtract(amount).compareTo(limit) >= 0) {
+                balance = balance.subtract(amount);
+            }
+            if (i % INTEREST_EVERY == 0 && balance.signum() > 0) {
+                balance = balance.add(balance.multiply(rate).divide(months, 2, RoundingMode.HALF_EVEN));
+            }
+        }
+        return balance;
+    }
+}
@@ -0,0 +1,136 @@
+import java.util.Arrays;
+
+// Many deposits, withdrawals and interest postings for one or many accounts, handed to BankAccount.apply or
+// Ledger.apply in one call. Like TransactionHistory the items are kept column by column, so a batch of millions is a
+// few arrays rather than millions of objects, and it can be cleared and filled again for the next run.
+//
+// Items are not checked when they are added. Applying the batch checks each one and records its status and the
+// balance it left, which are then read back by index in the order the items were added.
+public class TransactionBatch {
+
+    public enum Status {
+        // Not applied yet.
+        PENDING,
+        APPLIED,
+        // Would have taken the account past its overdraft limit; nothing changed.
+        DECLINED,
+        // Less than one cent, or more than a balance can hold; nothing changed.
+        INVALID_AMOUNT,
+        NO_SUCH_ACCOUNT
+    }
+
+    private static final BankAccount.Transaction.Type[] TYPES = BankAccount.Transaction.Type.values();
+    private static final Status[] STATUSES = Status.values();
+
+    private String[] accounts = new String[16];
+    private byte[] types = new byte[16];
+    private long[] amounts = new long[16];
+    private byte[] statuses = new byte[16];
+    private long[] balances = new long[16];
+    private int size;
+
+    public TransactionBatch deposit(String accountNumber, double amount) {
+        return add(accountNumber, BankAccount.Transaction.Type.DEPOSIT, Money.toCents(amount));
+    }
+
+    public TransactionBatch withdraw(String accountNumber, double amount) {
+        return add(accountNumber, BankAccount.Transaction.Type.WITHDRAWAL, Money.toCents(amount));
+    }
+
+    public TransactionBatch applyInterest(String accountNumber) {
+        return add(accountNumber, BankAccount.Transaction.Type.INTEREST, 0);
+    }
+
+    // amountCents is ignored for interest, which is worked out from the balance when the item is applied.
+    public TransactionBatch add(String accountNumber, BankAccount.Transaction.Type type, long amountCents) {
+        if (accountNumber == null || type == null) {
+            throw new IllegalArgumentException("A batch item needs an account and a type.");
+        }
+        if (size == types.length) {
+            int capacity = size + (size >> 1);
+            accounts = Arrays.copyOf(accounts, capacity);
+            types = Arrays.copyOf(types, capacity);
+            amounts = Arrays.copyOf(amounts, capacity);
+            statuses = Arrays.copyOf(statuses, capacity);
+            balances = Arrays.copyOf(balances, capacity);
+        }
+        accounts[size] = accountNumber;
+        types[size] = (byte) type.ordinal();
+        amounts[size] = amountCents;
+        statuses[size] = (byte) Status.PENDING.ordinal();
+        balances[size] = 0;
+        size++;
+        return this;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Empties the batch but keeps its arrays for the next one.
+    public void clear() {
+        Arrays.fill(accounts, 0, size, null);
+        size = 0;
+    }
+
+    public String accountNumber(int item) {
+        check(item);
+        return accounts[item];
+    }
+
+    public BankAccount.Transaction.Type type(int item) {
+        check(item);
+        return TYPES[types[item]];
+    }
+
+    public long amountCents(int item) {
+        check(item);
+        return amounts[item];
+    }
+
+    public Status status(int item) {
+        check(item);
+        return STATUSES[statuses[item]];
+    }
+
+    // The account's balance once the item was applied or turned down; zero for an unknown account.
+    public long balanceCents(int item) {
+        check(item);
+        return balances[item];
+    }
+
+    public int count(Status status) {
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (statuses[i] == status.ordinal()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void check(int item) {
+        if (item < 0 || item >= size) {
+            throw new IndexOutOfBoundsException("Item " + item + " is outside 0.." + size + ".");
+        }
+    }
+
+    // The unchecked accessors and setter below are for BankAccount and Ledger while they apply the batch.
+
+    String account(int item) {
+        return accounts[item];
+    }
+
+    BankAccount.Transaction.Type typeOf(int item) {
+        return TYPES[types[item]];
+    }
+
+    long amount(int item) {
+        return amounts[item];
+    }
+
+    void record(int item, Status status, long balanceCents) {
+        statuses[item] = (byte) status.ordinal();
+        balances[item] = balanceCents;
+    }
+}
@@ -0,0 +1,109 @@
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+
+// Compares posting the same deposits and withdrawals to a ledger one call at a time and as TransactionBatches, both
+// in memory and on disk with SYNC durability. On disk every single call waits for its own sync, so that loop only
+// runs a small share of the operations and its rate is what is compared.
+//
+//     java TransactionBatchBenchmark [operations=5000000] [accounts=1000] [batch=10000]
+public class TransactionBatchBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int operations = args.length > 0 ? Integer.parseInt(args[0]) : 5_000_000;
+        int accounts = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int batchSize = args.length > 2 ? Integer.parseInt(args[2]) : 10_000;
+        String[] numbers = new String[accounts];
+        for (int i = 0; i < accounts; i++) {
+            numbers[i] = "ACC" + i;
+        }
+
+        // The first runs let the JIT compile both paths before anything is timed.
+        for (int i = 0; i < 3; i++) {
+            runSingle(newLedger(numbers), numbers, operations / 10);
+            runBatches(newLedger(numbers), numbers, operations / 10, batchSize);
+        }
+        report("in memory, single calls", operations, runSingle(newLedger(numbers), numbers, operations));
+        report("in memory, batches", operations, runBatches(newLedger(numbers), numbers, operations, batchSize));
+
+        int syncedSingles = Math.max(1, operations / 1000);
+        Path directory = Files.createTempDirectory("ledger-benchmark");
+        try {
+            try (Ledger ledger = openLedger(directory.resolve("single"), numbers)) {
+                report("on disk, single calls", syncedSingles, runSingle(ledger, numbers, syncedSingles));
+            }
+            try (Ledger ledger = openLedger(directory.resolve("batch"), numbers)) {
+                report("on disk, batches", operations, runBatches(ledger, numbers, operations, batchSize));
+            }
+        } finally {
+            delete(directory);
+        }
+    }
+
+    private static Ledger newLedger(String[] numbers) {
+        Ledger ledger = new Ledger();
+        for (String number : numbers) {
+            ledger.openAccount(number, 1000.0, 0.05);
+        }
+        return ledger;
+    }
+
+    // No automatic snapshot, so only the journal is timed.
+    private static Ledger openLedger(Path directory, String[] numbers) throws IOException {
+        Ledger ledger = Ledger.open(directory, LedgerJournal.Durability.SYNC, Long.MAX_VALUE);
+        for (String number : numbers) {
+            ledger.openAccount(number, 1000.0, 0.05);
+        }
+        return ledger;
+    }
+
+    private static long runSingle(Ledger ledger, String[] numbers, int operations) {
+        long start = System.nanoTime();
+        for (int i = 0; i < operations; i++) {
+            String account = numbers[i % numbers.length];
+            if ((i & 1) == 0) {
+                ledger.deposit(account, 12.34);
+            } else {
+                ledger.withdraw(account, 5.67);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long runBatches(Ledger ledger, String[] numbers, int operations, int batchSize) {
+        long start = System.nanoTime();
+        TransactionBatch batch = new TransactionBatch();
+        for (int i = 0; i < operations; i++) {
+            String account = numbers[i % numbers.length];
+            if ((i & 1) == 0) {
+                batch.deposit(account, 12.34);
+            } else {
+                batch.withdraw(account, 5.67);
+            }
+            if (batch.size() == batchSize || i == operations - 1) {
+                ledger.apply(batch);
+                batch.clear();
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static void report(String what, int operations, long nanos) {
+        double seconds = nanos / 1e9;
+        System.out.printf(Locale.ROOT, "%-24s %,12d operations in %6.2f s (%,13.0f ops/sec)%n",
+                what, operations, seconds, operations / seconds);
+    }
+
+    private static void delete(Path path) throws IOException {
+        if (Files.isDirectory(path)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(path)) {
+                for (Path file : files) {
+                    delete(file);
+                }
+            }
+        }
+        Files.delete(path);
+    }
+}
@@ -0,0 +1,210 @@
+// File: TransactionBatchTest.java
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+@DisplayName("Transaction Batch Unit Tests")
+public class TransactionBatchTest {
+
+    @TempDir
+    Path temporary;
+
+    private Ledger ledger;
+
+    @BeforeEach
+    void setUp() {
+        ledger = new Ledger();
+        ledger.openAccount("A", 1000.0, 0.05);
+        ledger.openAccount("B", 100.0, 0.05);
+    }
+
+    // --- Item Result Test Cases ---
+    @Test
+    @DisplayName("Every item is marked with how it went.")
+    void testApply_ItemStatuses() {
+        TransactionBatch batch = new TransactionBatch()
+                .deposit("A", 50.0)
+                .withdraw("B", 700.0)
+                .withdraw("B", 0.0)
+                .deposit("C", 10.0)
+                .applyInterest("A");
+        assertEquals(TransactionBatch.Status.PENDING, batch.status(0), "Items should be pending before the batch is applied.");
+        ledger.apply(batch);
+        assertEquals(TransactionBatch.Status.APPLIED, batch.status(0), "Deposit should be applied.");
+        assertEquals(105000, batch.balanceCents(0), "Deposit should report the new balance.");
+        assertEquals(TransactionBatch.Status.DECLINED, batch.status(1), "Withdrawal past the overdraft limit should be declined.");
+        assertEquals(10000, batch.balanceCents(1), "Declined withdrawal should report the unchanged balance.");
+        assertEquals(TransactionBatch.Status.INVALID_AMOUNT, batch.status(2), "Zero withdrawal should be invalid.");
+        assertEquals(TransactionBatch.Status.NO_SUCH_ACCOUNT, batch.status(3), "Unknown account should be reported.");
+        assertEquals(TransactionBatch.Status.APPLIED, batch.status(4), "Interest should be applied.");
+        assertEquals(105438, batch.balanceCents(4), "Interest should be a month of 5% on 1050.00, rounded half-even.");
+        assertEquals(2, batch.count(TransactionBatch.Status.APPLIED), "Two items should be applied.");
+        assertEquals(1054.38, ledger.getBalance("A"), "Ledger should hold the batch's result.");
+        assertEquals(100.0, ledger.getBalance("B"), "Ledger should be unchanged by failed items.");
+    }
+
+    @Test
+    @DisplayName("An account's items are applied in the order they were added.")
+    void testApply_OrderWithinAccount() {
+        TransactionBatch batch = new TransactionBatch()
+                .deposit("B", 500.0)
+                .withdraw("B", 1000.0)
+                .withdraw("B", 100.01);
+        ledger.apply(batch);
+        assertEquals(TransactionBatch.Status.APPLIED, batch.status(1), "Withdrawal should see the deposit before it.");
+        assertEquals(TransactionBatch.Status.DECLINED, batch.status(2), "Last withdrawal would pass the overdraft limit.");
+        assertEquals(-400.0, ledger.getBalance("B"), "Balance should be 100 + 500 - 1000.");
+    }
+
+    @Test
+    @DisplayName("A batch gives the same balances and history as the same calls one at a time.")
+    void testApply_SameAsSingleCalls() {
+        Ledger oneByOne = new Ledger();
+        String[] accounts = new String[50];
+        for (int i = 0; i < accounts.length; i++) {
+            accounts[i] = "ACC" + i;
+            ledger.openAccount(accounts[i], 100.0, 0.03);
+            oneByOne.openAccount(accounts[i], 100.0, 0.03);
+        }
+        Random random = new Random(11);
+        TransactionBatch batch = new TransactionBatch();
+        for (int i = 0; i < 20_000; i++) {
+            String account = accounts[random.nextInt(accounts.length)];
+            double amount = (1 + random.nextInt(20000)) / 100.0;
+            switch (random.nextInt(3)) {
+                case 0:
+                    batch.deposit(account, amount);
+                    oneByOne.deposit(account, amount);
+                    break;
+                case 1:
+                    batch.withdraw(account, amount);
+                    oneByOne.withdraw(account, amount);
+                    break;
+                default:
+                    batch.applyInterest(account);
+                    oneByOne.applyInterest(account);
+                    break;
+            }
+        }
+        ledger.apply(batch);
+        for (String account : accounts) {
+            assertEquals(oneByOne.getBalanceCents(account), ledger.getBalanceCents(account), "Balance of " + account + " should match.");
+            TransactionHistory.Cursor want = oneByOne.history(account);
+            TransactionHistory.Cursor got = ledger.history(account);
+            while (want.next()) {
+                assertTrue(got.next(), "Batch history should not be shorter.");
+                assertEquals(want.type(), got.type(), "Transaction types should match.");
+                assertEquals(want.amountCents(), got.amountCents(), "Transaction amounts should match.");
+                assertEquals(want.newBalanceCents(), got.newBalanceCents(), "Balances after each transaction should match.");
+            }
+            assertFalse(got.next(), "Batch history should not be longer.");
+        }
+    }
+
+    // --- Single Account Test Cases ---
+    @Test
+    @DisplayName("A bank account applies only the items for itself.")
+    void testBankAccount_Apply() {
+        BankAccount account = new BankAccount("X", -100.0, 0.05);
+        TransactionBatch batch = new TransactionBatch()
+                .applyInterest("X")
+                .deposit("Y", 10.0)
+                .withdraw("X", 25.5);
+        account.apply(batch);
+        assertEquals(TransactionBatch.Status.APPLIED, batch.status(0), "Interest on a negative balance should go through.");
+        assertEquals(TransactionBatch.Status.NO_SUCH_ACCOUNT, batch.status(1), "Item for another account should be marked.");
+        assertEquals(TransactionBatch.Status.APPLIED, batch.status(2), "Withdrawal should be applied.");
+        assertEquals(-125.5, account.getBalance(), "Balance should be -100 - 25.50.");
+        assertEquals(1, account.getTransactionCount(), "Only the withdrawal should be in the history.");
+    }
+
+    @Test
+    @DisplayName("Interest too large for a balance marks the item instead of stopping the batch.")
+    void testBankAccount_InterestOverflow() {
+        BankAccount account = new BankAccount("X", 92_233_720_368_547_000.0, 0.05);
+        long balance = account.getBalanceCents();
+        TransactionBatch batch = new TransactionBatch()
+                .applyInterest("X")
+                .withdraw("X", 1.0);
+        account.apply(batch);
+        assertEquals(TransactionBatch.Status.INVALID_AMOUNT, batch.status(0), "Interest that cannot be worked out should be invalid.");
+        assertEquals(balance, batch.balanceCents(0), "Invalid interest should report the unchanged balance.");
+        assertEquals(TransactionBatch.Status.APPLIED, batch.status(1), "The item after it should still be applied.");
+        assertEquals(2, account.getTransactionCount(), "Only the opening deposit and the withdrawal should be in the history.");
+    }
+
+    @Test
+    @DisplayName("A cleared batch can be filled and applied again.")
+    void testClear_Reuse() {
+        TransactionBatch batch = new TransactionBatch();
+        for (int i = 0; i < 100; i++) {
+            batch.deposit("A", 1.0);
+        }
+        ledger.apply(batch);
+        batch.clear();
+        assertEquals(0, batch.size(), "Cleared batch should be empty.");
+        assertThrows(IndexOutOfBoundsException.class, () -> batch.status(0), "Cleared items should be gone.");
+        batch.withdraw("A", 100.0);
+        ledger.apply(batch);
+        assertEquals(TransactionBatch.Status.APPLIED, batch.status(0), "Reused batch should be applied.");
+        assertEquals(1000.0, ledger.getBalance("A"), "Balance should be 1000 + 100 - 100.");
+    }
+
+    // --- Durability and Concurrency Test Cases ---
+    @Test
+    @DisplayName("A batch applied to a ledger on disk is recovered after a restart.")
+    void testApply_Recovered() throws IOException {
+        Ledger stored = Ledger.open(temporary.resolve("ledger"));
+        stored.openAccount("A", 1000.0, 0.05);
+        stored.openAccount("B", 100.0, 0.05);
+        TransactionBatch batch = new TransactionBatch();
+        for (int i = 0; i < 1000; i++) {
+            batch.deposit(i % 2 == 0 ? "A" : "B", 1.25).withdraw("B", 3.0).applyInterest("A");
+        }
+        stored.apply(batch);
+        stored.close();
+        Ledger recovered = Ledger.open(temporary.resolve("ledger"));
+        for (String account : new String[] {"A", "B"}) {
+            assertEquals(stored.getBalanceCents(account), recovered.getBalanceCents(account), "Balance of " + account + " should match.");
+            assertEquals(stored.getTransactionHistory(account).size(), recovered.getTransactionHistory(account).size(),
+                    "History of " + account + " should have the same length.");
+        }
+        recovered.close();
+    }
+
+    @Test
+    @DisplayName("Batches applied from many threads lose no updates.")
+    void testApply_Concurrent() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        List<Future<?>> results = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            results.add(pool.submit(() -> {
+                TransactionBatch batch = new TransactionBatch();
+                for (int round = 0; round < 50; round++) {
+                    batch.clear();
+                    for (int i = 0; i < 1000; i++) {
+                        batch.deposit(i % 2 == 0 ? "A" : "B", 0.01);
+                    }
+                    ledger.apply(batch);
+                }
+            }));
+        }
+        for (Future<?> result : results) {
+            result.get();
+        }
+        pool.shutdown();
+        assertEquals(1000_00 + 100_000, ledger.getBalanceCents("A"), "A should get 100000 cents of deposits.");
+        assertEquals(100_00 + 100_000, ledger.getBalanceCents("B"), "B should get 100000 cents of deposits.");
+    }
+}
@@ -0,0 +1,218 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+
+// An account's transactions stored column by column in primitive arrays: 25 bytes per transaction and no object
+// per entry. Entries are only ever appended, and a full column is copied into a bigger one rather than changed, so a
+// cursor that keeps the arrays it started with can read its entries while more are being added.
+public class TransactionHistory {
+
+    private static final BankAccount.Transaction.Type[] TYPES = BankAccount.Transaction.Type.values();
+    // Wall-clock time read once, advanced by the monotonic clock, so stamping a transaction allocates nothing.
+    private static final long EPOCH_NANOS_AT_START = System.currentTimeMillis() * 1_000_000L;
+    private static final long NANO_TIME_AT_START = System.nanoTime();
+
+    private byte[] types = new byte[16];
+    private long[] amounts = new long[16];
+    private long[] balances = new long[16];
+    private long[] timestamps = new long[16];
+    private int size;
+
+    public void append(BankAccount.Transaction.Type type, long amountCents, long newBalanceCents) {
+        append(type, amountCents, newBalanceCents, now());
+    }
+
+    // The time append() stamps entries with, in nanoseconds since the epoch.
+    static long now() {
+        return EPOCH_NANOS_AT_START + (System.nanoTime() - NANO_TIME_AT_START);
+    }
+
+    // Used when restoring transactions that already have a time.
+    void append(BankAccount.Transaction.Type type, long amountCents, long newBalanceCents, long timestampNanos) {
+        if (size == types.length) {
+            reserve(1);
+        }
+        types[size] = (byte) type.ordinal();
+        amounts[size] = amountCents;
+        balances[size] = newBalanceCents;
+        timestamps[size] = timestampNanos;
+        size++;
+    }
+
+    // Makes room for count more entries at once, so a batch grows the columns at most one time.
+    void reserve(int count) {
+        if (size + count <= types.length) {
+            return;
+        }
+        int capacity = Math.max(size + count, size + (size >> 1));
+        types = Arrays.copyOf(types, capacity);
+        amounts = Arrays.copyOf(amounts, capacity);
+        balances = Arrays.copyOf(balances, capacity);
+        timestamps = Arrays.copyOf(timestamps, capacity);
+    }
+
+    // Drops the entries from count on. The columns are copied first, so a cursor already reading them never sees the
+    // entries appended in their place.
+    void truncate(int count) {
+        types = Arrays.copyOf(types, types.length);
+        amounts = Arrays.copyOf(amounts, amounts.length);
+        balances = Arrays.copyOf(balances, balances.length);
+        timestamps = Arrays.copyOf(timestamps, timestamps.length);
+        size = count;
+    }
+
+    long lastTimestampNanos() {
+        return timestamps[size - 1];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // All entries there are now; later ones are not seen.
+    public Cursor cursor() {
+        return new Cursor(this, 0, size);
+    }
+
+    // Entries from (inclusive) to (exclusive).
+    public Cursor cursor(int from, int to) {
+        if (from < 0 || to > size || from > to) {
+            throw new IndexOutOfBoundsException("Range " + from + ".." + to + " is outside 0.." + size + ".");
+        }
+        return new Cursor(this, from, to);
+    }
+
+    // Reads entries in place. Call next() before reading the first one, as with a ResultSet.
+    public static final class Cursor {
+        private final byte[] types;
+        private final long[] amounts;
+        private final long[] balances;
+        private final long[] timestamps;
+        private final int start;
+        private final int end;
+        private int index;
+
+        private Cursor(TransactionHistory history, int from, int to) {
+            this.types = history.types;
+            this.amounts = history.amounts;
+            this.balances = history.balances;
+            this.timestamps = history.timestamps;
+            this.start = from;
+            this.index = from - 1;
+            this.end = to;
+        }
+
+        public boolean next() {
+            return ++index < end;
+        }
+
+        public BankAccount.Transaction.Type type() {
+            return TYPES[types[index]];
+        }
+
+        public long amountCents() {
+            return amounts[index];
+        }
+
+        public long newBalanceCents() {
+            return balances[index];
+        }
+
+        public long timestampNanos() {
+            return timestamps[index];
+        }
+
+        public LocalDateTime timestamp() {
+            Instant instant = Instant.ofEpochSecond(0, timestamps[index]);
+            return LocalDateTime.ofInstant(instant, ZoneId.systemDefault());
+        }
+
+        // Builds an object for the current entry, for callers that want to keep it.
+        public BankAccount.Transaction toTransaction() {
+            return new BankAccount.Transaction(type(), amountCents(), newBalanceCents(), timestamp());
+        }
+    }
+
+    // Puts the columns of a cursor's range into the buffer one after another: types, amounts, balances, timestamps.
+    // Whenever the buffer is full it is flipped, handed to sink and cleared.
+    static void writeColumns(Cursor range, ByteBuffer buffer, ByteBufferSink sink) throws IOException {
+        int from = range.start;
+        int to = range.end;
+        for (int i = from; i < to; ) {
+            if (!buffer.hasRemaining()) {
+                drain(buffer, sink);
+            }
+            int n = Math.min(to - i, buffer.remaining());
+            buffer.put(range.types, i, n);
+            i += n;
+        }
+        for (long[] column : new long[][] {range.amounts, range.balances, range.timestamps}) {
+            for (int i = from; i < to; ) {
+                if (buffer.remaining() < Long.BYTES) {
+                    drain(buffer, sink);
+                }
+                int n = Math.min(to - i, buffer.remaining() / Long.BYTES);
+                buffer.asLongBuffer().put(column, i, n);
+                buffer.position(buffer.position() + n * Long.BYTES);
+                i += n;
+            }
+        }
+    }
+
+    // Reads what writeColumns wrote for count entries. The buffer starts flipped for reading and is refilled from
+    // the channel as it runs out; whatever follows the columns is left in it.
+    static TransactionHistory readColumns(int count, ByteBuffer buffer, ReadableByteChannel channel) throws IOException {
+        TransactionHistory history = new TransactionHistory();
+        int capacity = Math.max(count, 16);
+        history.types = new byte[capacity];
+        history.amounts = new long[capacity];
+        history.balances = new long[capacity];
+        history.timestamps = new long[capacity];
+        for (int i = 0; i < count; ) {
+            fill(buffer, channel, 1);
+            int n = Math.min(count - i, buffer.remaining());
+            buffer.get(history.types, i, n);
+            i += n;
+        }
+        for (long[] column : new long[][] {history.amounts, history.balances, history.timestamps}) {
+            for (int i = 0; i < count; ) {
+                fill(buffer, channel, Long.BYTES);
+                int n = Math.min(count - i, buffer.remaining() / Long.BYTES);
+                buffer.asLongBuffer().get(column, i, n);
+                buffer.position(buffer.position() + n * Long.BYTES);
+                i += n;
+            }
+        }
+        history.size = count;
+        return history;
+    }
+
+    interface ByteBufferSink {
+        void write(ByteBuffer buffer) throws IOException;
+    }
+
+    static void drain(ByteBuffer buffer, ByteBufferSink sink) throws IOException {
+        buffer.flip();
+        sink.write(buffer);
+        buffer.clear();
+    }
+
+    // Makes sure at least needed bytes are readable, reading more from the channel if not.
+    static void fill(ByteBuffer buffer, ReadableByteChannel channel, int needed) throws IOException {
+        if (buffer.remaining() >= needed) {
+            return;
+        }
+        buffer.compact();
+        while (buffer.position() < needed) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Snapshot ends early.");
+            }
+        }
+        buffer.flip();
+    }
+}